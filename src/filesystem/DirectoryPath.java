@@ -1,7 +1,10 @@
 package filesystem;
 
 import java.util.Collection;
+import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Stream;
 
 /**
  * Represents a directory in a file system. Certain methods are overridden to match
@@ -55,4 +58,143 @@ public interface DirectoryPath extends Path
     * Returns every path under the current path.
     */
    Collection<Path> getChildren();
+
+   /**
+    * Returns the space used by the files under the current path, at any depth, and
+    * its quota.
+    */
+   DirectoryUsage getUsage();
+
+   /**
+    * Limits the number of bytes of data of the files under the current path, at any
+    * depth. Writes which would exceed the quota fail.
+    *
+    * @param bytes
+    *           The maximum number of bytes, or a negative value to remove the quota
+    * @return The current path
+    */
+   DirectoryPath setQuota(final long bytes);
+
+   /**
+    * Returns a page of the paths under the current path, sorted by name.
+    * Unlike {@link #getChildren()}, the entries are neither kept nor turned into paths.
+    *
+    * @param afterName
+    *           The name of the last entry of the previous page, or null for the first page
+    * @param limit
+    *           The maximum number of entries to return
+    */
+   List<PathEntry> list(final String afterName, final int limit);
+
+   /**
+    * Returns the paths under the current path, sorted by name, as a lazy stream which
+    * reads a page of entries at a time.
+    */
+   Stream<PathEntry> entries();
+
+   /**
+    * Returns every path under the current path, at any depth, each directory before
+    * the paths it contains.
+    */
+   Collection<Path> getDescendants();
+
+   /**
+    * Returns every path under the current path, at any depth, as a lazy stream which
+    * can be split to be consumed in parallel.
+    *
+    * @see #getDescendants()
+    */
+   Stream<Path> walk();
+
+   /**
+    * Returns the paths under the current path, at any depth, which match a filter,
+    * as a lazy stream which can be split to be consumed in parallel.
+    *
+    * @param filter
+    *           The filter the paths must match
+    */
+   Stream<Path> find(final PathFilter filter);
+
+   /**
+    * Checks if a path lies under the current path, at any depth.
+    *
+    * @param path
+    *           The path to look for
+    */
+   boolean contains(final Path path);
+
+   @Override
+   CompletableFuture<DirectoryPath> createAsync();
+
+   @Override
+   CompletableFuture<DirectoryPath> renameAsync(final String name);
+
+   @Override
+   CompletableFuture<DirectoryPath> moveToAsync(final DirectoryPath path);
+
+   @Override
+   CompletableFuture<DirectoryPath> copyToAsync(final DirectoryPath path);
+
+   /**
+    * Creates a new directory under the current path asynchronously.
+    *
+    * @see #createDirectory(String)
+    */
+   CompletableFuture<DirectoryPath> createDirectoryAsync(final String name);
+
+   /**
+    * Creates a new file under the current path asynchronously.
+    *
+    * @see #createFile(String)
+    */
+   CompletableFuture<FilePath> createFileAsync(final String name);
+
+   /**
+    * Searches for a path under the current path asynchronously.
+    *
+    * @see #getPath(String)
+    */
+   CompletableFuture<Optional<Path>> getPathAsync(final String name);
+
+   /**
+    * Returns every path under the current path asynchronously.
+    *
+    * @see #getChildren()
+    */
+   CompletableFuture<Collection<Path>> getChildrenAsync();
+
+   /**
+    * Returns the space used by the files under the current path asynchronously.
+    *
+    * @see #getUsage()
+    */
+   CompletableFuture<DirectoryUsage> getUsageAsync();
+
+   /**
+    * Limits the space used by the files under the current path asynchronously.
+    *
+    * @see #setQuota(long)
+    */
+   CompletableFuture<DirectoryPath> setQuotaAsync(final long bytes);
+
+   /**
+    * Returns a page of the paths under the current path asynchronously.
+    *
+    * @see #list(String, int)
+    */
+   CompletableFuture<List<PathEntry>> listAsync(final String afterName, final int limit);
+
+   /**
+    * Returns every path under the current path, at any depth, asynchronously.
+    *
+    * @see #getDescendants()
+    */
+   CompletableFuture<Collection<Path>> getDescendantsAsync();
+
+   /**
+    * Checks if a path lies under the current path asynchronously.
+    *
+    * @see #contains(Path)
+    */
+   CompletableFuture<Boolean> containsAsync(final Path path);
 }
@@ -0,0 +1,51 @@
+package filesystem;
+
+/**
+ * The space used by the files under a directory, at any depth, and the quota which
+ * limits it. Only the stored data counts, not the zeros which sparse files leave
+ * unstored. Usages are snapshots: they are not updated when the directory changes.
+ *
+ * @author Edoardo Luppi
+ */
+public final class DirectoryUsage
+{
+   private final long bytes;
+   private final long clusters;
+   private final long quota;
+
+   /**
+    * @param bytes
+    *           The number of bytes of data of the files
+    * @param clusters
+    *           The number of clusters which hold the data of the files
+    * @param quota
+    *           The maximum number of bytes, or -1 if there is no quota
+    */
+   public DirectoryUsage(final long bytes, final long clusters, final long quota) {
+      this.bytes = bytes;
+      this.clusters = clusters;
+      this.quota = quota;
+   }
+
+   /**
+    * Returns the number of bytes of data of the files.
+    */
+   public long getBytes() {
+      return bytes;
+   }
+
+   /**
+    * Returns the number of clusters which hold the data of the files.
+    */
+   public long getClusters() {
+      return clusters;
+   }
+
+   /**
+    * Returns the maximum number of bytes of data of the files, or -1 if there is
+    * no quota.
+    */
+   public long getQuota() {
+      return quota;
+   }
+}
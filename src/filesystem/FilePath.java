@@ -1,5 +1,10 @@
 package filesystem;
 
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.SeekableByteChannel;
+import java.util.concurrent.CompletableFuture;
+
 /**
  * Represents a file in a file system. Certain methods are overridden to match
  * the correct return type.
@@ -33,4 +38,94 @@ public interface FilePath extends Path
     * Returns the current file path data.
     */
    byte[] getData();
+
+   /**
+    * Returns a range of the file path data. Only the clusters which cover the range
+    * are read.
+    *
+    * @param offset
+    *           The position of the first byte to read
+    * @param length
+    *           The number of bytes to read
+    * @return The data, which is shorter than the requested length if the range
+    *         exceeds the end of the file
+    */
+   byte[] read(final long offset, final int length);
+
+   /**
+    * Overwrites a range of the file path data. Only the clusters which cover the range
+    * are rewritten, and new clusters are allocated if the range exceeds the end of
+    * the file. A gap between the end of the file and the offset is filled with zeros.
+    *
+    * @param offset
+    *           The position of the first byte to write
+    * @param data
+    *           The data to write
+    * @return The current path
+    */
+   FilePath write(final long offset, final byte[] data);
+
+   /**
+    * Appends data at the end of the file path data, rewriting at most the last cluster.
+    *
+    * @param data
+    *           The data to append
+    * @return The current path
+    */
+   FilePath append(final byte[] data);
+
+   /**
+    * Changes the length of the file path data. A shorter length discards the data past
+    * it, while a longer length extends the data with zeros, which are not stored.
+    *
+    * @param length
+    *           The new length
+    * @return The current path
+    */
+   FilePath setLength(final long length);
+
+   /**
+    * Opens a channel which reads and writes the file path data at any position,
+    * transferring only the clusters which cover the requested bytes.
+    */
+   SeekableByteChannel openChannel();
+
+   /**
+    * Opens a stream which reads the file path data incrementally, so that the whole
+    * data is never held in memory.
+    */
+   InputStream openInputStream();
+
+   /**
+    * Opens a stream which replaces the file path data incrementally, so that the whole
+    * data is never held in memory. The current data is replaced only once the stream
+    * is closed, and is kept if the stream fails.
+    */
+   OutputStream openOutputStream();
+
+   @Override
+   CompletableFuture<FilePath> createAsync();
+
+   @Override
+   CompletableFuture<FilePath> renameAsync(final String name);
+
+   @Override
+   CompletableFuture<FilePath> moveToAsync(final DirectoryPath path);
+
+   @Override
+   CompletableFuture<FilePath> copyToAsync(final DirectoryPath path);
+
+   /**
+    * Sets the file path data asynchronously.
+    *
+    * @see #setData(byte[])
+    */
+   CompletableFuture<FilePath> setDataAsync(final byte[] file);
+
+   /**
+    * Returns the current file path data asynchronously.
+    *
+    * @see #getData()
+    */
+   CompletableFuture<byte[]> getDataAsync();
 }
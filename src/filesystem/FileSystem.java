@@ -61,6 +61,10 @@ public interface FileSystem extends AutoCloseable
    static final int PATH_DOES_NOT_EXIST = 3;
    static final int PATH_CANNOT_BE_DELETED = 4;
    static final int ROOT_CANNOT_BE_RENAMED = 5;
+   static final int GARBAGE_COLLECTION_FAILED = 6;
+   static final int PATH_CANNOT_BE_MOVED = 7;
+   static final int QUOTA_EXCEEDED = 8;
+   static final int STREAM_EXPIRED = 9;
 
    static void error(final int errorCode) {
       error(errorCode, null);
@@ -81,12 +85,24 @@ public interface FileSystem extends AutoCloseable
    static String getErrorMessage(final int errorCode) {
       // TODO: complete messages
       switch (errorCode) {
+         case FILE_SYSTEM_ALREADY_EXIST:
+            return "The file system already exists";
+         case FILE_SYSTEM_DOES_NOT_EXIST:
+            return "The file system does not exist";
          case PATH_ALREADY_EXISTS:
             return "The specified path already exists";
          case PATH_DOES_NOT_EXIST:
             return "The specified path does not exist";
          case PATH_CANNOT_BE_DELETED:
             return "The specified path cannot be deleted";
+         case GARBAGE_COLLECTION_FAILED:
+            return "The reclamation of deleted paths failed";
+         case PATH_CANNOT_BE_MOVED:
+            return "The specified path cannot be moved under itself";
+         case QUOTA_EXCEEDED:
+            return "The quota of a directory would be exceeded";
+         case STREAM_EXPIRED:
+            return "The data written by the stream has been reclaimed";
          default:
             break;
       }
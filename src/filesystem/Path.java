@@ -1,5 +1,7 @@
 package filesystem;
 
+import java.util.concurrent.CompletableFuture;
+
 /**
  * A path represents a point inside a file system.
  * Depending on the file system implementation, as is this one, the path concept can
@@ -69,4 +71,58 @@ public interface Path extends Comparable<Path>
     * Returns the name of the path.
     */
    String getName();
+
+   /**
+    * Returns the stored attributes of the path, such as its size and times.
+    */
+   PathAttributes getAttributes();
+
+   /**
+    * Creates the path asynchronously.
+    *
+    * @see #create()
+    */
+   CompletableFuture<? extends Path> createAsync();
+
+   /**
+    * Deletes the path asynchronously.
+    *
+    * @see #delete()
+    */
+   CompletableFuture<DirectoryPath> deleteAsync();
+
+   /**
+    * Checks for the path existence asynchronously.
+    *
+    * @see #exists()
+    */
+   CompletableFuture<Boolean> existsAsync();
+
+   /**
+    * Returns the stored attributes of the path asynchronously.
+    *
+    * @see #getAttributes()
+    */
+   CompletableFuture<PathAttributes> getAttributesAsync();
+
+   /**
+    * Renames the path asynchronously.
+    *
+    * @see #rename(String)
+    */
+   CompletableFuture<? extends Path> renameAsync(final String name);
+
+   /**
+    * Moves the path asynchronously.
+    *
+    * @see #moveTo(DirectoryPath)
+    */
+   CompletableFuture<? extends Path> moveToAsync(final DirectoryPath path);
+
+   /**
+    * Copies the path asynchronously.
+    *
+    * @see #copyTo(DirectoryPath)
+    */
+   CompletableFuture<? extends Path> copyToAsync(final DirectoryPath path);
 }
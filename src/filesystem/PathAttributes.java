@@ -0,0 +1,67 @@
+package filesystem;
+
+import java.time.Instant;
+
+/**
+ * The attributes of a path, as stored by its file system. Attributes are snapshots:
+ * they are not updated when the path changes.
+ *
+ * @author Edoardo Luppi
+ */
+public final class PathAttributes
+{
+   private final boolean directory;
+   private final long size;
+   private final Instant creationTime;
+   private final Instant modificationTime;
+
+   /**
+    * @param directory
+    *           If the path is a directory
+    * @param size
+    *           The length of the file data in bytes, or 0 for a directory
+    * @param creationTime
+    *           The time at which the path has been created
+    * @param modificationTime
+    *           The time at which the path has been last renamed, moved or written
+    */
+   public PathAttributes(
+         final boolean directory,
+         final long size,
+         final Instant creationTime,
+         final Instant modificationTime) {
+      this.directory = directory;
+      this.size = size;
+      this.creationTime = creationTime;
+      this.modificationTime = modificationTime;
+   }
+
+   /**
+    * Checks if the path is a directory.
+    */
+   public boolean isDirectory() {
+      return directory;
+   }
+
+   /**
+    * Returns the length of the file data in bytes, or 0 for a directory.
+    */
+   public long getSize() {
+      return size;
+   }
+
+   /**
+    * Returns the time at which the path has been created.
+    */
+   public Instant getCreationTime() {
+      return creationTime;
+   }
+
+   /**
+    * Returns the time at which the path has been last renamed, moved or, for a file,
+    * written.
+    */
+   public Instant getModificationTime() {
+      return modificationTime;
+   }
+}
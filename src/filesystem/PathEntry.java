@@ -0,0 +1,66 @@
+package filesystem;
+
+/**
+ * A lightweight description of a path, as returned by a directory listing.
+ * Entries are snapshots: they are not updated when the path changes, and reading
+ * them never touches the file system.
+ *
+ * @author Edoardo Luppi
+ */
+public final class PathEntry
+{
+   private final long id;
+   private final String name;
+   private final boolean directory;
+   private final long size;
+
+   /**
+    * @param id
+    *           The identifier of the path in its file system
+    * @param name
+    *           The name of the path
+    * @param directory
+    *           If the path is a directory
+    * @param size
+    *           The length of the file data in bytes, or 0 for a directory
+    */
+   public PathEntry(final long id, final String name, final boolean directory, final long size) {
+      this.id = id;
+      this.name = name;
+      this.directory = directory;
+      this.size = size;
+   }
+
+   /**
+    * Returns the identifier of the path in its file system.
+    */
+   public long getId() {
+      return id;
+   }
+
+   /**
+    * Returns the name of the path.
+    */
+   public String getName() {
+      return name;
+   }
+
+   /**
+    * Checks if the path is a directory.
+    */
+   public boolean isDirectory() {
+      return directory;
+   }
+
+   /**
+    * Returns the length of the file data in bytes, or 0 for a directory.
+    */
+   public long getSize() {
+      return size;
+   }
+
+   @Override
+   public String toString() {
+      return name;
+   }
+}
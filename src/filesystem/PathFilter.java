@@ -0,0 +1,155 @@
+package filesystem;
+
+import java.time.Instant;
+
+/**
+ * Describes the paths searched by {@link DirectoryPath#find(PathFilter)}.
+ * A filter is immutable: each method returns a new filter with one more condition.
+ *
+ * @author Edoardo Luppi
+ */
+public final class PathFilter
+{
+   private static final PathFilter ANY = new PathFilter(null, null, null, null, null, null);
+
+   private final String name;
+   private final Boolean directory;
+   private final Long minSize;
+   private final Long maxSize;
+   private final Instant modifiedAfter;
+   private final Instant modifiedBefore;
+
+   private PathFilter(
+         final String name,
+         final Boolean directory,
+         final Long minSize,
+         final Long maxSize,
+         final Instant modifiedAfter,
+         final Instant modifiedBefore) {
+      this.name = name;
+      this.directory = directory;
+      this.minSize = minSize;
+      this.maxSize = maxSize;
+      this.modifiedAfter = modifiedAfter;
+      this.modifiedBefore = modifiedBefore;
+   }
+
+   /**
+    * Returns a filter which matches every path.
+    */
+   public static PathFilter any() {
+      return ANY;
+   }
+
+   /**
+    * Matches the paths whose name matches a glob, where <code>*</code> stands for any
+    * sequence of characters and <code>?</code> for a single character.
+    *
+    * @param glob
+    *           The pattern of the name
+    */
+   public PathFilter withName(final String glob) {
+      return new PathFilter(glob, directory, minSize, maxSize, modifiedAfter, modifiedBefore);
+   }
+
+   /**
+    * Matches files only.
+    */
+   public PathFilter filesOnly() {
+      return new PathFilter(name, false, minSize, maxSize, modifiedAfter, modifiedBefore);
+   }
+
+   /**
+    * Matches directories only.
+    */
+   public PathFilter directoriesOnly() {
+      return new PathFilter(name, true, minSize, maxSize, modifiedAfter, modifiedBefore);
+   }
+
+   /**
+    * Matches the paths whose size is at least the given number of bytes.
+    * The size of a directory is 0.
+    *
+    * @param size
+    *           The minimum size in bytes
+    */
+   public PathFilter withMinSize(final long size) {
+      return new PathFilter(name, directory, size, maxSize, modifiedAfter, modifiedBefore);
+   }
+
+   /**
+    * Matches the paths whose size is at most the given number of bytes.
+    * The size of a directory is 0.
+    *
+    * @param size
+    *           The maximum size in bytes
+    */
+   public PathFilter withMaxSize(final long size) {
+      return new PathFilter(name, directory, minSize, size, modifiedAfter, modifiedBefore);
+   }
+
+   /**
+    * Matches the paths modified at or after the given time.
+    *
+    * @param time
+    *           The earliest modification time
+    * @see PathAttributes#getModificationTime()
+    */
+   public PathFilter withModifiedAfter(final Instant time) {
+      return new PathFilter(name, directory, minSize, maxSize, time, modifiedBefore);
+   }
+
+   /**
+    * Matches the paths modified at or before the given time.
+    *
+    * @param time
+    *           The latest modification time
+    * @see PathAttributes#getModificationTime()
+    */
+   public PathFilter withModifiedBefore(final Instant time) {
+      return new PathFilter(name, directory, minSize, maxSize, modifiedAfter, time);
+   }
+
+   /**
+    * Returns the glob the name must match, or null if any name matches.
+    */
+   public String getName() {
+      return name;
+   }
+
+   /**
+    * Returns true if only directories match, false if only files match, or null if
+    * both do.
+    */
+   public Boolean getDirectory() {
+      return directory;
+   }
+
+   /**
+    * Returns the minimum size in bytes, or null if there is none.
+    */
+   public Long getMinSize() {
+      return minSize;
+   }
+
+   /**
+    * Returns the maximum size in bytes, or null if there is none.
+    */
+   public Long getMaxSize() {
+      return maxSize;
+   }
+
+   /**
+    * Returns the earliest modification time, or null if there is none.
+    */
+   public Instant getModifiedAfter() {
+      return modifiedAfter;
+   }
+
+   /**
+    * Returns the latest modification time, or null if there is none.
+    */
+   public Instant getModifiedBefore() {
+      return modifiedBefore;
+   }
+}
@@ -0,0 +1,444 @@
+package filesystem.db;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A cache of cluster data shared by every file of a file system, keyed by content
+ * identifier and cluster sequence number and bounded by a budget in bytes.
+ * <p/>
+ * Eviction follows the Adaptive Replacement Cache policy, weighted by cluster size:
+ * clusters read once live in a recency list, clusters read again are promoted to a
+ * frequency list, and the keys of recently evicted clusters are remembered to adapt
+ * the share of the budget given to each list. A single scan of a large file can then
+ * only displace clusters which have not been read more than once.
+ * <p/>
+ * Data can be kept off-heap, in direct buffers, in which case it is copied on every
+ * hit.
+ *
+ * @author Edoardo Luppi
+ */
+class DbClusterCache
+{
+   /**
+    * The number of contents whose last invalidation is remembered.
+    */
+   private static final int INVALIDATION_HISTORY_SIZE = 1024;
+
+   private static final class Key
+   {
+      private final long contentId;
+      private final int sequenceNumber;
+
+      Key(final long contentId, final int sequenceNumber) {
+         this.contentId = contentId;
+         this.sequenceNumber = sequenceNumber;
+      }
+
+      @Override
+      public boolean equals(final Object object) {
+         if (!(object instanceof Key)) {
+            return false;
+         }
+
+         final Key other = (Key) object;
+         return contentId == other.contentId && sequenceNumber == other.sequenceNumber;
+      }
+
+      @Override
+      public int hashCode() {
+         return Long.hashCode(contentId) * 31 + sequenceNumber;
+      }
+   }
+
+   private static final class Entry
+   {
+      private final Key key;
+      private final int size;
+
+      /**
+       * A byte array or a direct buffer, or null for the entries of the ghost lists.
+       */
+      private Object data;
+
+      Entry(final Key key, final int size, final Object data) {
+         this.key = key;
+         this.size = size;
+         this.data = data;
+      }
+   }
+
+   /**
+    * The lists, from least to most recently used: clusters read once, clusters read
+    * more than once, and the keys recently evicted from each of them.
+    */
+   private final LinkedHashMap<Key, Entry> recent = new LinkedHashMap<>();
+   private final LinkedHashMap<Key, Entry> frequent = new LinkedHashMap<>();
+   private final LinkedHashMap<Key, Entry> recentGhosts = new LinkedHashMap<>();
+   private final LinkedHashMap<Key, Entry> frequentGhosts = new LinkedHashMap<>();
+   private long recentBytes;
+   private long frequentBytes;
+   private long recentGhostBytes;
+   private long frequentGhostBytes;
+
+   /**
+    * The sequence numbers of every cluster known to the lists, per content, so that
+    * a content can be invalidated without scanning the lists.
+    */
+   private final Map<Long, Set<Integer>> contents = new HashMap<>();
+
+   private final long capacity;
+   private final boolean offHeap;
+
+   /**
+    * The share of the capacity, in bytes, targeted by the recency list.
+    */
+   private long target;
+
+   /**
+    * Incremented by every invalidation, so that a read which ran concurrently with
+    * a write to the same content does not store stale data.
+    */
+   private long generation;
+
+   /**
+    * The generation of the last invalidation of the recently invalidated contents,
+    * from the least to the most recently invalidated.
+    */
+   private final LinkedHashMap<Long, Long> invalidations = new LinkedHashMap<>();
+
+   /**
+    * The latest generation dropped from {@link #invalidations}: a read which started
+    * before it may have missed an invalidation of its content.
+    */
+   private long forgottenGeneration;
+   private long hits;
+   private long misses;
+
+   /**
+    * @param capacity
+    *           The maximum number of bytes of cluster data kept in memory,
+    *           or 0 to disable the cache
+    * @param offHeap
+    *           If the data has to be kept in direct buffers
+    */
+   DbClusterCache(final long capacity, final boolean offHeap) {
+      this.capacity = Math.max(capacity, 0);
+      this.offHeap = offHeap;
+      target = 0;
+      generation = 0;
+      forgottenGeneration = 0;
+      hits = 0;
+      misses = 0;
+   }
+
+   long getCapacity() {
+      return capacity;
+   }
+
+   boolean isOffHeap() {
+      return offHeap;
+   }
+
+   synchronized long getSize() {
+      return recentBytes + frequentBytes;
+   }
+
+   synchronized long getHits() {
+      return hits;
+   }
+
+   synchronized long getMisses() {
+      return misses;
+   }
+
+   synchronized long getGeneration() {
+      return generation;
+   }
+
+   /**
+    * Returns the data of a cluster, or null if it is not cached.
+    * The returned array must not be modified.
+    *
+    * @param contentId
+    *           The identifier of the content
+    * @param sequenceNumber
+    *           The sequence number of the cluster
+    */
+   synchronized byte[] get(final long contentId, final int sequenceNumber) {
+      if (capacity == 0) {
+         return null;
+      }
+
+      final Key key = new Key(contentId, sequenceNumber);
+      Entry entry = recent.remove(key);
+
+      if (entry != null) {
+         recentBytes -= entry.size;
+      } else {
+         entry = frequent.remove(key);
+
+         if (entry != null) {
+            frequentBytes -= entry.size;
+         }
+      }
+
+      if (entry == null) {
+         misses++;
+         return null;
+      }
+
+      hits++;
+      frequent.put(key, entry);
+      frequentBytes += entry.size;
+      return toArray(entry.data);
+   }
+
+   /**
+    * Caches the data of a cluster, unless its content has been invalidated since it was read.
+    *
+    * @param contentId
+    *           The identifier of the content
+    * @param sequenceNumber
+    *           The sequence number of the cluster
+    * @param data
+    *           The data of the cluster, which must not be modified afterwards
+    * @param readGeneration
+    *           The value of {@link #getGeneration()} when the read started
+    */
+   synchronized void put(final long contentId, final int sequenceNumber, final byte[] data, final long readGeneration) {
+      if (data.length > capacity || isInvalidatedSince(contentId, readGeneration)) {
+         return;
+      }
+
+      final Key key = new Key(contentId, sequenceNumber);
+      final int size = data.length;
+
+      if (recent.containsKey(key) || frequent.containsKey(key)) {
+         return;
+      }
+
+      final Entry entry = new Entry(key, size, fromArray(data));
+      Entry ghost;
+
+      if ((ghost = recentGhosts.remove(key)) != null) {
+         // A recently evicted cluster is read again: the recency list deserved more room.
+         recentGhostBytes -= ghost.size;
+         final long delta = Math.max(recentGhostBytes == 0 ? 1 : frequentGhostBytes / recentGhostBytes, 1) * size;
+         target = Math.min(capacity, target + delta);
+         replace(size, false);
+         frequent.put(key, entry);
+         frequentBytes += size;
+         return;
+      }
+
+      if ((ghost = frequentGhosts.remove(key)) != null) {
+         // A cluster evicted from the frequency list is read again: that list deserved more room.
+         frequentGhostBytes -= ghost.size;
+         final long delta = Math.max(frequentGhostBytes == 0 ? 1 : recentGhostBytes / frequentGhostBytes, 1) * size;
+         target = Math.max(0, target - delta);
+         replace(size, true);
+         frequent.put(key, entry);
+         frequentBytes += size;
+         return;
+      }
+
+      // The recency list and its ghosts together never exceed the capacity.
+      while (recentBytes + recentGhostBytes + size > capacity && !recentGhosts.isEmpty()) {
+         recentGhostBytes -= removeEldest(recentGhosts, true).size;
+      }
+
+      while (recentBytes + size > capacity && !recent.isEmpty()) {
+         recentBytes -= removeEldest(recent, true).size;
+      }
+
+      // All the lists together never exceed twice the capacity.
+      while (recentBytes + frequentBytes + recentGhostBytes + frequentGhostBytes + size > 2 * capacity
+            && !frequentGhosts.isEmpty()) {
+         frequentGhostBytes -= removeEldest(frequentGhosts, true).size;
+      }
+
+      replace(size, false);
+      recent.put(key, entry);
+      recentBytes += size;
+      contents.computeIfAbsent(contentId, id -> new HashSet<>()).add(sequenceNumber);
+   }
+
+   /**
+    * Removes every cluster of a content.
+    *
+    * @param contentId
+    *           The identifier of the content
+    */
+   synchronized void invalidate(final long contentId) {
+      invalidated(contentId);
+      final Set<Integer> sequenceNumbers = contents.remove(contentId);
+
+      if (sequenceNumbers != null) {
+         for (final Integer sequenceNumber : sequenceNumbers) {
+            remove(new Key(contentId, sequenceNumber));
+         }
+      }
+   }
+
+   /**
+    * Removes a range of clusters of a content. The range is walked, or the cached
+    * clusters of the content if they are fewer, so that invalidating a large range
+    * of a sparse file costs as much as what is cached.
+    *
+    * @param contentId
+    *           The identifier of the content
+    * @param from
+    *           The sequence number of the first cluster
+    * @param to
+    *           The sequence number following the last cluster
+    */
+   synchronized void invalidate(final long contentId, final int from, final int to) {
+      invalidated(contentId);
+      final Set<Integer> sequenceNumbers = contents.get(contentId);
+
+      if (sequenceNumbers == null) {
+         return;
+      }
+
+      if ((long) to - from <= sequenceNumbers.size()) {
+         for (int i = from; i < to; i++) {
+            remove(new Key(contentId, i));
+            sequenceNumbers.remove(i);
+         }
+      } else {
+         final Iterator<Integer> iterator = sequenceNumbers.iterator();
+
+         while (iterator.hasNext()) {
+            final int sequenceNumber = iterator.next();
+
+            if (sequenceNumber >= from && sequenceNumber < to) {
+               remove(new Key(contentId, sequenceNumber));
+               iterator.remove();
+            }
+         }
+      }
+
+      if (sequenceNumbers.isEmpty()) {
+         contents.remove(contentId);
+      }
+   }
+
+   /**
+    * Records an invalidation of a content, forgetting the least recently invalidated
+    * content when the history is full.
+    */
+   private void invalidated(final long contentId) {
+      generation++;
+      invalidations.remove(contentId);
+      invalidations.put(contentId, generation);
+
+      if (invalidations.size() > INVALIDATION_HISTORY_SIZE) {
+         final Iterator<Long> iterator = invalidations.values().iterator();
+         forgottenGeneration = iterator.next();
+         iterator.remove();
+      }
+   }
+
+   private boolean isInvalidatedSince(final long contentId, final long readGeneration) {
+      final Long invalidation = invalidations.get(contentId);
+      return readGeneration < forgottenGeneration || invalidation != null && invalidation > readGeneration;
+   }
+
+   /**
+    * Makes room for a new cluster by moving the least recently used clusters of either
+    * list to the corresponding ghost list.
+    */
+   private void replace(final int size, final boolean frequentGhostHit) {
+      while (recentBytes + frequentBytes + size > capacity) {
+         if (!recent.isEmpty()
+               && (recentBytes > target || frequentGhostHit && recentBytes == target || frequent.isEmpty())) {
+            final Entry entry = removeEldest(recent, false);
+            recentBytes -= entry.size;
+            entry.data = null;
+            recentGhosts.put(entry.key, entry);
+            recentGhostBytes += entry.size;
+         } else if (!frequent.isEmpty()) {
+            final Entry entry = removeEldest(frequent, false);
+            frequentBytes -= entry.size;
+            entry.data = null;
+            frequentGhosts.put(entry.key, entry);
+            frequentGhostBytes += entry.size;
+         } else {
+            break;
+         }
+      }
+
+      while (frequentGhostBytes > capacity && !frequentGhosts.isEmpty()) {
+         frequentGhostBytes -= removeEldest(frequentGhosts, true).size;
+      }
+   }
+
+   private Entry removeEldest(final LinkedHashMap<Key, Entry> list, final boolean forget) {
+      final Iterator<Entry> iterator = list.values().iterator();
+      final Entry entry = iterator.next();
+      iterator.remove();
+
+      if (forget) {
+         forget(entry.key);
+      }
+
+      return entry;
+   }
+
+   private void remove(final Key key) {
+      Entry entry;
+
+      if ((entry = recent.remove(key)) != null) {
+         recentBytes -= entry.size;
+      } else if ((entry = frequent.remove(key)) != null) {
+         frequentBytes -= entry.size;
+      } else if ((entry = recentGhosts.remove(key)) != null) {
+         recentGhostBytes -= entry.size;
+      } else if ((entry = frequentGhosts.remove(key)) != null) {
+         frequentGhostBytes -= entry.size;
+      }
+   }
+
+   /**
+    * Drops the per-content index entry of a key which is no longer in any list.
+    */
+   private void forget(final Key key) {
+      final Set<Integer> sequenceNumbers = contents.get(key.contentId);
+
+      if (sequenceNumbers != null) {
+         sequenceNumbers.remove(key.sequenceNumber);
+
+         if (sequenceNumbers.isEmpty()) {
+            contents.remove(key.contentId);
+         }
+      }
+   }
+
+   private Object fromArray(final byte[] data) {
+      if (!offHeap) {
+         return data;
+      }
+
+      final ByteBuffer buffer = ByteBuffer.allocateDirect(data.length);
+      buffer.put(data);
+      return buffer;
+   }
+
+   private byte[] toArray(final Object data) {
+      if (data instanceof byte[]) {
+         return (byte[]) data;
+      }
+
+      final ByteBuffer buffer = ((ByteBuffer) data).duplicate();
+      final byte[] array = new byte[buffer.capacity()];
+      buffer.rewind();
+      buffer.get(array);
+      return array;
+   }
+}
@@ -0,0 +1,46 @@
+package filesystem.db;
+
+/**
+ * Encodes the data of clusters before it is stored, and decodes it when it is read.
+ * <p/>
+ * Each stored cluster carries the tag of the codec which encoded it, so that clusters
+ * encoded by different codecs, or not encoded at all, can be mixed in a file system
+ * and read whatever its current codec. A codec must then be registered with every
+ * file system which may read data it has encoded.
+ *
+ * @author Edoardo Luppi
+ */
+public interface DbClusterCodec
+{
+   /**
+    * The tag of data which is stored as it is.
+    */
+   int IDENTITY = 0;
+
+   /**
+    * Returns the tag stored with the clusters encoded by this codec, from 1 to 127,
+    * which must never change once data has been stored.
+    */
+   int getTag();
+
+   /**
+    * Encodes the data of a cluster. The encoded data is stored only if it is smaller
+    * than the data itself.
+    *
+    * @param data
+    *           The data of the cluster, which must not be modified
+    * @return The encoded data
+    */
+   byte[] encode(final byte[] data);
+
+   /**
+    * Decodes the data of a cluster.
+    *
+    * @param data
+    *           The encoded data
+    * @param length
+    *           The length of the decoded data
+    * @return The decoded data
+    */
+   byte[] decode(final byte[] data, final int length);
+}
@@ -0,0 +1,95 @@
+package filesystem.db;
+
+import java.io.ByteArrayOutputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import filesystem.exceptions.FileSystemRuntimeException;
+
+/**
+ * Encodes clusters with the Deflate algorithm, which compresses text well at the cost
+ * of some processor time.
+ *
+ * @author Edoardo Luppi
+ */
+public final class DbDeflateCodec implements DbClusterCodec
+{
+   public static final int TAG = 1;
+
+   private final int level;
+
+   public DbDeflateCodec() {
+      this(Deflater.DEFAULT_COMPRESSION);
+   }
+
+   /**
+    * @param level
+    *           The compression level, from 0 to 9, or -1 for the default level
+    */
+   public DbDeflateCodec(final int level) {
+      if (level < -1 || level > 9) {
+         throw new IllegalArgumentException("The compression level must be between -1 and 9");
+      }
+
+      this.level = level;
+   }
+
+   @Override
+   public int getTag() {
+      return TAG;
+   }
+
+   @Override
+   public byte[] encode(final byte[] data) {
+      final Deflater deflater = new Deflater(level, true);
+
+      try {
+         deflater.setInput(data);
+         deflater.finish();
+
+         final ByteArrayOutputStream encoded = new ByteArrayOutputStream(data.length / 2 + 16);
+         final byte[] buffer = new byte[Math.max(64, Math.min(data.length, 8192))];
+
+         while (!deflater.finished()) {
+            encoded.write(buffer, 0, deflater.deflate(buffer));
+         }
+
+         return encoded.toByteArray();
+      } finally {
+         deflater.end();
+      }
+   }
+
+   @Override
+   public byte[] decode(final byte[] data, final int length) {
+      final Inflater inflater = new Inflater(true);
+
+      try {
+         inflater.setInput(data);
+
+         final byte[] decoded = new byte[length];
+         int decodedLength = 0;
+
+         while (decodedLength < length && !inflater.finished()) {
+            final int count = inflater.inflate(decoded, decodedLength, length - decodedLength);
+
+            if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+               break;
+            }
+
+            decodedLength += count;
+         }
+
+         if (decodedLength != length) {
+            throw new FileSystemRuntimeException("The data of a cluster is corrupted");
+         }
+
+         return decoded;
+      } catch (final DataFormatException e) {
+         throw new FileSystemRuntimeException("The data of a cluster is corrupted", e);
+      } finally {
+         inflater.end();
+      }
+   }
+}
@@ -1,13 +1,37 @@
 package filesystem.db;
 
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NoSuchElementException;
 import java.util.Optional;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import filesystem.DirectoryPath;
+import filesystem.DirectoryUsage;
 import filesystem.FilePath;
 import filesystem.FileSystem;
 import filesystem.Path;
+import filesystem.PathEntry;
+import filesystem.PathFilter;
+import filesystem.db.sql.Sql;
 
 /**
  * Represents a directory in a database file system.
@@ -17,13 +41,29 @@ import filesystem.Path;
 public class DbDirectory extends DbObject implements DirectoryPath
 {
    /**
-    * The paths which resides under this path.
+    * The value stored in the path type column for directories.
     */
-   private Collection<Path> children;
+   static final String PATH_TYPE = "D";
+
+   /**
+    * The number of entries read at a time by {@link #entries()}.
+    */
+   private static final int ENTRY_PAGE_SIZE = 1000;
+
+   /**
+    * The paths which resides under this path, keyed and sorted by name, or null if none
+    * has been read yet. The map only holds the paths which have been looked up by name
+    * until every child is read, as told by {@link #childrenLoaded}.
+    * The map is thread-safe, as asynchronous operations may share the directory.
+    */
+   private volatile NavigableMap<String, Path> children;
+   private volatile boolean childrenLoaded;
    
    /**
     * Construct a new directory in the belonging file system.
     * This will only be stored in memory until {@link #create()} is called.
+    * Lookups of a stored path through its directory return the instance shared by the
+    * file system, not one constructed this way.
     *
     * @param fileSystem
     *           The file system to which this directory belongs to
@@ -35,22 +75,33 @@ public class DbDirectory extends DbObject implements DirectoryPath
    public DbDirectory(final FileSystem fileSystem, final DirectoryPath parent, final String name) {
       super(fileSystem, parent, name);
    }
+
+   /**
+    * Constructs a directory which has already been read from the database.
+    */
+   DbDirectory(final FileSystem fileSystem, final DirectoryPath parent, final String name, final long id) {
+      super(fileSystem, parent, name, id);
+   }
    
    @Override
    public DirectoryPath create() {
       return (DirectoryPath) super.create();
    }
    
+   /**
+    * Only this directory row is deleted, which makes the whole subtree invisible at once.
+    * The rows and clusters under it are reclaimed by the garbage collector.
+    */
    @Override
    public DirectoryPath delete() {
-      final Collection<Path> children = getChildren();
-      
-      for (final Path child : children) {
-         child.delete();
+      final DirectoryPath parent = super.delete();
+
+      synchronized (this) {
+         children = null;
+         childrenLoaded = false;
       }
-      
-      children.clear();
-      return super.delete();
+
+      return parent;
    }
    
    @Override
@@ -65,14 +116,15 @@ public class DbDirectory extends DbObject implements DirectoryPath
       final String[] paths = name.split("/", 2);
       
       // We check if there is already a child path with that name.
-      final Collection<Path> children = getChildren();
-      final Optional<Path> childPath = children.stream()
-            .filter(cp -> cp instanceof DirectoryPath && cp.getName().equals(paths[0]))
-            .findFirst();
+      final Path childPath = getChild(paths[0]);
       DirectoryPath child = null;
       
-      if (childPath.isPresent()) {
-         child = (DirectoryPath) childPath.get();
+      if (childPath != null) {
+         if (!(childPath instanceof DirectoryPath)) {
+            FileSystem.error(FileSystem.PATH_ALREADY_EXISTS);
+         }
+         
+         child = (DirectoryPath) childPath;
          
          if (paths.length == 1) {
             // Being that this directory is the last in the chain (see above),
@@ -82,7 +134,6 @@ public class DbDirectory extends DbObject implements DirectoryPath
          }
       } else {
          child = new DbDirectory(getFileSystem(), this, paths[0]).create();
-         children.add(child);
          
          if (paths.length == 1) {
             return child;
@@ -103,46 +154,73 @@ public class DbDirectory extends DbObject implements DirectoryPath
       final int lastSeparatorIndex = name.lastIndexOf("/");
       
       if (lastSeparatorIndex < 0) {
-         final Collection<Path> children = getChildren();
-         
          // We check if a path with the same name already exists under this path.
-         final Optional<Path> childPath = children.stream()
-               .filter(cp -> cp.getName().equals(name))
-               .findFirst();
-         
-         if (childPath.isPresent()) {
+         if (getChild(name) != null) {
             FileSystem.error(FileSystem.PATH_ALREADY_EXISTS);
          }
          
-         final FilePath file = new DbFile(getFileSystem(), this, name).create();
-         children.add(file);
-         return file;
+         return new DbFile(getFileSystem(), this, name).create();
       }
       
       return createDirectory(name.substring(0, lastSeparatorIndex))
             .createFile(name.substring(lastSeparatorIndex + 1));
    }
    
+   /**
+    * The subtree is copied by the database, a directory at a time, without being read:
+    * copied files share the content of their source until either of them is written.
+    * The copied directories carry the space used by their source.
+    */
    @Override
    public DirectoryPath copyTo(final DirectoryPath path) {
-      final DirectoryPath copiedDirectory = new DbDirectory(getFileSystem(), path, getName()).create();
-      final Collection<Path> copiedDirectoryChildren = copiedDirectory.getChildren();
+      final DbDirectory copiedDirectory = new DbDirectory(getFileSystem(), path, getName());
       
-      for (final Path child : getChildren()) {
-         copiedDirectoryChildren.add(child.copyTo(copiedDirectory));
-      }
+      new DbSandbox(getDbFileSystem()) {
+         @Override
+         public void run(final Connection connection) throws SQLException {
+            final Usage usage = sqlSelectUsage(connection, getId());
+            copiedDirectory.create();
+            sqlCopyChildren(connection, copiedDirectory.getId());
+
+            try (final PreparedStatement statement = connection.prepareStatement(Sql.UPDATE_PATH_USAGE)) {
+               statement.setLong(1, usage.bytes);
+               statement.setLong(2, usage.clusters);
+               statement.setLong(3, copiedDirectory.getId());
+               statement.executeUpdate();
+            }
+
+            final Usage copiedUsage = sqlSelectUsage(connection, copiedDirectory.getId());
+            sqlAddUsage(connection, getAncestorIds(copiedUsage.ancestry), usage.bytes, usage.clusters);
+         }
+      }.execute(false);
       
       return copiedDirectory;
    }
    
+   /**
+    * Resolutions are served by the file system path cache when possible.
+    */
    @Override
    public Optional<Path> getPath(final String name) {
+      final DbPathCache pathCache = getDbFileSystem().getPathCache();
+      final String pathKey = getChildPathKey(name);
+      final Optional<Path> cachedPath = pathCache.get(pathKey);
+      
+      if (cachedPath != null) {
+         return cachedPath;
+      }
+      
+      final long generation = pathCache.getGeneration();
+      final Optional<Path> path = resolvePath(name);
+      pathCache.put(pathKey, path, generation);
+      return path;
+   }
+   
+   private Optional<Path> resolvePath(final String name) {
       // The first entry represents the path to search for under this path while
       // the second entry represents the remaining paths to go through.
       final String[] paths = name.split("/", 2);
-      final Optional<Path> childPath = getChildren().stream()
-            .filter(cp -> cp.getName().equals(paths[0]))
-            .findFirst();
+      final Optional<Path> childPath = Optional.ofNullable(getChild(paths[0]));
       final boolean found = childPath.isPresent();
       
       // If the requested path doesn't consist of multiple child paths or
@@ -155,17 +233,328 @@ public class DbDirectory extends DbObject implements DirectoryPath
       return ((DirectoryPath) childPath.get()).getPath(paths[1]);
    }
    
+   /**
+    * Returns every path under the current path, sorted by name.
+    * The returned collection is a read-only view which reflects later changes.
+    */
    @Override
    public Collection<Path> getChildren() {
-      if (children == null) {
-         children = new ArrayList<>();
+      return Collections.unmodifiableCollection(getChildMap().values());
+   }
+   
+   /**
+    * The usage is maintained on the directory row, which is the only one read.
+    */
+   @Override
+   public DirectoryUsage getUsage() {
+      checkPath();
+
+      final DirectoryUsage[] usage = { null };
+
+      new DbSandbox(getDbFileSystem()) {
+         @Override
+         public void run(final Connection connection) throws SQLException {
+            final Usage storedUsage = sqlSelectUsage(connection, getId());
+
+            if (storedUsage == null) {
+               FileSystem.error(FileSystem.PATH_DOES_NOT_EXIST);
+            }
+
+            usage[0] = new DirectoryUsage(storedUsage.bytes, storedUsage.clusters, storedUsage.quota);
+         }
+      }.execute(false);
+
+      return usage[0];
+   }
+
+   @Override
+   public DirectoryPath setQuota(final long bytes) {
+      checkPath();
+
+      new DbSandbox(getDbFileSystem()) {
+         @Override
+         public void run(final Connection connection) throws SQLException {
+            try (final PreparedStatement statement = connection.prepareStatement(Sql.UPDATE_PATH_QUOTA)) {
+               if (bytes < 0) {
+                  statement.setNull(1, Types.BIGINT);
+               } else {
+                  statement.setLong(1, bytes);
+               }
+
+               statement.setLong(2, getId());
+               statement.executeUpdate();
+            }
+         }
+      }.execute(false);
+
+      return this;
+   }
+
+   /**
+    * The page is read by a single seek on the <code>(PARENT_ID, NAME)</code> index,
+    * which costs the same whatever the position of the page in the directory.
+    */
+   @Override
+   public List<PathEntry> list(final String afterName, final int limit) {
+      checkPath();
+
+      if (limit <= 0) {
+         return new ArrayList<>();
+      }
+
+      final List<PathEntry> entries = new ArrayList<>(Math.min(limit, ENTRY_PAGE_SIZE));
+
+      new DbSandbox(getDbFileSystem()) {
+         @Override
+         public void run(final Connection connection) throws SQLException {
+            sqlSelectEntries(connection, afterName, limit, entries);
+         }
+      }.execute(false);
+
+      return entries;
+   }
+
+   /**
+    * Each page is read inside its own transaction, when the previous one has been
+    * consumed, so that only a page of entries is held in memory at a time.
+    */
+   @Override
+   public Stream<PathEntry> entries() {
+      checkPath();
+
+      final Iterator<PathEntry> iterator = new Iterator<PathEntry>() {
+         private Iterator<PathEntry> page = Collections.emptyIterator();
+         private String lastName = null;
+         private boolean lastPage = false;
+
+         @Override
+         public boolean hasNext() {
+            if (!page.hasNext() && !lastPage) {
+               final List<PathEntry> entries = list(lastName, ENTRY_PAGE_SIZE);
+               lastPage = entries.size() < ENTRY_PAGE_SIZE;
+
+               if (!entries.isEmpty()) {
+                  lastName = entries.get(entries.size() - 1).getName();
+               }
+
+               page = entries.iterator();
+            }
+
+            return page.hasNext();
+         }
+
+         @Override
+         public PathEntry next() {
+            if (!hasNext()) {
+               throw new NoSuchElementException();
+            }
+
+            return page.next();
+         }
+      };
+
+      return StreamSupport.stream(
+            Spliterators.spliteratorUnknownSize(
+                  iterator,
+                  Spliterator.ORDERED | Spliterator.DISTINCT | Spliterator.NONNULL),
+            false);
+   }
+
+   /**
+    * The paths are read by a single query on the ancestry index.
+    */
+   @Override
+   public Collection<Path> getDescendants() {
+      checkPath();
+
+      final List<Path> descendants = new ArrayList<>();
+
+      new DbSandbox(getDbFileSystem()) {
+         @Override
+         public void run(final Connection connection) throws SQLException {
+            sqlSelectDescendants(connection, descendants);
+         }
+      }.execute(false);
+
+      return Collections.unmodifiableList(descendants);
+   }
+
+   @Override
+   public Stream<Path> walk() {
+      return find(PathFilter.any());
+   }
+
+   /**
+    * The filter is evaluated by the database on a range of the ancestry index, so that
+    * only the matching paths are read, a page at a time.
+    */
+   @Override
+   public Stream<Path> find(final PathFilter filter) {
+      checkPath();
+
+      final String[] subtreeAncestry = { null };
+
+      new DbSandbox(getDbFileSystem()) {
+         @Override
+         public void run(final Connection connection) throws SQLException {
+            subtreeAncestry[0] = selectSubtreeAncestry(connection, getId());
+         }
+      }.execute(false);
+
+      return StreamSupport.stream(new DbPathSpliterator(this, subtreeAncestry[0], filter), false);
+   }
+
+   /**
+    * The ancestry of the path is checked by a single query, without walking the tree.
+    */
+   @Override
+   public boolean contains(final Path path) {
+      checkPath();
+
+      if (!(path instanceof DbObject) || ((DbObject) path).getDbFileSystem() != getDbFileSystem() || !path.exists()) {
+         return false;
+      }
+
+      final boolean[] contained = { false };
+
+      new DbSandbox(getDbFileSystem()) {
+         @Override
+         public void run(final Connection connection) throws SQLException {
+            try (final PreparedStatement statement = connection.prepareStatement(Sql.SELECT_IS_ANCESTOR)) {
+               statement.setLong(1, ((DbObject) path).getId());
+               statement.setString(2, "%/" + getId() + "/%");
+
+               try (final ResultSet resultSet = statement.executeQuery()) {
+                  contained[0] = resultSet.next();
+               }
+            }
+         }
+      }.execute(false);
+
+      return contained[0];
+   }
+
+   /**
+    * Registers a path which has been created, renamed or moved under this directory,
+    * once the change has been committed. Nothing is done if no child has been read
+    * yet, as they will be read from the database anyway.
+    *
+    * @param name
+    *           The name of the child path
+    * @param child
+    *           The child path
+    */
+   void addChild(final String name, final Path child) {
+      final NavigableMap<String, Path> children = this.children;
+      
+      if (children != null) {
+         children.put(name, child);
+      }
+   }
+   
+   /**
+    * Unregisters a path which has been deleted, renamed or moved away from this
+    * directory, once the change has been committed.
+    *
+    * @param name
+    *           The name the child path had under this directory
+    * @param child
+    *           The child path
+    */
+   void removeChild(final String name, final Path child) {
+      final NavigableMap<String, Path> children = this.children;
+      
+      if (children != null) {
+         children.remove(name, child);
+      }
+   }
+   
+   /**
+    * Returns the child path with the given name, which is read by itself unless it has
+    * already been read or every child has been. A directory which does not exist, such
+    * as one under a deleted directory, has no children.
+    *
+    * @param name
+    *           The name of the child path
+    * @return The child path, or null if there is none
+    */
+   private Path getChild(final String name) {
+      if (!exists()) {
+         return null;
+      }
+
+      final NavigableMap<String, Path> cachedChildren = children;
+      final Path cachedChild = cachedChildren == null ? null : cachedChildren.get(name);
+
+      if (cachedChild != null || childrenLoaded) {
+         return cachedChild;
+      }
+
+      final Path[] child = { null };
+
+      new DbSandbox(getDbFileSystem()) {
+         @Override
+         public void run(final Connection connection) throws SQLException {
+            child[0] = sqlSelectChild(connection, name);
+         }
+      }.execute(false);
+
+      if (child[0] == null) {
+         return null;
+      }
+
+      final NavigableMap<String, Path> loadedChildren;
+
+      synchronized (this) {
+         if (children == null) {
+            children = new ConcurrentSkipListMap<>();
+         }
+
+         loadedChildren = children;
+      }
+
+      final Path loadedChild = loadedChildren.putIfAbsent(name, child[0]);
+
+      // A child read by a transaction may be one of its own uncommitted changes.
+      getDbFileSystem().afterRollback(() -> loadedChildren.remove(name, child[0]));
+      return loadedChild == null ? child[0] : loadedChild;
+   }
+
+   /**
+    * Returns the children of this directory, loading them on first use. A directory
+    * which does not exist, such as one under a deleted directory, has no children.
+    */
+   private NavigableMap<String, Path> getChildMap() {
+      if (!exists()) {
+         return Collections.emptyNavigableMap();
+      }
+
+      if (!childrenLoaded) {
+         final NavigableMap<String, Path> loadedChildren = new ConcurrentSkipListMap<>();
          
-         new DbSandbox() {
+         new DbSandbox(getDbFileSystem()) {
             @Override
-            public void run() {
-               sqlSelect();
+            public void run(final Connection connection) throws SQLException {
+               sqlSelectChildren(connection, loadedChildren);
             }
          }.execute(false);
+
+         synchronized (this) {
+            if (!childrenLoaded) {
+               children = loadedChildren;
+               childrenLoaded = true;
+            }
+         }
+
+         // Children loaded by a transaction may include its own uncommitted changes.
+         getDbFileSystem().afterRollback(() -> {
+            synchronized (this) {
+               if (children == loadedChildren) {
+                  children = null;
+                  childrenLoaded = false;
+               }
+            }
+         });
       }
       
       return children;
@@ -176,20 +565,85 @@ public class DbDirectory extends DbObject implements DirectoryPath
       return (DirectoryPath) super.rename(newName);
    }
 
+   @Override
+   public CompletableFuture<DirectoryPath> createAsync() {
+      return executeAsync(this::create);
+   }
+
+   @Override
+   public CompletableFuture<DirectoryPath> renameAsync(final String newName) {
+      return executeAsync(() -> rename(newName));
+   }
+
+   @Override
+   public CompletableFuture<DirectoryPath> moveToAsync(final DirectoryPath path) {
+      return executeAsync(() -> moveTo(path));
+   }
+
+   @Override
+   public CompletableFuture<DirectoryPath> copyToAsync(final DirectoryPath path) {
+      return executeAsync(() -> copyTo(path));
+   }
+
+   @Override
+   public CompletableFuture<DirectoryPath> createDirectoryAsync(final String name) {
+      return executeAsync(() -> createDirectory(name));
+   }
+
+   @Override
+   public CompletableFuture<FilePath> createFileAsync(final String name) {
+      return executeAsync(() -> createFile(name));
+   }
+
+   @Override
+   public CompletableFuture<Optional<Path>> getPathAsync(final String name) {
+      return executeAsync(() -> getPath(name));
+   }
+
+   @Override
+   public CompletableFuture<Collection<Path>> getChildrenAsync() {
+      return executeAsync(this::getChildren);
+   }
+
+   @Override
+   public CompletableFuture<DirectoryUsage> getUsageAsync() {
+      return executeAsync(this::getUsage);
+   }
+
+   @Override
+   public CompletableFuture<DirectoryPath> setQuotaAsync(final long bytes) {
+      return executeAsync(() -> setQuota(bytes));
+   }
+
+   @Override
+   public CompletableFuture<List<PathEntry>> listAsync(final String afterName, final int limit) {
+      return executeAsync(() -> list(afterName, limit));
+   }
+
+   @Override
+   public CompletableFuture<Collection<Path>> getDescendantsAsync() {
+      return executeAsync(this::getDescendants);
+   }
+
+   @Override
+   public CompletableFuture<Boolean> containsAsync(final Path path) {
+      return executeAsync(() -> contains(path));
+   }
+
    /**
     * Persists this directory instance into the appropriate database table(s).
     */
    @Override
-   protected boolean sqlInsert() {
-      return true;
+   protected boolean sqlInsert(final Connection connection) throws SQLException {
+      return insertPath(connection, PATH_TYPE, 0);
    }
    
    /**
-    * Queries the appropriate database table(s) for retrieving the child paths.
+    * Queries the appropriate database table(s) for this directory existence.
     */
    @Override
-   protected boolean sqlSelect() {
-      return true;
+   protected boolean sqlSelect(final Connection connection) throws SQLException {
+      return selectPath(connection, PATH_TYPE);
    }
    
    /**
@@ -197,8 +651,8 @@ public class DbDirectory extends DbObject implements DirectoryPath
     * table(s)
     */
    @Override
-   protected boolean sqlUpdate() {
-      return true;
+   protected boolean sqlUpdate(final Connection connection) throws SQLException {
+      return updatePath(connection);
    }
    
    /**
@@ -206,7 +660,170 @@ public class DbDirectory extends DbObject implements DirectoryPath
     * table(s).
     */
    @Override
-   protected boolean sqlDelete() {
-      return true;
+   protected boolean sqlDelete(final Connection connection) throws SQLException {
+      getDbFileSystem().getGarbageCollector().queuePath(connection, getId());
+      return deletePath(connection);
+   }
+
+   /**
+    * Copies every path under this directory under its copy, one level at a time.
+    * The copy is skipped when it lies under this directory.
+    *
+    * @param connection
+    *           The connection on which the statements are executed
+    * @param copyId
+    *           The identifier of the copy of this directory
+    */
+   private void sqlCopyChildren(final Connection connection, final long copyId) throws SQLException {
+      final Deque<long[]> directories = new ArrayDeque<>();
+      directories.add(new long[] { getId(), copyId });
+
+      try (final PreparedStatement copy = connection.prepareStatement(Sql.COPY_CHILD_PATHS);
+            final PreparedStatement reference = connection.prepareStatement(Sql.REFERENCE_CHILD_CONTENTS);
+            final PreparedStatement select = connection.prepareStatement(Sql.SELECT_COPIED_DIRECTORIES)) {
+         long[] directory;
+
+         while ((directory = directories.poll()) != null) {
+            copy.setLong(1, directory[1]);
+            copy.setLong(2, directory[1]);
+            copy.setLong(3, directory[0]);
+            copy.setLong(4, copyId);
+
+            if (copy.executeUpdate() == 0) {
+               continue;
+            }
+
+            reference.setLong(1, directory[1]);
+            reference.setLong(2, directory[1]);
+            reference.executeUpdate();
+
+            select.setLong(1, directory[1]);
+            select.setLong(2, directory[0]);
+            select.setLong(3, copyId);
+
+            try (final ResultSet resultSet = select.executeQuery()) {
+               while (resultSet.next()) {
+                  directories.add(new long[] { resultSet.getLong("SOURCE_ID"), resultSet.getLong("COPY_ID") });
+               }
+            }
+         }
+      }
+   }
+
+   /**
+    * Queries a page of the child paths, following a name, as entries.
+    */
+   private void sqlSelectEntries(
+         final Connection connection,
+         final String afterName,
+         final int limit,
+         final List<PathEntry> entries) throws SQLException {
+      try (final PreparedStatement statement = connection.prepareStatement(Sql.SELECT_CHILD_ENTRIES)) {
+         statement.setLong(1, getId());
+         statement.setString(2, afterName == null ? "" : afterName);
+         statement.setInt(3, limit);
+
+         try (final ResultSet resultSet = statement.executeQuery()) {
+            while (resultSet.next()) {
+               entries.add(new PathEntry(
+                     resultSet.getLong("ID"),
+                     resultSet.getString("NAME"),
+                     PATH_TYPE.equals(resultSet.getString("PATH_TYPE")),
+                     resultSet.getLong("DATA_LENGTH")));
+            }
+         }
+      }
+   }
+
+   /**
+    * Reads every path under this directory. As parents are read before their children,
+    * each path is attached to an instance of its parent which has already been read.
+    * Paths which are already represented by an instance reuse it.
+    */
+   private void sqlSelectDescendants(final Connection connection, final List<Path> descendants)
+         throws SQLException {
+      final DbIdentityMap identityMap = getDbFileSystem().getIdentityMap();
+      final Map<Long, DbDirectory> directories = new HashMap<>();
+      directories.put(getId(), this);
+
+      try (final PreparedStatement statement = connection.prepareStatement(Sql.SELECT_DESCENDANT_PATHS)) {
+         final String subtreeAncestry = selectSubtreeAncestry(connection, getId());
+         statement.setString(1, subtreeAncestry + "%");
+         statement.setString(2, subtreeAncestry + "%");
+
+         try (final ResultSet resultSet = statement.executeQuery()) {
+            while (resultSet.next()) {
+               final long id = resultSet.getLong("ID");
+               final DbDirectory parent = directories.get(resultSet.getLong("PARENT_ID"));
+               final boolean directory = PATH_TYPE.equals(resultSet.getString("PATH_TYPE"));
+               DbObject descendant = identityMap.get(id);
+
+               if (descendant == null) {
+                  final String name = resultSet.getString("NAME");
+                  descendant = directory
+                        ? new DbDirectory(getDbFileSystem(), parent, name, id)
+                        : new DbFile(getDbFileSystem(), parent, name, id, DbFile.readContentId(resultSet));
+                  descendant = descendant.canonical();
+               }
+
+               if (directory) {
+                  directories.put(id, (DbDirectory) descendant);
+               }
+
+               descendants.add(descendant);
+            }
+         }
+      }
+   }
+
+   /**
+    * Queries the appropriate database table(s) for retrieving the child paths.
+    * Paths which are already represented by an instance reuse it.
+    */
+   private void sqlSelectChildren(final Connection connection, final NavigableMap<String, Path> children)
+         throws SQLException {
+      try (final PreparedStatement statement = connection.prepareStatement(Sql.SELECT_CHILD_PATHS)) {
+         statement.setLong(1, getId());
+
+         try (final ResultSet resultSet = statement.executeQuery()) {
+            while (resultSet.next()) {
+               final String name = resultSet.getString("NAME");
+               children.put(name, readChild(resultSet, name));
+            }
+         }
+      }
+   }
+
+   /**
+    * Queries the child path with the given name, through the index on the parent and name.
+    *
+    * @return The child path, or null if there is none
+    */
+   private Path sqlSelectChild(final Connection connection, final String name) throws SQLException {
+      try (final PreparedStatement statement = connection.prepareStatement(Sql.SELECT_PATH_BY_NAME)) {
+         statement.setLong(1, getId());
+         statement.setString(2, name);
+
+         try (final ResultSet resultSet = statement.executeQuery()) {
+            return resultSet.next() ? readChild(resultSet, name) : null;
+         }
+      }
+   }
+
+   /**
+    * Returns the instance which represents a child row, reusing the existing one if any.
+    */
+   private Path readChild(final ResultSet resultSet, final String name) throws SQLException {
+      final long id = resultSet.getLong("ID");
+      DbObject child = getDbFileSystem().getIdentityMap().get(id);
+
+      if (child == null) {
+         child = PATH_TYPE.equals(resultSet.getString("PATH_TYPE"))
+               ? new DbDirectory(getDbFileSystem(), this, name, id)
+               : new DbFile(getDbFileSystem(), this, name, id, DbFile.readContentId(resultSet));
+         child = child.canonical();
+      }
+
+      return child;
    }
 }
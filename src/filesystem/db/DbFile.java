@@ -1,19 +1,42 @@
 package filesystem.db;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.nio.ByteBuffer;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Array;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.sql.Statement;
+import java.sql.Types;
 import java.util.ArrayList;
-import java.util.Collection;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.IntStream;
 
 import filesystem.Cluster;
 import filesystem.DirectoryPath;
 import filesystem.FilePath;
 import filesystem.FileSystem;
+import filesystem.db.sql.Sql;
 
 /**
  * Represents a file in a database file system.
@@ -22,18 +45,30 @@ import filesystem.FileSystem;
  */
 public class DbFile extends DbObject implements FilePath
 {
+   /**
+    * The value stored in the path type column for files.
+    */
+   static final String PATH_TYPE = "F";
+
    /**
     * In this database file system cluster implementation, the same concept of a generic
     * {@link Cluster} is applied.
     * Files data is stored in chunks of the same size and each chunk is represented
     * by an instance of this class. Each instance of this class has a corresponding row
-    * in the appropriate database table.
+    * in the appropriate database table, unless it is part of an extent.
+    * <p/>
+    * Internally, an instance may also hold a run of consecutive clusters, which is
+    * stored as an extent by a single row.
+    * <p/>
+    * A cluster keeps its data only until it is allocated; afterwards the data is read
+    * through the file system cluster cache.
     *
     * @author Edoardo Luppi
     */
    public static class DbCluster implements Cluster
    {
-      private final FilePath parent;
+      private final DbFile parent;
+      private final int sequenceNumber;
       private byte[] data;
       
       /**
@@ -42,11 +77,14 @@ public class DbFile extends DbObject implements FilePath
        *
        * @param parent
        *           The file which this cluster belongs to
+       * @param sequenceNumber
+       *           The position of this cluster inside the file
        * @param data
        *           The data stored by this cluster
        */
-      private DbCluster(final FilePath parent, final byte[] data) {
+      private DbCluster(final DbFile parent, final int sequenceNumber, final byte[] data) {
          this.parent = parent;
+         this.sequenceNumber = sequenceNumber;
          this.data = data;
       }
       
@@ -57,15 +95,27 @@ public class DbFile extends DbObject implements FilePath
       
       @Override
       public byte[] getData() {
-         return data;
+         if (data != null) {
+            return data;
+         }
+
+         final List<byte[]> stored = parent.readClusters(sequenceNumber, 1);
+         return stored.isEmpty() ? null : stored.get(0).clone();
       }
       
       @Override
       public Cluster allocate() {
-         new DbSandbox() {
+         new DbSandbox(parent.getDbFileSystem()) {
             @Override
-            public void run() {
-               sqlInsert();
+            public void run(final Connection connection) throws SQLException {
+               parent.ownContent(connection, true);
+               parent.sqlSplitExtents(connection, sequenceNumber, sequenceNumber + 1);
+
+               if (sqlInsert(connection)) {
+                  parent.invalidateClusters(sequenceNumber, sequenceNumber + 1);
+                  parent.sqlUpdateLength(connection);
+                  data = null;
+               }
             }
          }.execute(false);
 
@@ -74,10 +124,15 @@ public class DbFile extends DbObject implements FilePath
       
       @Override
       public FilePath free() {
-         new DbSandbox() {
+         new DbSandbox(parent.getDbFileSystem()) {
             @Override
-            public void run() {
-               if (sqlDelete()) {
+            public void run(final Connection connection) throws SQLException {
+               parent.ownContent(connection, true);
+               parent.sqlSplitExtents(connection, sequenceNumber, sequenceNumber + 1);
+
+               if (sqlDelete(connection)) {
+                  parent.invalidateClusters(sequenceNumber, sequenceNumber + 1);
+                  parent.sqlUpdateLength(connection);
                   data = null;
                }
             }
@@ -86,23 +141,206 @@ public class DbFile extends DbObject implements FilePath
          return getParent();
       }
       
-      private boolean sqlInsert() {
+      private boolean sqlInsert(final Connection connection) throws SQLException {
+         try (final ClusterBatch batch = ClusterBatch.insert(connection, 1)) {
+            batch.add(this);
+         }
+
          return true;
       }
       
-      private boolean sqlDelete() {
-         return true;
+      private boolean sqlDelete(final Connection connection) throws SQLException {
+         return parent.sqlDeleteCluster(connection, sequenceNumber);
       }
    }
    
    /**
-    * The list of clusters used by this file.
+    * The data of a cluster as it is stored, together with the tag of its codec.
+    */
+   private static final class EncodedData
+   {
+      private final int codec;
+
+      /**
+       * The length of the decoded data.
+       */
+      private final int length;
+      private final byte[] data;
+
+      private EncodedData(final int codec, final int length, final byte[] data) {
+         this.codec = codec;
+         this.length = length;
+         this.data = data;
+      }
+   }
+
+   /**
+    * Inserts or updates clusters through a JDBC batch, which is executed every time
+    * it reaches the file system batch size, in clusters or in bytes.
+    * <p/>
+    * The clusters of a batch are encoded together, by the file system codec.
+    * When deduplication is enabled, the blocks of a batch are looked up and referenced
+    * together before the clusters are written. The blocks which the updated clusters
+    * pointed to are released as a range, so an update batch is executed whenever its
+    * clusters stop being consecutive.
     */
-   private List<Cluster> clusters;
+   private static final class ClusterBatch implements AutoCloseable
+   {
+      private final Connection connection;
+      private final PreparedStatement statement;
+      private final int batchSize;
+      private final boolean update;
+
+      /**
+       * The content which receives the clusters, or 0 for the content of their file.
+       */
+      private final long contentId;
+      private final List<DbCluster> clusters;
+      private long bytes;
+
+      private ClusterBatch(
+            final Connection connection,
+            final PreparedStatement statement,
+            final int batchSize,
+            final boolean update,
+            final long contentId) {
+         this.connection = connection;
+         this.statement = statement;
+         this.batchSize = batchSize;
+         this.update = update;
+         this.contentId = contentId;
+         clusters = new ArrayList<>(batchSize);
+         bytes = 0;
+      }
+
+      static ClusterBatch insert(final Connection connection, final int batchSize) throws SQLException {
+         return insert(connection, batchSize, 0);
+      }
+
+      static ClusterBatch insert(final Connection connection, final int batchSize, final long contentId)
+            throws SQLException {
+         return new ClusterBatch(connection, connection.prepareStatement(Sql.INSERT_CLUSTER), batchSize, false, contentId);
+      }
+
+      static ClusterBatch update(final Connection connection, final int batchSize) throws SQLException {
+         return new ClusterBatch(connection, connection.prepareStatement(Sql.UPDATE_CLUSTER), batchSize, true, 0);
+      }
+
+      void add(final DbCluster cluster) throws SQLException {
+         if (update
+               && !clusters.isEmpty()
+               && clusters.get(clusters.size() - 1).sequenceNumber + 1 != cluster.sequenceNumber) {
+            flush();
+         }
+
+         clusters.add(cluster);
+         bytes += cluster.data.length;
+
+         if (clusters.size() >= batchSize
+               || bytes >= (long) batchSize * cluster.parent.getDbFileSystem().getClusterSize()) {
+            flush();
+         }
+      }
+
+      /**
+       * Executes the clusters which have been added since the last execution.
+       */
+      void flush() throws SQLException {
+         if (clusters.isEmpty()) {
+            return;
+         }
+
+         final DbFile file = clusters.get(0).parent;
+         final DbFileSystem fileSystem = file.getDbFileSystem();
+         final int clusterSize = fileSystem.getClusterSize();
+         final long contentId = this.contentId != 0 ? this.contentId : file.getContentId();
+         final Long[] blockIds = fileSystem.isDeduplicationEnabled()
+               ? sqlReferenceBlocks(connection, fileSystem, clusters)
+               : null;
+         final EncodedData[] encoded = blockIds == null ? encode(fileSystem.getCodec(), clusters) : null;
+
+         if (update) {
+            sqlReleaseBlocks(
+                  connection,
+                  contentId,
+                  clusters.get(0).sequenceNumber,
+                  clusters.get(clusters.size() - 1).sequenceNumber + 1);
+         }
+
+         for (int i = 0; i < clusters.size(); i++) {
+            final DbCluster cluster = clusters.get(i);
+            final int codec = encoded == null ? DbClusterCodec.IDENTITY : encoded[i].codec;
+            final byte[] data = encoded == null ? null : encoded[i].data;
+            final Long blockId = blockIds == null ? null : blockIds[i];
+            final int first = update ? 1 : 3;
+
+            if (!update) {
+               statement.setLong(1, contentId);
+               statement.setInt(2, cluster.sequenceNumber);
+            }
+
+            statement.setInt(first, Math.max(1, (cluster.data.length + clusterSize - 1) / clusterSize));
+            statement.setInt(first + 1, cluster.data.length);
+            statement.setInt(first + 2, codec);
+            statement.setBytes(first + 3, data);
+            statement.setObject(first + 4, blockId, Types.BIGINT);
+
+            if (update) {
+               statement.setLong(6, contentId);
+               statement.setInt(7, cluster.sequenceNumber);
+            }
+
+            statement.addBatch();
+         }
+
+         statement.executeBatch();
+         clusters.clear();
+         bytes = 0;
+      }
+
+      @Override
+      public void close() throws SQLException {
+         statement.close();
+      }
+   }
    
+   /**
+    * Receives the data of the clusters of a file, in sequence order.
+    */
+   @FunctionalInterface
+   private interface ClusterConsumer
+   {
+      void accept(byte[] data) throws IOException;
+   }
+
+   /**
+    * The minimum number of bytes of a batch of clusters for it to be encoded, or decoded,
+    * on several threads.
+    */
+   private static final long PARALLEL_CODING_LENGTH = 64 * 1024;
+
+   /**
+    * The value of {@link #contentId} when it has to be read from the database.
+    */
+   private static final long UNKNOWN_CONTENT = -1;
+
+   /**
+    * The SQL state of a statement which fails on a unique index.
+    */
+   private static final String DUPLICATE_KEY_STATE = "23505";
+
+   /**
+    * The identifier of the content which holds the clusters of this file, which may
+    * be shared with copies of the file, or 0 if the file has never been written.
+    * A content given to the file by a transaction is only set once it commits.
+    */
+   private volatile long contentId;
+
    /**
     * Constructs a new file in the belonging file system.
     * This instance is only stored in memory until {@link #create()} is called.
+    * Lookups of a stored path through its directory return the instance shared by the
+    * file system, not one constructed this way.
     *
     * @param fileSystem
     *           The file system which this file belongs to
@@ -113,6 +351,20 @@ public class DbFile extends DbObject implements FilePath
     */
    public DbFile(final FileSystem fileSystem, final DirectoryPath parent, final String name) {
       super(fileSystem, parent, name);
+      contentId = UNKNOWN_CONTENT;
+   }
+
+   /**
+    * Constructs a file which has already been read from the database.
+    */
+   DbFile(
+         final FileSystem fileSystem,
+         final DirectoryPath parent,
+         final String name,
+         final long id,
+         final long contentId) {
+      super(fileSystem, parent, name, id);
+      this.contentId = contentId;
    }
    
    @Override
@@ -120,12 +372,6 @@ public class DbFile extends DbObject implements FilePath
       return (FilePath) super.create();
    }
    
-   @Override
-   public DirectoryPath delete() {
-      deleteClusters();
-      return super.delete();
-   }
-   
    @Override
    public FilePath rename(final String newName) {
       return (FilePath) super.rename(newName);
@@ -136,10 +382,35 @@ public class DbFile extends DbObject implements FilePath
       return (FilePath) super.moveTo(path);
    }
 
+   /**
+    * The copy shares the content of this file until either of them is written,
+    * so no data is copied, except the data stored inline.
+    */
    @Override
    public FilePath copyTo(final DirectoryPath path) {
-      final FilePath copiedFile = new DbFile(getFileSystem(), path, getName()).create();
-      path.getChildren().add(copiedFile);
+      final DbFile copiedFile = new DbFile(getFileSystem(), path, getName());
+
+      new DbSandbox(getDbFileSystem()) {
+         @Override
+         public void run(final Connection connection) throws SQLException {
+            final long sharedContentId = sqlLockContent(connection);
+            copiedFile.contentId = sharedContentId;
+            copiedFile.create();
+
+            if (sharedContentId != 0) {
+               sqlUpdateReferences(connection, sharedContentId, 1);
+            } else {
+               try (final PreparedStatement statement = connection.prepareStatement(Sql.COPY_INLINE_DATA)) {
+                  statement.setLong(1, getId());
+                  statement.setLong(2, copiedFile.getId());
+                  statement.executeUpdate();
+               }
+            }
+
+            copiedFile.sqlUpdateLength(connection);
+         }
+      }.execute(false);
+
       return copiedFile;
    }
    
@@ -147,28 +418,22 @@ public class DbFile extends DbObject implements FilePath
    public byte[] getData() {
       checkPath();
 
-      if (clusters == null) {
-         return new byte[0];
-      }
-      
-      final int clusterSize = getFileSystem().getClusterSize();
-      final ByteBuffer buffer = ByteBuffer.allocate(clusters.size() * clusterSize);
-      
-      for (int i = 0; i < clusters.size(); i++) {
-         buffer.put(clusters.get(i).getData(), i * clusterSize, clusterSize);
+      final ByteArrayOutputStream data = new ByteArrayOutputStream();
+
+      try {
+         forEachCluster(data::write);
+      } catch (final IOException e) {
+         throw new UncheckedIOException(e);
       }
-      
-      return buffer.array();
+
+      return data.toByteArray();
    }
 
    public File getFile() {
-      final int clusterSize = getFileSystem().getClusterSize();
       final File file = new File(getName());
       
       try (final OutputStream stream = new FileOutputStream(file)) {
-         for (int i = 0; i < clusters.size(); i++) {
-            stream.write(clusters.get(i).getData(), i * clusterSize, clusterSize);
-         }
+         forEachCluster(stream::write);
       } catch (final IOException e) {
          e.printStackTrace();
       }
@@ -179,82 +444,1456 @@ public class DbFile extends DbObject implements FilePath
    @Override
    public FilePath setData(final byte[] file) {
       checkPath();
-      deleteClusters();
-      
-      final int clusterSize = getFileSystem().getClusterSize();
-      final ByteBuffer byteBuffer = ByteBuffer.wrap(file);
-      final byte[] slice = new byte[clusterSize];
-      final int slicesNumber = (int) Math.ceil((double) file.length / clusterSize);
       
-      for (int i = 0; i < slicesNumber; i++) {
-         byteBuffer.get(slice, i * clusterSize, clusterSize);
-         clusters.add(new DbCluster(this, slice).allocate());
-      }
+      new DbSandbox(getDbFileSystem()) {
+         @Override
+         public void run(final Connection connection) throws SQLException {
+            if (isInline(file.length)) {
+               sqlStoreInline(connection, file);
+               sqlUpdateLength(connection);
+               return;
+            }
+
+            sqlDeleteClusters(connection, ownContent(connection, false));
+
+            try (final ClusterBatch batch = ClusterBatch.insert(connection, getDbFileSystem().getBatchSize())) {
+               addClusters(batch, 0, file, true);
+               batch.flush();
+            }
+
+            sqlUpdateLength(connection);
+         }
+      }.execute(false);
       
       return this;
    }
 
    public FilePath setData(final File file) {
       checkPath();
-      deleteClusters();
-
-      try (FileInputStream stream = new FileInputStream(file)) {
-         final long fileSize = file.length();
-         final int clusterSize = getFileSystem().getClusterSize();
-         final int clustersAmount = (int) Math.ceil((double) fileSize / clusterSize);
-         final byte[] buffer = new byte[clusterSize];
 
-         for (int i = 0; i < clustersAmount; i++) {
-            stream.read(buffer, i * clusterSize, clusterSize);
-            clusters.add(new DbCluster(this, buffer).allocate());
+      if (isInline(file.length())) {
+         try {
+            return setData(Files.readAllBytes(file.toPath()));
+         } catch (final IOException e) {
+            throw new UncheckedIOException(e);
          }
+      }
+
+      try (final InputStream stream = new FileInputStream(file)) {
+         final int clusterSize = getDbFileSystem().getClusterSize();
+         final long fileLength = file.length();
+
+         new DbSandbox(getDbFileSystem()) {
+            @Override
+            public void run(final Connection connection) throws SQLException {
+               sqlDeleteClusters(connection, ownContent(connection, false));
+
+               try (final ClusterBatch batch = ClusterBatch.insert(connection, getDbFileSystem().getBatchSize())) {
+                  final byte[] buffer = new byte[getDbFileSystem().getExtentSize()];
+                  int length;
+
+                  for (long offset = 0; (length = readCluster(stream, buffer)) > 0; offset += length) {
+                     final int sequenceNumber = (int) (offset / clusterSize);
+                     addClusters(batch, sequenceNumber, Arrays.copyOf(buffer, length), offset + length >= fileLength);
+                  }
+
+                  batch.flush();
+               } catch (final IOException e) {
+                  throw new UncheckedIOException(e);
+               }
+
+               sqlUpdateLength(connection);
+            }
+         }.execute(false);
       } catch (final IOException e) {
-         e.printStackTrace();
+         throw new UncheckedIOException(e);
       }
       
       return this;
    }
    
-   private Collection<Cluster> getClusters() {
-      if (clusters == null) {
-         clusters = new ArrayList<>();
+   @Override
+   public byte[] read(final long offset, final int length) {
+      checkPath();
 
-         new DbSandbox() {
-            @Override
-            public void run() {
-               sqlSelect();
-            }
-         }.execute(false);
+      if (offset < 0 || length < 0) {
+         throw new IllegalArgumentException("The offset and length cannot be negative");
+      }
+
+      // The range is clamped to the end of the file, so that the memory used follows
+      // from the data read rather than from the requested length.
+      final long fileLength = length == 0 ? 0 : getLength();
+
+      if (offset >= fileLength) {
+         return new byte[0];
+      }
+
+      final int available = (int) Math.min(length, fileLength - offset);
+
+      // Every cluster but the last one is full, so the clusters covering the range
+      // follow from the cluster size.
+      final int clusterSize = getDbFileSystem().getClusterSize();
+      final int first = (int) (offset / clusterSize);
+      final int last = (int) ((offset + available - 1) / clusterSize);
+      final byte[] data = new byte[available];
+      int skip = (int) (offset % clusterSize);
+      int copied = 0;
+
+      for (final byte[] cluster : readClusters(first, last - first + 1)) {
+         if (skip >= cluster.length) {
+            break;
+         }
+
+         final int count = Math.min(cluster.length - skip, available - copied);
+         System.arraycopy(cluster, skip, data, copied, count);
+         copied += count;
+         skip = 0;
       }
 
-      return clusters;
+      return copied == available ? data : Arrays.copyOf(data, copied);
    }
-   
-   private void deleteClusters() {
-      for (final Cluster cluster : getClusters()) {
-         cluster.free();
+
+   @Override
+   public FilePath write(final long offset, final byte[] data) {
+      checkPath();
+
+      if (offset < 0) {
+         throw new IllegalArgumentException("The offset cannot be negative");
       }
-      
-      clusters.clear();
+
+      new DbSandbox(getDbFileSystem()) {
+         @Override
+         public void run(final Connection connection) throws SQLException {
+            writeRange(connection, offset, data);
+         }
+      }.execute(false);
+
+      return this;
    }
 
    @Override
-   protected boolean sqlSelect() {
-      return true;
+   public FilePath append(final byte[] data) {
+      checkPath();
+
+      new DbSandbox(getDbFileSystem()) {
+         @Override
+         public void run(final Connection connection) throws SQLException {
+            writeRange(connection, sqlLockLength(connection), data);
+         }
+      }.execute(false);
+
+      return this;
    }
-   
+
    @Override
-   protected boolean sqlInsert() {
-      return true;
+   public FilePath setLength(final long length) {
+      checkPath();
+
+      if (length < 0) {
+         throw new IllegalArgumentException("The length cannot be negative");
+      }
+
+      new DbSandbox(getDbFileSystem()) {
+         @Override
+         public void run(final Connection connection) throws SQLException {
+            final long currentLength = sqlLockLength(connection);
+
+            // Writing the last byte stores only the last cluster, the ones before it are left sparse.
+            if (length > currentLength) {
+               writeRange(connection, length - 1, new byte[1]);
+            } else if (length < currentLength) {
+               sqlTruncate(connection, length);
+            }
+         }
+      }.execute(false);
+
+      return this;
    }
-   
+
    @Override
-   protected boolean sqlUpdate() {
-      return true;
+   public SeekableByteChannel openChannel() {
+      checkPath();
+      return new DbFileChannel(this);
    }
-   
+
    @Override
-   protected boolean sqlDelete() {
-      return true;
+   public InputStream openInputStream() {
+      checkPath();
+      return new DbFileInputStream(this);
+   }
+
+   @Override
+   public OutputStream openOutputStream() {
+      checkPath();
+      return new DbFileOutputStream(this);
+   }
+
+   @Override
+   public CompletableFuture<FilePath> createAsync() {
+      return executeAsync(this::create);
+   }
+
+   @Override
+   public CompletableFuture<FilePath> renameAsync(final String newName) {
+      return executeAsync(() -> rename(newName));
+   }
+
+   @Override
+   public CompletableFuture<FilePath> moveToAsync(final DirectoryPath path) {
+      return executeAsync(() -> moveTo(path));
+   }
+
+   @Override
+   public CompletableFuture<FilePath> copyToAsync(final DirectoryPath path) {
+      return executeAsync(() -> copyTo(path));
+   }
+
+   @Override
+   public CompletableFuture<FilePath> setDataAsync(final byte[] file) {
+      return executeAsync(() -> setData(file));
+   }
+
+   @Override
+   public CompletableFuture<byte[]> getDataAsync() {
+      return executeAsync(this::getData);
+   }
+
+   /**
+    * Returns the length of the data in bytes, as stored on the file row.
+    */
+   long getLength() {
+      final long[] length = { 0 };
+
+      new DbSandbox(getDbFileSystem()) {
+         @Override
+         public void run(final Connection connection) throws SQLException {
+            try (final PreparedStatement statement = connection.prepareStatement(Sql.SELECT_PATH_LENGTH)) {
+               statement.setLong(1, getId());
+
+               try (final ResultSet resultSet = statement.executeQuery()) {
+                  if (resultSet.next()) {
+                     length[0] = resultSet.getLong("DATA_LENGTH");
+                  }
+               }
+            }
+         }
+      }.execute(false);
+
+      return length[0];
+   }
+
+   /**
+    * Reads the data of a range of clusters. The leading clusters found in the cluster
+    * cache are served from memory, and the rest of the range is read by a single query
+    * and cached. Extents are sliced into their clusters, and the clusters which are not
+    * stored are read as zeros.
+    *
+    * @param from
+    *           The sequence number of the first cluster
+    * @param count
+    *           The maximum number of clusters to read
+    * @return The data of the clusters, in sequence order, which must not be modified
+    */
+   List<byte[]> readClusters(final int from, final int count) {
+      final DbFileSystem fileSystem = getDbFileSystem();
+      final DbClusterCache cache = fileSystem.getClusterCache();
+      final long contentId = getContentId();
+      final List<byte[]> data = new ArrayList<>(count);
+      byte[] cached;
+
+      if (contentId == 0) {
+         return from == 0 && count > 0 ? readInlineData(count) : data;
+      }
+
+      while (data.size() < count && (cached = cache.get(contentId, from + data.size())) != null) {
+         data.add(cached);
+      }
+
+      if (data.size() == count) {
+         return data;
+      }
+
+      final long generation = cache.getGeneration();
+
+      new DbSandbox(fileSystem) {
+         @Override
+         public void run(final Connection connection) throws SQLException {
+            final boolean cacheable = fileSystem.isClusterCacheable(contentId);
+            final int clusterSize = fileSystem.getClusterSize();
+            final int next = from + data.size();
+            final int to = (int) Math.min((long) from + count, Integer.MAX_VALUE);
+            final List<Integer> sequenceNumbers = new ArrayList<>();
+            final List<Integer> clusterCounts = new ArrayList<>();
+            final List<EncodedData> stored = new ArrayList<>();
+
+            try (final PreparedStatement statement = connection.prepareStatement(Sql.SELECT_CLUSTER_RANGE)) {
+               statement.setLong(1, contentId);
+               statement.setLong(2, contentId);
+               statement.setInt(3, next);
+               statement.setInt(4, next);
+               statement.setInt(5, to);
+
+               try (final ResultSet resultSet = statement.executeQuery()) {
+                  while (resultSet.next()) {
+                     sequenceNumbers.add(resultSet.getInt("SEQUENCE_NUMBER"));
+                     clusterCounts.add(resultSet.getInt("CLUSTER_COUNT"));
+                     stored.add(new EncodedData(
+                           resultSet.getInt("CODEC"),
+                           resultSet.getInt("DATA_LENGTH"),
+                           resultSet.getBytes("DATA")));
+                  }
+               }
+            }
+
+            final byte[][] decoded = decode(fileSystem, stored);
+            final byte[] zeros = new byte[clusterSize];
+
+            for (int i = 0; i < decoded.length; i++) {
+               final int sequenceNumber = sequenceNumbers.get(i);
+               final int clusterCount = clusterCounts.get(i);
+
+               while (from + data.size() < sequenceNumber) {
+                  data.add(zeros);
+               }
+
+               for (int j = Math.max(0, next - sequenceNumber); j < clusterCount && sequenceNumber + j < to; j++) {
+                  final byte[] cluster = clusterCount == 1
+                        ? decoded[i]
+                        : Arrays.copyOfRange(
+                              decoded[i],
+                              j * clusterSize,
+                              Math.min((j + 1) * clusterSize, decoded[i].length));
+                  data.add(cluster);
+
+                  if (cacheable) {
+                     cache.put(contentId, sequenceNumber + j, cluster, generation);
+                  }
+               }
+            }
+
+            // The range may end with clusters which are not stored, before the last one.
+            if (from + data.size() < to) {
+               final int end = Math.min(sqlSelectClusterEnd(connection, contentId), to);
+
+               while (from + data.size() < end) {
+                  data.add(zeros);
+               }
+            }
+         }
+      }.execute(false);
+
+      return data;
+   }
+
+   /**
+    * Stores new clusters in a content which is not referenced by this file yet, inside
+    * a single transaction, so that the current data is kept until the content replaces it.
+    * The content stays queued for the garbage collector until then, and is reclaimed if no
+    * clusters are stored in it for the stream timeout.
+    *
+    * @param stagedContentId
+    *           The content which receives the clusters, or 0 to create it
+    * @param from
+    *           The sequence number of the first cluster
+    * @param data
+    *           The data of the clusters, in sequence order, all full
+    * @return The identifier of the content
+    */
+   long writeStagedClusters(final long stagedContentId, final int from, final List<byte[]> data) {
+      final long[] stagedContent = { stagedContentId };
+
+      new DbSandbox(getDbFileSystem()) {
+         @Override
+         public void run(final Connection connection) throws SQLException {
+            final DbGarbageCollector garbageCollector = getDbFileSystem().getGarbageCollector();
+
+            if (stagedContent[0] == 0) {
+               stagedContent[0] = sqlInsertContent(connection);
+               garbageCollector.queueStagedContent(connection, stagedContent[0]);
+            } else if (!garbageCollector.renewStagedContent(connection, stagedContent[0])) {
+               FileSystem.error(FileSystem.STREAM_EXPIRED);
+            }
+
+            sqlInsertClusters(connection, stagedContent[0], from, data);
+         }
+      }.execute(false);
+
+      return stagedContent[0];
+   }
+
+   /**
+    * Replaces the data of this file with a content written by {@link #writeStagedClusters},
+    * storing its last clusters in the same transaction. Without a staged content, the data
+    * is replaced by the given clusters alone, inline if they are made of a single small one.
+    *
+    * @param stagedContentId
+    *           The content which holds the previous clusters, or 0 if there is none
+    * @param from
+    *           The sequence number of the first cluster
+    * @param data
+    *           The data of the last clusters, in sequence order, all full but the last one
+    */
+   void replaceContent(final long stagedContentId, final int from, final List<byte[]> data) {
+      new DbSandbox(getDbFileSystem()) {
+         @Override
+         public void run(final Connection connection) throws SQLException {
+            if (stagedContentId == 0 && data.size() == 1 && isInline(data.get(0).length)) {
+               sqlStoreInline(connection, data.get(0));
+               sqlUpdateLength(connection);
+               return;
+            }
+
+            if (stagedContentId != 0
+                  && !getDbFileSystem().getGarbageCollector().unqueueStagedContent(connection, stagedContentId)) {
+               FileSystem.error(FileSystem.STREAM_EXPIRED);
+            }
+
+            final long replacingContentId = stagedContentId == 0 ? sqlInsertContent(connection) : stagedContentId;
+            sqlInsertClusters(connection, replacingContentId, from, data);
+            releaseContent(connection);
+
+            try (final PreparedStatement statement = connection.prepareStatement(Sql.UPDATE_PATH_CONTENT)) {
+               statement.setLong(1, replacingContentId);
+               statement.setLong(2, getId());
+               statement.executeUpdate();
+            }
+
+            setWrittenContentId(replacingContentId);
+            sqlUpdateLength(connection);
+         }
+      }.execute(false);
+   }
+
+   /**
+    * Drops a content written by {@link #writeStagedClusters} which will not replace the
+    * data of this file, so that the garbage collector deletes its clusters.
+    */
+   void discardStagedContent(final long stagedContentId) {
+      new DbSandbox(getDbFileSystem()) {
+         @Override
+         public void run(final Connection connection) throws SQLException {
+            getDbFileSystem().getGarbageCollector().releaseStagedContent(connection, stagedContentId);
+         }
+      }.execute(false);
+   }
+
+   private void sqlInsertClusters(
+         final Connection connection,
+         final long targetContentId,
+         final int from,
+         final List<byte[]> data) throws SQLException {
+      final ByteArrayOutputStream clusters = new ByteArrayOutputStream();
+
+      for (final byte[] cluster : data) {
+         clusters.write(cluster, 0, cluster.length);
+      }
+
+      try (final ClusterBatch batch =
+            ClusterBatch.insert(connection, getDbFileSystem().getBatchSize(), targetContentId)) {
+         addClusters(batch, from, clusters.toByteArray(), true);
+         batch.flush();
+      }
+   }
+
+   /**
+    * Removes a range of clusters of this file from the cluster cache.
+    *
+    * @param from
+    *           The sequence number of the first cluster
+    * @param to
+    *           The sequence number following the last cluster
+    */
+   void invalidateClusters(final int from, final int to) {
+      getDbFileSystem().invalidateClusters(getContentId(), from, to);
+   }
+
+   /**
+    * Reads the data stored inline in the row of this file, as its only cluster, or the
+    * clusters of its content if it has been given one since it was last read.
+    *
+    * @param count
+    *           The maximum number of clusters to read
+    */
+   private List<byte[]> readInlineData(final int count) {
+      final byte[][] inlineData = { null };
+
+      new DbSandbox(getDbFileSystem()) {
+         @Override
+         public void run(final Connection connection) throws SQLException {
+            try (final PreparedStatement statement = connection.prepareStatement(Sql.SELECT_INLINE_DATA)) {
+               statement.setLong(1, getId());
+
+               try (final ResultSet resultSet = statement.executeQuery()) {
+                  if (resultSet.next()) {
+                     setReadContentId(readContentId(resultSet));
+                     inlineData[0] = resultSet.getBytes("INLINE_DATA");
+                  }
+               }
+            }
+         }
+      }.execute(false);
+
+      if (getContentId() != 0) {
+         return readClusters(0, count);
+      }
+
+      final List<byte[]> data = new ArrayList<>(1);
+
+      if (inlineData[0] != null && inlineData[0].length > 0) {
+         data.add(inlineData[0]);
+      }
+
+      return data;
+   }
+
+   /**
+    * Returns the identifier of the content which holds the clusters of this file,
+    * or 0 if the file has never been written or its data is stored inline.
+    */
+   long getContentId() {
+      final Long writtenContentId = getDbFileSystem().getWrittenContentId(getId());
+
+      if (writtenContentId != null) {
+         return writtenContentId;
+      }
+
+      if (contentId == UNKNOWN_CONTENT) {
+         new DbSandbox(getDbFileSystem()) {
+            @Override
+            public void run(final Connection connection) throws SQLException {
+               try (final PreparedStatement statement = connection.prepareStatement(Sql.SELECT_PATH_CONTENT)) {
+                  statement.setLong(1, getId());
+
+                  try (final ResultSet resultSet = statement.executeQuery()) {
+                     setReadContentId(resultSet.next() ? readContentId(resultSet) : 0);
+                  }
+               }
+            }
+         }.execute(false);
+      }
+
+      return contentId;
+   }
+
+   /**
+    * Reads the content of a file row, which is null for a file without clusters.
+    *
+    * @param resultSet
+    *           The result set, positioned on the row
+    * @return The identifier of the content, or 0 if there is none
+    */
+   static long readContentId(final ResultSet resultSet) throws SQLException {
+      final long contentId = resultSet.getLong("CONTENT_ID");
+      return resultSet.wasNull() ? 0 : contentId;
+   }
+
+   @Override
+   void readPath(final ResultSet resultSet) throws SQLException {
+      setReadContentId(readContentId(resultSet));
+   }
+
+   /**
+    * Keeps a content read from the database, unless the transaction running on the
+    * current thread has given this file a content which it has not committed yet.
+    */
+   private void setReadContentId(final long readContentId) {
+      if (getDbFileSystem().getWrittenContentId(getId()) == null) {
+         contentId = readContentId;
+      }
+   }
+
+   /**
+    * Gives a content to this file inside the transaction running on the current thread,
+    * which alone sees it until the transaction commits. Other threads keep reading the
+    * previous content, which is also kept if the transaction rolls back.
+    */
+   private void setWrittenContentId(final long writtenContentId) {
+      getDbFileSystem().writeContentId(getId(), writtenContentId, () -> contentId = writtenContentId);
+   }
+
+   @Override
+   protected boolean sqlSelect(final Connection connection) throws SQLException {
+      return selectPath(connection, PATH_TYPE);
+   }
+   
+   @Override
+   protected boolean sqlInsert(final Connection connection) throws SQLException {
+      final long insertedContentId = contentId == UNKNOWN_CONTENT ? 0 : contentId;
+
+      if (insertPath(connection, PATH_TYPE, insertedContentId)) {
+         contentId = insertedContentId;
+         return true;
+      }
+
+      return false;
+   }
+   
+   @Override
+   protected boolean sqlUpdate(final Connection connection) throws SQLException {
+      return updatePath(connection);
+   }
+   
+   @Override
+   protected boolean sqlDelete(final Connection connection) throws SQLException {
+      releaseContent(connection);
+      return deletePath(connection);
+   }
+
+   /**
+    * Makes this file the only owner of its content before it is written, creating
+    * a content if the file has none, or a private copy of the content if it is shared
+    * with other files. Data stored inline is moved to the first cluster of the new
+    * content.
+    *
+    * @param connection
+    *           The connection on which the statements are executed
+    * @param preserveData
+    *           If the write needs the current data, which must then be copied
+    *           together with a shared content
+    * @return The identifier of the owned content
+    */
+   private long ownContent(final Connection connection, final boolean preserveData) throws SQLException {
+      final long currentContentId = sqlLockContent(connection);
+
+      if (currentContentId != 0 && sqlLockReferences(connection, currentContentId) <= 1) {
+         setReadContentId(currentContentId);
+         return currentContentId;
+      }
+
+      final long ownedContentId = sqlInsertContent(connection);
+      final byte[] inlineData = currentContentId == 0 && preserveData ? sqlSelectInlineData(connection) : null;
+
+      if (currentContentId != 0) {
+         if (preserveData) {
+            try (final PreparedStatement statement = connection.prepareStatement(Sql.COPY_CLUSTERS)) {
+               statement.setLong(1, ownedContentId);
+               statement.setLong(2, currentContentId);
+               statement.executeUpdate();
+            }
+
+            try (final PreparedStatement statement = connection.prepareStatement(Sql.REFERENCE_CONTENT_BLOCKS)) {
+               statement.setLong(1, ownedContentId);
+               statement.setLong(2, ownedContentId);
+               statement.executeUpdate();
+            }
+         }
+
+         sqlUpdateReferences(connection, currentContentId, -1);
+      }
+
+      try (final PreparedStatement statement = connection.prepareStatement(Sql.UPDATE_PATH_CONTENT)) {
+         statement.setLong(1, ownedContentId);
+         statement.setLong(2, getId());
+         statement.executeUpdate();
+      }
+
+      setWrittenContentId(ownedContentId);
+
+      if (inlineData != null && inlineData.length > 0) {
+         try (final ClusterBatch batch = ClusterBatch.insert(connection, 1)) {
+            batch.add(new DbCluster(this, 0, inlineData));
+         }
+      }
+
+      return ownedContentId;
+   }
+
+   /**
+    * Stores the data of this file inline, in its row, dropping its content.
+    */
+   private void sqlStoreInline(final Connection connection, final byte[] data) throws SQLException {
+      final long currentContentId = sqlLockContent(connection);
+
+      if (currentContentId != 0) {
+         sqlReleaseContent(connection, getDbFileSystem(), currentContentId);
+      }
+
+      try (final PreparedStatement statement = connection.prepareStatement(Sql.UPDATE_INLINE_DATA)) {
+         statement.setBytes(1, data);
+         statement.setLong(2, getId());
+         statement.executeUpdate();
+      }
+
+      setWrittenContentId(0);
+   }
+
+   private byte[] sqlSelectInlineData(final Connection connection) throws SQLException {
+      try (final PreparedStatement statement = connection.prepareStatement(Sql.SELECT_INLINE_DATA)) {
+         statement.setLong(1, getId());
+
+         try (final ResultSet resultSet = statement.executeQuery()) {
+            return resultSet.next() ? resultSet.getBytes("INLINE_DATA") : null;
+         }
+      }
+   }
+
+   /**
+    * Checks if data of the given length is stored inline.
+    */
+   private boolean isInline(final long length) {
+      return length > 0 && length <= getDbFileSystem().getInlineThreshold();
+   }
+
+   /**
+    * Drops the reference of this file to its content.
+    */
+   private void releaseContent(final Connection connection) throws SQLException {
+      final long currentContentId = sqlLockContent(connection);
+
+      if (currentContentId != 0) {
+         sqlReleaseContent(connection, getDbFileSystem(), currentContentId);
+      }
+   }
+
+   /**
+    * Drops a reference to a content. A content which is no longer referenced is queued
+    * for the garbage collector, which deletes its clusters in the background.
+    *
+    * @param connection
+    *           The connection on which the statements are executed
+    * @param fileSystem
+    *           The file system of the content
+    * @param contentId
+    *           The identifier of the content
+    */
+   static void sqlReleaseContent(final Connection connection, final DbFileSystem fileSystem, final long contentId)
+         throws SQLException {
+      final int references = sqlLockReferences(connection, contentId);
+      sqlUpdateReferences(connection, contentId, -1);
+
+      if (references <= 1) {
+         fileSystem.getGarbageCollector().queueContent(connection, contentId);
+         fileSystem.invalidateClusters(contentId, 0, Integer.MAX_VALUE);
+      }
+   }
+
+   /**
+    * Reads the length of the data of this file, locking the file row until the transaction
+    * completes, so that concurrent writes past the end of the file are serialized.
+    */
+   private long sqlLockLength(final Connection connection) throws SQLException {
+      try (final PreparedStatement statement = connection.prepareStatement(Sql.LOCK_PATH_LENGTH)) {
+         statement.setLong(1, getId());
+
+         try (final ResultSet resultSet = statement.executeQuery()) {
+            return resultSet.next() ? resultSet.getLong("DATA_LENGTH") : 0;
+         }
+      }
+   }
+
+   /**
+    * Reads the content of this file, locking the file row until the transaction completes.
+    */
+   private long sqlLockContent(final Connection connection) throws SQLException {
+      try (final PreparedStatement statement = connection.prepareStatement(Sql.LOCK_PATH_CONTENT)) {
+         statement.setLong(1, getId());
+
+         try (final ResultSet resultSet = statement.executeQuery()) {
+            return resultSet.next() ? readContentId(resultSet) : 0;
+         }
+      }
+   }
+
+   /**
+    * Reads the reference count of a content, locking it until the transaction completes.
+    */
+   private static int sqlLockReferences(final Connection connection, final long contentId) throws SQLException {
+      try (final PreparedStatement statement = connection.prepareStatement(Sql.LOCK_CONTENT)) {
+         statement.setLong(1, contentId);
+
+         try (final ResultSet resultSet = statement.executeQuery()) {
+            return resultSet.next() ? resultSet.getInt("REFERENCE_COUNT") : 0;
+         }
+      }
+   }
+
+   private static long sqlInsertContent(final Connection connection) throws SQLException {
+      try (final PreparedStatement statement =
+            connection.prepareStatement(Sql.INSERT_CONTENT, Statement.RETURN_GENERATED_KEYS)) {
+         statement.executeUpdate();
+
+         try (final ResultSet resultSet = statement.getGeneratedKeys()) {
+            resultSet.next();
+            return resultSet.getLong(1);
+         }
+      }
+   }
+
+   /**
+    * Stores the data of a batch of clusters as blocks, inserting only the blocks which
+    * are not stored yet, and adds a reference to the block of each cluster. A block
+    * inserted meanwhile by a concurrent writer is referenced once the writer commits.
+    *
+    * @return The identifiers of the blocks, in the order of the clusters
+    */
+   private static Long[] sqlReferenceBlocks(
+         final Connection connection,
+         final DbFileSystem fileSystem,
+         final List<DbCluster> clusters) throws SQLException {
+      final MessageDigest digest;
+
+      try {
+         digest = MessageDigest.getInstance("SHA-256");
+      } catch (final NoSuchAlgorithmException e) {
+         throw new IllegalStateException(e);
+      }
+
+      final String[] hashes = new String[clusters.size()];
+
+      for (int i = 0; i < hashes.length; i++) {
+         hashes[i] = toHex(digest.digest(clusters.get(i).data));
+      }
+
+      final Map<String, Long> blocks = new HashMap<>();
+      sqlLockBlocks(connection, hashes, blocks);
+
+      // Only the blocks which are not stored yet are encoded, once each.
+      final Map<String, DbCluster> missing = new LinkedHashMap<>();
+
+      for (int i = 0; i < hashes.length; i++) {
+         if (!blocks.containsKey(hashes[i])) {
+            missing.putIfAbsent(hashes[i], clusters.get(i));
+         }
+      }
+
+      int misses = 0;
+
+      while (!missing.isEmpty()) {
+         final EncodedData[] encoded = encode(fileSystem.getCodec(), new ArrayList<>(missing.values()));
+         int index = 0;
+
+         try (final PreparedStatement statement =
+               connection.prepareStatement(Sql.INSERT_BLOCK, Statement.RETURN_GENERATED_KEYS)) {
+            for (final String hash : missing.keySet()) {
+               final Long blockId = sqlInsertBlock(connection, statement, hash, encoded[index++]);
+
+               if (blockId != null) {
+                  blocks.put(hash, blockId);
+                  misses++;
+               }
+            }
+         }
+
+         // The blocks inserted by concurrent writers are read once they have committed,
+         // and inserted again if they have rolled back instead.
+         missing.keySet().removeAll(blocks.keySet());
+
+         if (!missing.isEmpty()) {
+            sqlLockBlocks(connection, missing.keySet().toArray(new String[0]), blocks);
+            missing.keySet().removeAll(blocks.keySet());
+         }
+      }
+
+      final Long[] blockIds = new Long[hashes.length];
+
+      // The references are added in identifier order, so that concurrent writers lock
+      // the blocks they share in the same order.
+      final Map<Long, Integer> references = new TreeMap<>();
+
+      for (int i = 0; i < hashes.length; i++) {
+         blockIds[i] = blocks.get(hashes[i]);
+         references.merge(blockIds[i], 1, Integer::sum);
+      }
+
+      try (final PreparedStatement statement = connection.prepareStatement(Sql.UPDATE_BLOCK_REFERENCES)) {
+         for (final Map.Entry<Long, Integer> reference : references.entrySet()) {
+            statement.setInt(1, reference.getValue());
+            statement.setLong(2, reference.getKey());
+            statement.addBatch();
+         }
+
+         statement.executeBatch();
+      }
+
+      fileSystem.countDeduplication(hashes.length - misses, misses);
+      return blockIds;
+   }
+
+   /**
+    * Reads and locks the stored blocks with the given hashes.
+    *
+    * @param blocks
+    *           Receives the identifiers of the blocks, by hash
+    */
+   private static void sqlLockBlocks(
+         final Connection connection,
+         final String[] hashes,
+         final Map<String, Long> blocks) throws SQLException {
+      final Array array = connection.createArrayOf("VARCHAR", hashes);
+
+      try (final PreparedStatement statement = connection.prepareStatement(Sql.LOCK_BLOCKS)) {
+         statement.setArray(1, array);
+
+         try (final ResultSet resultSet = statement.executeQuery()) {
+            while (resultSet.next()) {
+               blocks.put(resultSet.getString("HASH"), resultSet.getLong("ID"));
+            }
+         }
+      } finally {
+         array.free();
+      }
+   }
+
+   /**
+    * Inserts a block, unless a concurrent writer has inserted the same one meanwhile.
+    * The insert then waits for the writer to complete, and fails on the hash index if it
+    * commits, in which case only the failed insert is rolled back.
+    *
+    * @return The identifier of the inserted block, or null if it was already stored
+    */
+   private static Long sqlInsertBlock(
+         final Connection connection,
+         final PreparedStatement statement,
+         final String hash,
+         final EncodedData encoded) throws SQLException {
+      final Savepoint savepoint = connection.setSavepoint();
+
+      try {
+         statement.setString(1, hash);
+         statement.setInt(2, encoded.codec);
+         statement.setBytes(3, encoded.data);
+         statement.executeUpdate();
+      } catch (final SQLException e) {
+         if (!DUPLICATE_KEY_STATE.equals(e.getSQLState())) {
+            throw e;
+         }
+
+         connection.rollback(savepoint);
+         return null;
+      }
+
+      connection.releaseSavepoint(savepoint);
+
+      try (final ResultSet resultSet = statement.getGeneratedKeys()) {
+         resultSet.next();
+         return resultSet.getLong(1);
+      }
+   }
+
+   /**
+    * Encodes the data of a batch of clusters, on several threads if it is large enough.
+    *
+    * @param codec
+    *           The codec, or null to keep the data as it is
+    */
+   private static EncodedData[] encode(final DbClusterCodec codec, final List<DbCluster> clusters) {
+      final EncodedData[] encoded = new EncodedData[clusters.size()];
+      long length = 0;
+
+      for (final DbCluster cluster : clusters) {
+         length += cluster.data.length;
+      }
+
+      indexes(encoded.length, codec != null && length >= PARALLEL_CODING_LENGTH).forEach(i -> {
+         final byte[] data = clusters.get(i).data;
+         final byte[] encodedData = codec == null ? null : codec.encode(data);
+
+         // The data is stored as it is whenever the codec does not make it smaller.
+         encoded[i] = encodedData != null && encodedData.length < data.length
+               ? new EncodedData(codec.getTag(), data.length, encodedData)
+               : new EncodedData(DbClusterCodec.IDENTITY, data.length, data);
+      });
+
+      return encoded;
+   }
+
+   /**
+    * Decodes the stored data of a range of clusters, on several threads if it is large
+    * enough.
+    */
+   private static byte[][] decode(final DbFileSystem fileSystem, final List<EncodedData> stored) {
+      final byte[][] decoded = new byte[stored.size()][];
+      long length = 0;
+      int encoded = 0;
+
+      for (final EncodedData data : stored) {
+         if (data.codec != DbClusterCodec.IDENTITY) {
+            length += data.length;
+            encoded++;
+         }
+      }
+
+      indexes(decoded.length, encoded > 1 && length >= PARALLEL_CODING_LENGTH).forEach(i -> {
+         final EncodedData data = stored.get(i);
+         decoded[i] = fileSystem.decode(data.codec, data.data, data.length);
+      });
+
+      return decoded;
+   }
+
+   private static IntStream indexes(final int count, final boolean parallel) {
+      final IntStream indexes = IntStream.range(0, count);
+      return parallel ? indexes.parallel() : indexes;
+   }
+
+   /**
+    * Drops the references of a range of clusters of a content to their blocks, and
+    * deletes the blocks which are no longer referenced. Clusters which hold their own
+    * data are not affected.
+    *
+    * @param connection
+    *           The connection on which the statements are executed
+    * @param contentId
+    *           The identifier of the content
+    * @param from
+    *           The sequence number of the first cluster
+    * @param to
+    *           The sequence number following the last cluster
+    */
+   static void sqlReleaseBlocks(final Connection connection, final long contentId, final int from, final int to)
+         throws SQLException {
+      try (final PreparedStatement statement = connection.prepareStatement(Sql.RELEASE_CLUSTER_BLOCKS)) {
+         statement.setLong(1, contentId);
+         statement.setInt(2, from);
+         statement.setInt(3, to);
+         statement.setLong(4, contentId);
+         statement.setInt(5, from);
+         statement.setInt(6, to);
+         statement.executeUpdate();
+      }
+
+      try (final PreparedStatement statement = connection.prepareStatement(Sql.DELETE_RELEASED_BLOCKS)) {
+         statement.setLong(1, contentId);
+         statement.setInt(2, from);
+         statement.setInt(3, to);
+         statement.executeUpdate();
+      }
+   }
+
+   private static String toHex(final byte[] bytes) {
+      final StringBuilder builder = new StringBuilder(bytes.length * 2);
+
+      for (final byte b : bytes) {
+         builder.append(Character.forDigit(b >> 4 & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+      }
+
+      return builder.toString();
+   }
+
+   private static void sqlUpdateReferences(final Connection connection, final long contentId, final int delta)
+         throws SQLException {
+      try (final PreparedStatement statement = connection.prepareStatement(Sql.UPDATE_CONTENT_REFERENCES)) {
+         statement.setInt(1, delta);
+         statement.setLong(2, contentId);
+         statement.executeUpdate();
+      }
+   }
+
+   /**
+    * Writes data at the given offset, rewriting only the clusters which the data
+    * covers and allocating new clusters past the current end of the file.
+    * A gap between the end of the file and the offset reads as zeros, and is not stored.
+    * Writing no data never changes the file, whatever the offset.
+    */
+   private void writeRange(final Connection connection, final long offset, final byte[] data)
+         throws SQLException {
+      if (data.length == 0) {
+         return;
+      }
+
+      final int clusterSize = getDbFileSystem().getClusterSize();
+      final int batchSize = getDbFileSystem().getBatchSize();
+      final long length = sqlLockLength(connection);
+      final long start = Math.min(offset, length);
+      final long writeEnd = offset + data.length;
+      final long end = Math.max(length, writeEnd);
+
+      if (writeEnd <= start) {
+         return;
+      }
+
+      // A file without clusters stays inline as long as it is small enough.
+      if (isInline(end) && sqlLockContent(connection) == 0) {
+         final byte[] inlineData = new byte[(int) end];
+         final List<byte[]> stored = readClusters(0, 1);
+
+         if (!stored.isEmpty()) {
+            System.arraycopy(stored.get(0), 0, inlineData, 0, (int) Math.min(stored.get(0).length, end));
+         }
+
+         System.arraycopy(data, 0, inlineData, (int) offset, data.length);
+         sqlStoreInline(connection, inlineData);
+         sqlUpdateLength(connection);
+         return;
+      }
+
+      ownContent(connection, true);
+
+      final int extentClusters = getDbFileSystem().getExtentSize() / clusterSize;
+      final int storedClusters = (int) ((length + clusterSize - 1) / clusterSize);
+      final int first = (int) (start / clusterSize);
+      final int last = (int) ((writeEnd - 1) / clusterSize);
+      final int lastCluster = (int) ((end - 1) / clusterSize);
+      final int rewritten = Math.min(last + 1, storedClusters);
+
+      // The stored clusters which are rewritten are taken out of their extents first.
+      sqlSplitExtents(connection, first, rewritten);
+      invalidateClusters(first, last + 1);
+
+      final Set<Integer> rows = sqlSelectClusterNumbers(connection, first, rewritten);
+
+      try (final ClusterBatch updates = ClusterBatch.update(connection, batchSize);
+            final ClusterBatch inserts = ClusterBatch.insert(connection, batchSize)) {
+         for (int i = first; i < rewritten; i++) {
+            final long clusterStart = (long) i * clusterSize;
+            final byte[] cluster = new byte[(int) Math.min(clusterSize, end - clusterStart)];
+
+            // The stored data is needed only by clusters which are partially overwritten.
+            if (clusterStart < start || clusterStart + cluster.length > writeEnd) {
+               final byte[] stored = readClusters(i, 1).get(0);
+               System.arraycopy(stored, 0, cluster, 0, Math.min(stored.length, cluster.length));
+            }
+
+            final long from = Math.max(clusterStart, offset);
+            final long to = Math.min(clusterStart + cluster.length, writeEnd);
+
+            if (from < to) {
+               System.arraycopy(data, (int) (from - offset), cluster, (int) (from - clusterStart), (int) (to - from));
+            }
+
+            if (i != lastCluster && isZero(cluster, 0, cluster.length)) {
+               if (rows.contains(i)) {
+                  sqlDeleteCluster(connection, i);
+               }
+            } else if (rows.contains(i)) {
+               updates.add(new DbCluster(this, i, cluster));
+            } else {
+               inserts.add(new DbCluster(this, i, cluster));
+            }
+         }
+
+         // The clusters past the end are allocated from the offset, a run at a time.
+         for (int i = Math.max(rewritten, (int) (offset / clusterSize)); i <= last; i += extentClusters) {
+            final long clusterStart = (long) i * clusterSize;
+            final byte[] run = new byte[(int) Math.min((long) extentClusters * clusterSize, end - clusterStart)];
+            final long from = Math.max(clusterStart, offset);
+            final long to = Math.min(clusterStart + run.length, writeEnd);
+
+            System.arraycopy(data, (int) (from - offset), run, (int) (from - clusterStart), (int) (to - from));
+            addClusters(inserts, i, run, i + extentClusters > last);
+         }
+
+         updates.flush();
+         inserts.flush();
+      }
+
+      sqlUpdateLength(connection);
+   }
+
+   /**
+    * Rewrites the extents holding a range of clusters, so that each cluster of the range
+    * is stored by its own row. The parts of the extents outside the range are stored
+    * again as extents.
+    *
+    * @param connection
+    *           The connection on which the statements are executed
+    * @param from
+    *           The sequence number of the first cluster
+    * @param to
+    *           The sequence number following the last cluster
+    */
+   private void sqlSplitExtents(final Connection connection, final int from, final int to) throws SQLException {
+      final DbFileSystem fileSystem = getDbFileSystem();
+      final long contentId = getContentId();
+
+      if (contentId == 0 || from >= to) {
+         return;
+      }
+
+      final List<Integer> sequenceNumbers = new ArrayList<>();
+      final List<Integer> clusterCounts = new ArrayList<>();
+      final List<EncodedData> stored = new ArrayList<>();
+
+      try (final PreparedStatement statement = connection.prepareStatement(Sql.SELECT_EXTENT_RANGE)) {
+         statement.setLong(1, contentId);
+         statement.setLong(2, contentId);
+         statement.setInt(3, from);
+         statement.setInt(4, from);
+         statement.setInt(5, to);
+
+         try (final ResultSet resultSet = statement.executeQuery()) {
+            while (resultSet.next()) {
+               sequenceNumbers.add(resultSet.getInt("SEQUENCE_NUMBER"));
+               clusterCounts.add(resultSet.getInt("CLUSTER_COUNT"));
+               stored.add(new EncodedData(
+                     resultSet.getInt("CODEC"),
+                     resultSet.getInt("DATA_LENGTH"),
+                     resultSet.getBytes("DATA")));
+            }
+         }
+      }
+
+      if (stored.isEmpty()) {
+         return;
+      }
+
+      final int clusterSize = fileSystem.getClusterSize();
+      final byte[][] decoded = decode(fileSystem, stored);
+
+      try (final ClusterBatch batch = ClusterBatch.insert(connection, fileSystem.getBatchSize())) {
+         for (int i = 0; i < decoded.length; i++) {
+            final int sequenceNumber = sequenceNumbers.get(i);
+            final int end = sequenceNumber + clusterCounts.get(i);
+            final int splitFrom = Math.max(from, sequenceNumber);
+            final int splitTo = Math.min(to, end);
+            final byte[] data = decoded[i];
+
+            invalidateClusters(sequenceNumber, end);
+            sqlDeleteCluster(connection, sequenceNumber);
+
+            if (sequenceNumber < splitFrom) {
+               batch.add(new DbCluster(this, sequenceNumber,
+                     Arrays.copyOfRange(data, 0, (splitFrom - sequenceNumber) * clusterSize)));
+            }
+
+            for (int j = splitFrom; j < splitTo; j++) {
+               final int offset = (j - sequenceNumber) * clusterSize;
+               batch.add(new DbCluster(this, j,
+                     Arrays.copyOfRange(data, offset, Math.min(offset + clusterSize, data.length))));
+            }
+
+            if (splitTo < end) {
+               batch.add(new DbCluster(this, splitTo,
+                     Arrays.copyOfRange(data, (splitTo - sequenceNumber) * clusterSize, data.length)));
+            }
+         }
+
+         batch.flush();
+      }
+   }
+
+   /**
+    * Discards the data past the given length, which is shorter than the current one.
+    * The cluster holding the new end of the file is stored even if it is zero.
+    */
+   private void sqlTruncate(final Connection connection, final long length) throws SQLException {
+      if (length == 0) {
+         sqlDeleteClusters(connection, ownContent(connection, false));
+         sqlUpdateLength(connection);
+         return;
+      }
+
+      if (sqlLockContent(connection) == 0) {
+         sqlStoreInline(connection, Arrays.copyOf(readClusters(0, 1).get(0), (int) length));
+         sqlUpdateLength(connection);
+         return;
+      }
+
+      final long ownedContentId = ownContent(connection, true);
+      final int clusterSize = getDbFileSystem().getClusterSize();
+      final int lastCluster = (int) ((length - 1) / clusterSize);
+
+      sqlSplitExtents(connection, lastCluster, lastCluster + 1);
+
+      final byte[] cluster = readClusters(lastCluster, 1).get(0);
+      invalidateClusters(lastCluster, Integer.MAX_VALUE);
+      sqlReleaseBlocks(connection, ownedContentId, lastCluster, Integer.MAX_VALUE);
+
+      try (final PreparedStatement statement = connection.prepareStatement(Sql.DELETE_CLUSTERS_FROM)) {
+         statement.setLong(1, ownedContentId);
+         statement.setInt(2, lastCluster);
+         statement.executeUpdate();
+      }
+
+      try (final ClusterBatch batch = ClusterBatch.insert(connection, 1)) {
+         batch.add(new DbCluster(this, lastCluster,
+               Arrays.copyOf(cluster, (int) (length - (long) lastCluster * clusterSize))));
+      }
+
+      sqlUpdateLength(connection);
+   }
+
+   /**
+    * Adds the clusters of a run of data to a batch, joining consecutive clusters into
+    * extents and leaving out the clusters whose data is entirely zero.
+    *
+    * @param batch
+    *           The batch of inserted clusters
+    * @param from
+    *           The sequence number of the first cluster of the data
+    * @param data
+    *           The data, whose clusters are all full but the last one
+    * @param last
+    *           If the data ends the file, in which case its last cluster is stored
+    *           even if it is zero
+    */
+   private void addClusters(final ClusterBatch batch, final int from, final byte[] data, final boolean last)
+         throws SQLException {
+      final int clusterSize = getDbFileSystem().getClusterSize();
+      final int extentClusters = getDbFileSystem().getExtentSize() / clusterSize;
+      final int count = (data.length + clusterSize - 1) / clusterSize;
+      int first = 0;
+
+      for (int i = 0; i <= count; i++) {
+         final boolean stored = i < count
+               && (last && i == count - 1
+                     || !isZero(data, i * clusterSize, Math.min((i + 1) * clusterSize, data.length)));
+
+         if (first < i && (!stored || i - first == extentClusters)) {
+            final byte[] run = first == 0 && i == count
+                  ? data
+                  : Arrays.copyOfRange(data, first * clusterSize, Math.min(i * clusterSize, data.length));
+            batch.add(new DbCluster(this, from + first, run));
+            first = i;
+         }
+
+         if (!stored) {
+            first = i + 1;
+         }
+      }
+   }
+
+   private static boolean isZero(final byte[] data, final int from, final int to) {
+      for (int i = from; i < to; i++) {
+         if (data[i] != 0) {
+            return false;
+         }
+      }
+
+      return true;
+   }
+
+   /**
+    * Deletes a cluster row of this file, after releasing its block.
+    *
+    * @return If the row existed
+    */
+   private boolean sqlDeleteCluster(final Connection connection, final int sequenceNumber) throws SQLException {
+      final long currentContentId = getContentId();
+      sqlReleaseBlocks(connection, currentContentId, sequenceNumber, sequenceNumber + 1);
+
+      try (final PreparedStatement statement = connection.prepareStatement(Sql.DELETE_CLUSTER)) {
+         statement.setLong(1, currentContentId);
+         statement.setInt(2, sequenceNumber);
+         return statement.executeUpdate() == 1;
+      }
+   }
+
+   /**
+    * Returns the sequence numbers of the cluster rows of this file inside a range.
+    */
+   private Set<Integer> sqlSelectClusterNumbers(final Connection connection, final int from, final int to)
+         throws SQLException {
+      final Set<Integer> sequenceNumbers = new HashSet<>();
+
+      try (final PreparedStatement statement = connection.prepareStatement(Sql.SELECT_CLUSTER_NUMBERS)) {
+         statement.setLong(1, getContentId());
+         statement.setInt(2, from);
+         statement.setInt(3, to);
+
+         try (final ResultSet resultSet = statement.executeQuery()) {
+            while (resultSet.next()) {
+               sequenceNumbers.add(resultSet.getInt("SEQUENCE_NUMBER"));
+            }
+         }
+      }
+
+      return sequenceNumbers;
+   }
+
+   /**
+    * Returns the sequence number following the last cluster of a content.
+    */
+   private static int sqlSelectClusterEnd(final Connection connection, final long contentId) throws SQLException {
+      try (final PreparedStatement statement = connection.prepareStatement(Sql.SELECT_CLUSTER_END)) {
+         statement.setLong(1, contentId);
+
+         try (final ResultSet resultSet = statement.executeQuery()) {
+            return resultSet.next() ? resultSet.getInt("CLUSTER_END") : 0;
+         }
+      }
+   }
+
+   /**
+    * Stores the length of the data after a write, together with the modification time,
+    * and adds the change of the space used by this file to its ancestors. The space used
+    * is the one of the stored clusters, so that the zeros of a sparse file are not charged.
+    */
+   private void sqlUpdateLength(final Connection connection) throws SQLException {
+      final int clusterSize = getDbFileSystem().getClusterSize();
+      final String ancestry;
+      final long usedBytes;
+      final long usedClusters;
+      final long length;
+      final long bytes;
+      final long clusters;
+
+      try (final PreparedStatement statement = connection.prepareStatement(Sql.SELECT_FILE_LENGTH)) {
+         statement.setLong(1, clusterSize);
+         statement.setLong(2, getId());
+
+         try (final ResultSet resultSet = statement.executeQuery()) {
+            if (!resultSet.next()) {
+               return;
+            }
+
+            ancestry = resultSet.getString("ANCESTRY");
+            usedBytes = resultSet.getLong("USED_BYTES");
+            usedClusters = resultSet.getLong("USED_CLUSTERS");
+            length = resultSet.getLong("STORED_LENGTH");
+            bytes = resultSet.getLong("STORED_BYTES");
+            clusters = resultSet.getLong("STORED_CLUSTERS");
+         }
+      }
+
+      try (final PreparedStatement statement = connection.prepareStatement(Sql.UPDATE_FILE_LENGTH)) {
+         statement.setLong(1, length);
+         statement.setLong(2, bytes);
+         statement.setLong(3, clusters);
+         statement.setLong(4, getId());
+         statement.executeUpdate();
+      }
+
+      sqlAddUsage(connection, getAncestorIds(ancestry), bytes - usedBytes, clusters - usedClusters);
+   }
+
+   /**
+    * Deletes every cluster of a content with a single statement, after releasing their blocks.
+    */
+   private void sqlDeleteClusters(final Connection connection, final long contentId) throws SQLException {
+      getDbFileSystem().invalidateClusters(contentId, 0, Integer.MAX_VALUE);
+      sqlReleaseBlocks(connection, contentId, 0, Integer.MAX_VALUE);
+
+      try (final PreparedStatement statement = connection.prepareStatement(Sql.DELETE_CLUSTERS)) {
+         statement.setLong(1, contentId);
+         statement.executeUpdate();
+      }
+   }
+
+   /**
+    * Passes the data of every cluster, in sequence order, to a consumer. Clusters are
+    * read a batch at a time, so that only one batch is held in memory.
+    */
+   private void forEachCluster(final ClusterConsumer consumer) throws IOException {
+      final int batchSize = getDbFileSystem().getStreamingBatchSize();
+      List<byte[]> batch;
+      int from = 0;
+
+      do {
+         batch = readClusters(from, batchSize);
+
+         for (final byte[] cluster : batch) {
+            consumer.accept(cluster);
+         }
+
+         from += batchSize;
+      } while (batch.size() == batchSize);
+   }
+
+   /**
+    * Fills the buffer with the next clusters of the stream.
+    *
+    * @return The number of bytes read, which is less than the buffer length only
+    *         at the end of the stream
+    */
+   private static int readCluster(final InputStream stream, final byte[] buffer) throws IOException {
+      int length = 0;
+      int read;
+
+      while (length < buffer.length && (read = stream.read(buffer, length, buffer.length - length)) > 0) {
+         length += read;
+      }
+
+      return length;
    }
 }
@@ -0,0 +1,142 @@
+package filesystem.db;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SeekableByteChannel;
+
+import filesystem.exceptions.FileSystemRuntimeException;
+
+/**
+ * A channel which reads and writes the data of a {@link DbFile} at any position.
+ * Each read fetches only the clusters which cover the requested bytes, up to a window
+ * of clusters, and each write rewrites only the clusters it covers, so that seeking
+ * into a large file costs as much as the data transferred.
+ *
+ * @author Edoardo Luppi
+ */
+class DbFileChannel implements SeekableByteChannel
+{
+   private final DbFile file;
+   private long position;
+   private boolean open;
+
+   DbFileChannel(final DbFile file) {
+      this.file = file;
+      position = 0;
+      open = true;
+   }
+
+   @Override
+   public int read(final ByteBuffer buffer) throws IOException {
+      ensureOpen();
+
+      if (!buffer.hasRemaining()) {
+         return 0;
+      }
+
+      final DbFileSystem fileSystem = file.getDbFileSystem();
+      final int window = fileSystem.getStreamingBatchSize() * fileSystem.getClusterSize();
+      final byte[] data;
+
+      try {
+         data = file.read(position, Math.min(buffer.remaining(), window));
+      } catch (final FileSystemRuntimeException e) {
+         throw new IOException(e.getMessage(), e);
+      }
+
+      if (data.length == 0) {
+         return -1;
+      }
+
+      buffer.put(data);
+      position += data.length;
+      return data.length;
+   }
+
+   @Override
+   public int write(final ByteBuffer buffer) throws IOException {
+      ensureOpen();
+
+      final byte[] data = new byte[buffer.remaining()];
+      buffer.get(data);
+
+      try {
+         file.write(position, data);
+      } catch (final FileSystemRuntimeException e) {
+         throw new IOException(e.getMessage(), e);
+      }
+
+      position += data.length;
+      return data.length;
+   }
+
+   @Override
+   public long position() throws IOException {
+      ensureOpen();
+      return position;
+   }
+
+   @Override
+   public SeekableByteChannel position(final long newPosition) throws IOException {
+      ensureOpen();
+
+      if (newPosition < 0) {
+         throw new IllegalArgumentException("The position cannot be negative");
+      }
+
+      position = newPosition;
+      return this;
+   }
+
+   @Override
+   public long size() throws IOException {
+      ensureOpen();
+
+      try {
+         return file.getLength();
+      } catch (final FileSystemRuntimeException e) {
+         throw new IOException(e.getMessage(), e);
+      }
+   }
+
+   /**
+    * Discards the data past the given size, if the file is larger. The position is
+    * moved to the new end of the file if it was past it.
+    */
+   @Override
+   public SeekableByteChannel truncate(final long size) throws IOException {
+      ensureOpen();
+
+      if (size < 0) {
+         throw new IllegalArgumentException("The size cannot be negative");
+      }
+
+      try {
+         if (size < file.getLength()) {
+            file.setLength(size);
+         }
+      } catch (final FileSystemRuntimeException e) {
+         throw new IOException(e.getMessage(), e);
+      }
+
+      position = Math.min(position, size);
+      return this;
+   }
+
+   @Override
+   public boolean isOpen() {
+      return open;
+   }
+
+   @Override
+   public void close() {
+      open = false;
+   }
+
+   private void ensureOpen() throws IOException {
+      if (!open) {
+         throw new ClosedChannelException();
+      }
+   }
+}
@@ -0,0 +1,125 @@
+package filesystem.db;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+import filesystem.exceptions.FileSystemRuntimeException;
+
+/**
+ * Reads the data of a {@link DbFile} cluster by cluster.
+ * Clusters are fetched a window at a time, each window by its own transaction,
+ * so that only a bounded amount of data is held in memory whatever the file size.
+ *
+ * @author Edoardo Luppi
+ */
+class DbFileInputStream extends InputStream
+{
+   private final DbFile file;
+
+   /**
+    * The clusters which have been fetched but not read yet.
+    */
+   private final Deque<byte[]> window = new ArrayDeque<>();
+
+   /**
+    * The sequence number of the first cluster of the next window.
+    */
+   private int nextSequenceNumber;
+   private boolean lastWindow;
+   private byte[] cluster;
+   private int position;
+   private boolean closed;
+
+   DbFileInputStream(final DbFile file) {
+      this.file = file;
+      nextSequenceNumber = 0;
+      lastWindow = false;
+      closed = false;
+   }
+
+   @Override
+   public int read() throws IOException {
+      if (!nextCluster()) {
+         return -1;
+      }
+
+      return cluster[position++] & 0xFF;
+   }
+
+   @Override
+   public int read(final byte[] buffer, final int offset, final int length) throws IOException {
+      if (offset < 0 || length < 0 || length > buffer.length - offset) {
+         throw new IndexOutOfBoundsException();
+      }
+
+      if (length == 0) {
+         return 0;
+      }
+
+      if (!nextCluster()) {
+         return -1;
+      }
+
+      final int count = Math.min(length, cluster.length - position);
+      System.arraycopy(cluster, position, buffer, offset, count);
+      position += count;
+      return count;
+   }
+
+   @Override
+   public int available() {
+      return cluster == null ? 0 : cluster.length - position;
+   }
+
+   @Override
+   public void close() {
+      closed = true;
+      window.clear();
+      cluster = null;
+   }
+
+   /**
+    * Moves to the next cluster if the current one has been read entirely.
+    *
+    * @return If there is still data to be read
+    */
+   private boolean nextCluster() throws IOException {
+      if (closed) {
+         throw new IOException("The stream is closed");
+      }
+
+      while (cluster == null || position == cluster.length) {
+         if (window.isEmpty()) {
+            if (lastWindow) {
+               return false;
+            }
+
+            fetchWindow();
+
+            if (window.isEmpty()) {
+               return false;
+            }
+         }
+
+         cluster = window.poll();
+         position = 0;
+      }
+
+      return true;
+   }
+
+   private void fetchWindow() throws IOException {
+      final int windowSize = file.getDbFileSystem().getStreamingBatchSize();
+
+      try {
+         window.addAll(file.readClusters(nextSequenceNumber, windowSize));
+      } catch (final FileSystemRuntimeException e) {
+         throw new IOException(e.getMessage(), e);
+      }
+
+      nextSequenceNumber += windowSize;
+      lastWindow = window.size() < windowSize;
+   }
+}
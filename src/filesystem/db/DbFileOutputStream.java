@@ -0,0 +1,169 @@
+package filesystem.db;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import filesystem.exceptions.FileSystemRuntimeException;
+
+/**
+ * Writes the data of a {@link DbFile} cluster by cluster.
+ * Clusters are stored as soon as a batch of them has been filled, each batch by its
+ * own transaction, so that only a bounded amount of data is held in memory whatever
+ * the file size. The batches are stored in a new content, which replaces the data of
+ * the file when the stream is closed, in the same transaction as the last clusters,
+ * so that the file keeps its data if the stream fails or is never closed. The new
+ * content of a stream which fails is left to the garbage collector, as is the one
+ * of a stream which is never closed, once it has not stored a batch for the stream
+ * timeout of the file system.
+ *
+ * @author Edoardo Luppi
+ */
+class DbFileOutputStream extends OutputStream
+{
+   private final DbFile file;
+
+   /**
+    * The filled clusters which have not been stored yet.
+    */
+   private final List<byte[]> pending = new ArrayList<>();
+
+   /**
+    * The sequence number of the first pending cluster.
+    */
+   private int nextSequenceNumber;
+
+   /**
+    * The content which holds the stored batches, or 0 if none has been stored yet.
+    */
+   private long stagedContentId;
+   private byte[] cluster;
+   private int position;
+   private boolean closed;
+
+   DbFileOutputStream(final DbFile file) {
+      this.file = file;
+      nextSequenceNumber = 0;
+      stagedContentId = 0;
+      cluster = new byte[file.getDbFileSystem().getClusterSize()];
+      position = 0;
+      closed = false;
+   }
+
+   @Override
+   public void write(final int b) throws IOException {
+      ensureOpen();
+      cluster[position++] = (byte) b;
+
+      if (position == cluster.length) {
+         completeCluster();
+      }
+   }
+
+   @Override
+   public void write(final byte[] buffer, int offset, int length) throws IOException {
+      if (offset < 0 || length < 0 || length > buffer.length - offset) {
+         throw new IndexOutOfBoundsException();
+      }
+
+      ensureOpen();
+
+      while (length > 0) {
+         final int count = Math.min(length, cluster.length - position);
+         System.arraycopy(buffer, offset, cluster, position, count);
+         position += count;
+         offset += count;
+         length -= count;
+
+         if (position == cluster.length) {
+            completeCluster();
+         }
+      }
+   }
+
+   /**
+    * Stores the filled clusters, which become the data of the file once the stream
+    * is closed. The partially filled cluster is kept in memory, as following writes
+    * may still complete it.
+    */
+   @Override
+   public void flush() throws IOException {
+      ensureOpen();
+      storePending();
+   }
+
+   @Override
+   public void close() throws IOException {
+      if (closed) {
+         return;
+      }
+
+      if (position > 0) {
+         pending.add(Arrays.copyOf(cluster, position));
+         position = 0;
+      }
+
+      closed = true;
+      cluster = null;
+
+      try {
+         file.replaceContent(stagedContentId, nextSequenceNumber, pending);
+      } catch (final FileSystemRuntimeException e) {
+         discard();
+         throw new IOException(e.getMessage(), e);
+      }
+
+      pending.clear();
+   }
+
+   private void completeCluster() throws IOException {
+      pending.add(cluster);
+      cluster = new byte[cluster.length];
+      position = 0;
+
+      if (pending.size() >= file.getDbFileSystem().getStreamingBatchSize()) {
+         storePending();
+      }
+   }
+
+   private void storePending() throws IOException {
+      if (pending.isEmpty()) {
+         return;
+      }
+
+      try {
+         stagedContentId = file.writeStagedClusters(stagedContentId, nextSequenceNumber, pending);
+      } catch (final FileSystemRuntimeException e) {
+         closed = true;
+         cluster = null;
+         discard();
+         throw new IOException(e.getMessage(), e);
+      }
+
+      nextSequenceNumber += pending.size();
+      pending.clear();
+   }
+
+   /**
+    * Drops the stored batches of a stream which failed, leaving the file data untouched.
+    */
+   private void discard() {
+      if (stagedContentId != 0) {
+         try {
+            file.discardStagedContent(stagedContentId);
+         } catch (final FileSystemRuntimeException e) {
+            // The content is reclaimed once it expires, as for a stream which is never closed.
+         }
+
+         stagedContentId = 0;
+      }
+   }
+
+   private void ensureOpen() throws IOException {
+      if (closed) {
+         throw new IOException("The stream is closed");
+      }
+   }
+}
@@ -1,10 +1,27 @@
 package filesystem.db;
 
 import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 
 import filesystem.DirectoryPath;
 import filesystem.FileSystem;
+import filesystem.exceptions.FileSystemRuntimeException;
+import filesystem.db.sql.ConnectionPool;
+import filesystem.db.sql.Sql;
+import filesystem.db.sql.Transaction;
 
 /**
  * An implementation of a file system which stores informations in a database.
@@ -26,41 +43,328 @@ import filesystem.FileSystem;
  * {@link Connection#commit()}
  * or a {@link Connection#rollback()} might cause the action to propagate to
  * non-related statements.
+ * <p/>
+ * Connections are taken from a {@link ConnectionPool} owned by the file system and
+ * are bound to the thread for the duration of a transaction.
+ * Asynchronous operations run on the file system executor, each one inside a single
+ * transaction, so that a worker thread uses one connection at a time. The number of
+ * transactions running at the same time, synchronous or asynchronous, is bounded by
+ * the connection pool size, whatever the {@link ExecutionMode}: a transaction waits
+ * for its turn before taking a connection, so it never times out in the pool.
  *
  * @author Edoardo Luppi
  */
 public class DbFileSystem implements FileSystem
 {
+   /**
+    * Describes how asynchronous operations are run.
+    */
+   public enum ExecutionMode
+   {
+      /**
+       * Operations run on a fixed thread pool with one thread per pooled connection.
+       */
+      THREAD_POOL,
+
+      /**
+       * Each operation runs on its own virtual thread. Operations waiting for a
+       * connection are parked instead of blocking a platform thread, so thousands
+       * of them can be pending at a time.
+       * <p/>
+       * Virtual threads are available since Java 21 only, see
+       * {@link DbFileSystem#isVirtualThreadsSupported()}; there is no fallback.
+       */
+      VIRTUAL_THREADS
+   }
+
+   /**
+    * The default number of clusters written by a single JDBC batch, or read by a single
+    * query when streaming a file.
+    */
+   public static final int DEFAULT_BATCH_SIZE = 64;
+
+   /**
+    * The default maximum number of resolved paths kept by the path cache.
+    */
+   public static final int DEFAULT_PATH_CACHE_SIZE = 10000;
+
+   /**
+    * The default maximum number of bytes of cluster data kept by the cluster cache.
+    */
+   public static final long DEFAULT_CLUSTER_CACHE_SIZE = 64L * 1024 * 1024;
+
+   /**
+    * The default number of milliseconds for which the known existence of a path is
+    * trusted without querying the database.
+    */
+   public static final long DEFAULT_EXISTENCE_STALENESS = 1000;
+
+   /**
+    * The default maximum number of rows reclaimed by a single garbage collection batch.
+    */
+   public static final int DEFAULT_GARBAGE_COLLECTION_BATCH_SIZE = 1000;
+
+   /**
+    * The default number of milliseconds the garbage collector pauses between batches.
+    */
+   public static final long DEFAULT_GARBAGE_COLLECTION_PAUSE = 50;
+
+   /**
+    * The default number of milliseconds an output stream may go without storing data
+    * before the data it has stored is reclaimed.
+    */
+   public static final long DEFAULT_STREAM_TIMEOUT = 10 * 60 * 1000;
+
+   /**
+    * The default maximum length of the data of a file stored inline, which disables
+    * inline storage.
+    */
+   public static final int DEFAULT_INLINE_THRESHOLD = 0;
+
    private final String uniqueId;
    private String volumeLabel;
-   private final String rootPathName;
-   private final int clusterSize;
+   private String rootPathName;
+   private int clusterSize;
    private DirectoryPath root;
    private boolean exists;
+   private final ConnectionPool connectionPool;
+   private volatile boolean schemaCreated;
+   private volatile int batchSize;
+   private final DbPathCache pathCache;
+   private final DbIdentityMap identityMap;
+   private volatile DbGarbageCollector garbageCollector;
+   private volatile int garbageCollectionBatchSize;
+   private volatile long garbageCollectionPause;
+   private volatile long streamTimeout;
+   private volatile DbClusterCache clusterCache;
+   private volatile long existenceStaleness;
+   private volatile int inlineThreshold;
+   private volatile int extentSize;
+   private volatile boolean deduplicationEnabled;
+   private final AtomicLong deduplicationHits = new AtomicLong();
+   private final AtomicLong deduplicationMisses = new AtomicLong();
+
+   /**
+    * The codecs which can decode stored clusters, by tag.
+    */
+   private final Map<Integer, DbClusterCodec> codecs = new ConcurrentHashMap<>();
+   private volatile DbClusterCodec codec;
+
+   /**
+    * Receives the errors of background activities, which have no caller to be thrown to.
+    */
+   private volatile Consumer<? super FileSystemRuntimeException> errorHandler = Throwable::printStackTrace;
+
+   /**
+    * Incremented by every change to the paths of the file system. Each changed path
+    * records the generation of its last change, so that the known existence of a path
+    * is checked again only after the path or one of its ancestors has changed.
+    */
+   private final AtomicLong pathGeneration = new AtomicLong();
+
+   /**
+    * The executor which runs asynchronous operations.
+    */
+   private ExecutorService executor;
 
-   public DbFileSystem(final String volumeLabel, final String rootPathName, final int clusterSize) {
-      uniqueId = UUID.randomUUID().toString();
+   /**
+    * If the executor has been created by the file system, and must then be shut down
+    * together with it.
+    */
+   private boolean ownedExecutor;
+   private ExecutionMode executionMode;
+
+   /**
+    * Limits the transactions running at the same time to the number of pooled
+    * connections. A permit is held for as long as a connection is bound to a thread.
+    */
+   private final Semaphore operationPermits;
+
+   /**
+    * The transaction which is running on each thread, if any.
+    */
+   private final ThreadLocal<Transaction> transaction = new ThreadLocal<>();
+
+   /**
+    * The contents whose clusters have been written by the transaction running on each
+    * thread. Their clusters are not cached until the transaction completes, since
+    * other transactions must not see uncommitted data.
+    */
+   private final ThreadLocal<Set<Long>> writtenContents = ThreadLocal.withInitial(HashSet::new);
+
+   /**
+    * The contents given to files by the transaction running on each thread, keyed by
+    * the file identifier. A file only takes its new content once the transaction
+    * commits, since other transactions must not read uncommitted contents.
+    */
+   private final ThreadLocal<Map<Long, Long>> writtenContentIds = ThreadLocal.withInitial(HashMap::new);
+
+   /**
+    * @param url
+    *           The JDBC url of the database which stores the file system
+    * @param volumeLabel
+    *           The volume name
+    * @param rootPathName
+    *           The name of the root directory
+    * @param clusterSize
+    *           The size of a cluster in bytes
+    */
+   public DbFileSystem(final String url, final String volumeLabel, final String rootPathName, final int clusterSize) {
+      this(url, null, null, volumeLabel, rootPathName, clusterSize);
+   }
+
+   /**
+    * @param url
+    *           The JDBC url of the database which stores the file system
+    * @param user
+    *           The database user
+    * @param password
+    *           The database user password
+    * @param volumeLabel
+    *           The volume name
+    * @param rootPathName
+    *           The name of the root directory
+    * @param clusterSize
+    *           The size of a cluster in bytes
+    */
+   public DbFileSystem(
+         final String url,
+         final String user,
+         final String password,
+         final String volumeLabel,
+         final String rootPathName,
+         final int clusterSize) {
+      this(new ConnectionPool(url, user, password), volumeLabel, rootPathName, clusterSize);
+   }
+
+   /**
+    * @param connectionPool
+    *           The pool of connections to the database which stores the file system.
+    *           It is closed together with the file system
+    * @param volumeLabel
+    *           The volume name
+    * @param rootPathName
+    *           The name of the root directory
+    * @param clusterSize
+    *           The size of a cluster in bytes
+    */
+   public DbFileSystem(
+         final ConnectionPool connectionPool,
+         final String volumeLabel,
+         final String rootPathName,
+         final int clusterSize) {
+      this(connectionPool, UUID.randomUUID().toString(), volumeLabel, rootPathName, clusterSize);
+   }
+
+   private DbFileSystem(
+         final ConnectionPool connectionPool,
+         final String uniqueId,
+         final String volumeLabel,
+         final String rootPathName,
+         final int clusterSize) {
+      this.connectionPool = connectionPool;
+      operationPermits = new Semaphore(connectionPool.getSize(), true);
+      executionMode = ExecutionMode.THREAD_POOL;
+      batchSize = DEFAULT_BATCH_SIZE;
+      pathCache = new DbPathCache(DEFAULT_PATH_CACHE_SIZE);
+      identityMap = new DbIdentityMap();
+      garbageCollectionBatchSize = DEFAULT_GARBAGE_COLLECTION_BATCH_SIZE;
+      garbageCollectionPause = DEFAULT_GARBAGE_COLLECTION_PAUSE;
+      streamTimeout = DEFAULT_STREAM_TIMEOUT;
+      clusterCache = new DbClusterCache(DEFAULT_CLUSTER_CACHE_SIZE, false);
+      existenceStaleness = DEFAULT_EXISTENCE_STALENESS;
+      inlineThreshold = DEFAULT_INLINE_THRESHOLD;
+      extentSize = clusterSize;
+      deduplicationEnabled = false;
+      codecs.put(DbDeflateCodec.TAG, new DbDeflateCodec());
+      codecs.put(DbLzCodec.TAG, new DbLzCodec());
+      codec = null;
+      this.uniqueId = uniqueId;
       this.volumeLabel = volumeLabel;
       this.clusterSize = clusterSize;
       this.rootPathName = rootPathName;
       exists = false;
    }
 
+   /**
+    * Opens a file system which has already been created, loading its volume name,
+    * cluster size and root directory name from the database.
+    *
+    * @param url
+    *           The JDBC url of the database which stores the file system
+    * @param uniqueId
+    *           The identifier of the file system, see {@link #getUniqueId()}
+    * @return The file system
+    */
+   public static DbFileSystem open(final String url, final String uniqueId) {
+      return open(url, null, null, uniqueId);
+   }
+
+   /**
+    * Opens a file system which has already been created.
+    *
+    * @param url
+    *           The JDBC url of the database which stores the file system
+    * @param user
+    *           The database user
+    * @param password
+    *           The database user password
+    * @param uniqueId
+    *           The identifier of the file system, see {@link #getUniqueId()}
+    * @return The file system
+    * @see #open(String, String)
+    */
+   public static DbFileSystem open(final String url, final String user, final String password, final String uniqueId) {
+      return open(new ConnectionPool(url, user, password), uniqueId);
+   }
+
+   /**
+    * Opens a file system which has already been created.
+    *
+    * @param connectionPool
+    *           The pool of connections to the database which stores the file system.
+    *           It is closed together with the file system, or if the file system
+    *           cannot be opened
+    * @param uniqueId
+    *           The identifier of the file system, see {@link #getUniqueId()}
+    * @return The file system
+    * @see #open(String, String)
+    */
+   public static DbFileSystem open(final ConnectionPool connectionPool, final String uniqueId) {
+      final DbFileSystem fileSystem = new DbFileSystem(connectionPool, uniqueId, null, null, 0);
+
+      try {
+         if (!fileSystem.exists()) {
+            FileSystem.error(FileSystem.FILE_SYSTEM_DOES_NOT_EXIST);
+         }
+
+         // The paths deleted by previous sessions may not have been reclaimed yet.
+         fileSystem.getGarbageCollector().resume();
+      } catch (final RuntimeException e) {
+         fileSystem.close();
+         throw e;
+      }
+
+      return fileSystem;
+   }
+
    @Override
    public FileSystem create() {
       if (exists()) {
          FileSystem.error(FileSystem.FILE_SYSTEM_ALREADY_EXIST);
       }
 
-      new DbSandbox() {
+      new DbSandbox(this) {
          @Override
-         public void run() {
-            exists = sqlInsert();
+         public void run(final Connection connection) throws SQLException {
+            exists = sqlInsert(connection);
+            root = new DbDirectory(DbFileSystem.this, null, rootPathName).create();
          }
 
          @Override
          public void onFail() {
             exists = false;
+            root = null;
          }
       }.execute(false);
 
@@ -69,17 +373,25 @@ public class DbFileSystem implements FileSystem
 
    @Override
    public void close() {
-      DbSandbox.close();
+      getGarbageCollector().close();
+
+      synchronized (this) {
+         if (ownedExecutor) {
+            executor.shutdownNow();
+         }
+      }
+
+      connectionPool.close();
    }
 
    @Override
    public boolean exists() {
       final boolean oldExists = exists;
 
-      new DbSandbox() {
+      new DbSandbox(this) {
          @Override
-         public void run() {
-            exists = sqlSelect();
+         public void run(final Connection connection) throws SQLException {
+            exists = sqlSelect(connection);
          }
 
          @Override
@@ -109,15 +421,13 @@ public class DbFileSystem implements FileSystem
    @Override
    public DirectoryPath getRoot() {
       if (root == null) {
-         new DbSandbox() {
-            @Override
-            public void run() {
-               sqlSelect();
-            }
-         }.execute(false);
+         final DbDirectory directory = new DbDirectory(this, null, rootPathName);
+
+         if (!directory.exists()) {
+            FileSystem.error(FileSystem.FILE_SYSTEM_DOES_NOT_EXIST);
+         }
 
-         // FIXME: for demo. Root should be created inside sqlSelect()
-         root = new DbDirectory(this, null, rootPathName).create();
+         root = (DirectoryPath) directory.canonical();
       }
 
       return root;
@@ -127,15 +437,15 @@ public class DbFileSystem implements FileSystem
    public void setVolumeLabel(final String label) {
       final String oldLabel = volumeLabel;
 
-      new DbSandbox() {
+      new DbSandbox(this) {
          @Override
          public void beforeRun() {
             volumeLabel = label;
          }
 
          @Override
-         public void run() {
-            sqlUpdate();
+         public void run(final Connection connection) throws SQLException {
+            sqlUpdate(connection);
          }
 
          @Override
@@ -145,20 +455,815 @@ public class DbFileSystem implements FileSystem
       }.execute(false);
    }
 
-   Connection getConnection() {
-      // Return a Connection from a connection pool.
-      return null;
+   /**
+    * Returns the number of clusters written by a single JDBC batch, or read by a single
+    * query when streaming a file.
+    */
+   public int getBatchSize() {
+      return batchSize;
+   }
+
+   /**
+    * Sets the number of clusters written by a single JDBC batch, or read by a single
+    * query when streaming a file. It bounds the memory used by file streams.
+    * The clusters of a file are always written inside a single transaction,
+    * whatever the batch size.
+    *
+    * @param batchSize
+    *           The new batch size
+    */
+   public void setBatchSize(final int batchSize) {
+      if (batchSize < 1) {
+         throw new IllegalArgumentException("The batch size must be positive");
+      }
+
+      this.batchSize = batchSize;
+   }
+
+   /**
+    * Returns the maximum number of resolved paths kept by the path cache.
+    */
+   public int getPathCacheSize() {
+      return pathCache.getMaximumSize();
+   }
+
+   /**
+    * Sets the maximum number of resolved paths kept by the path cache, which maps
+    * full path names to paths, or to nothing for paths which do not exist.
+    *
+    * @param pathCacheSize
+    *           The new maximum size, or 0 to disable the cache
+    */
+   public void setPathCacheSize(final int pathCacheSize) {
+      pathCache.setMaximumSize(pathCacheSize);
+   }
+
+   /**
+    * Returns the number of milliseconds for which the known existence of a path is
+    * trusted without querying the database.
+    */
+   public long getExistenceStaleness() {
+      return existenceStaleness;
+   }
+
+   /**
+    * Sets the number of milliseconds for which the known existence of a path is trusted
+    * without querying the database. Changes made through this file system are seen
+    * immediately; the staleness bound only applies to changes made by other processes
+    * sharing the same database.
+    *
+    * @param existenceStaleness
+    *           The new staleness bound, or 0 to query the database on every check
+    */
+   public void setExistenceStaleness(final long existenceStaleness) {
+      if (existenceStaleness < 0) {
+         throw new IllegalArgumentException("The existence staleness cannot be negative");
+      }
+
+      this.existenceStaleness = existenceStaleness;
+   }
+
+   /**
+    * Returns the maximum number of rows reclaimed by a single garbage collection batch.
+    */
+   public int getGarbageCollectionBatchSize() {
+      return garbageCollectionBatchSize;
+   }
+
+   /**
+    * Sets the maximum number of rows reclaimed by a single garbage collection batch.
+    * Each batch runs inside its own transaction, so smaller batches hold locks for
+    * a shorter time.
+    *
+    * @param garbageCollectionBatchSize
+    *           The new batch size
+    */
+   public void setGarbageCollectionBatchSize(final int garbageCollectionBatchSize) {
+      if (garbageCollectionBatchSize < 1) {
+         throw new IllegalArgumentException("The garbage collection batch size must be positive");
+      }
+
+      this.garbageCollectionBatchSize = garbageCollectionBatchSize;
+   }
+
+   /**
+    * Returns the number of milliseconds the garbage collector pauses between batches.
+    */
+   public long getGarbageCollectionPause() {
+      return garbageCollectionPause;
+   }
+
+   /**
+    * Sets the number of milliseconds the garbage collector pauses between batches,
+    * which bounds the share of the database time taken by the background collection.
+    *
+    * @param garbageCollectionPause
+    *           The new pause
+    */
+   public void setGarbageCollectionPause(final long garbageCollectionPause) {
+      if (garbageCollectionPause < 0) {
+         throw new IllegalArgumentException("The garbage collection pause cannot be negative");
+      }
+
+      this.garbageCollectionPause = garbageCollectionPause;
+   }
+
+   /**
+    * Returns the number of milliseconds an output stream may go without storing data
+    * before the data it has stored is reclaimed.
+    */
+   public long getStreamTimeout() {
+      return streamTimeout;
+   }
+
+   /**
+    * Sets the number of milliseconds an output stream may go without storing data
+    * before the data it has stored is reclaimed. This bounds the time for which the
+    * data of a stream which is never closed is kept, while a stream which is idle for
+    * longer fails when it is written to or closed.
+    *
+    * @param streamTimeout
+    *           The new timeout
+    */
+   public void setStreamTimeout(final long streamTimeout) {
+      if (streamTimeout < 0) {
+         throw new IllegalArgumentException("The stream timeout cannot be negative");
+      }
+
+      this.streamTimeout = streamTimeout;
+   }
+
+   /**
+    * Reclaims, on the current thread, the rows and clusters of every deleted path.
+    * They are otherwise reclaimed in the background after each delete.
+    */
+   public void collectGarbage() {
+      getGarbageCollector().collectAll();
+   }
+
+   /**
+    * Returns the maximum number of bytes of cluster data kept by the cluster cache.
+    */
+   public long getClusterCacheSize() {
+      return clusterCache.getCapacity();
+   }
+
+   /**
+    * Sets the maximum number of bytes of cluster data kept by the cluster cache, which
+    * is shared by every file of the file system. The cache is emptied.
+    *
+    * @param clusterCacheSize
+    *           The new maximum size, or 0 to disable the cache
+    */
+   public synchronized void setClusterCacheSize(final long clusterCacheSize) {
+      clusterCache = new DbClusterCache(clusterCacheSize, clusterCache.isOffHeap());
+   }
+
+   public boolean isClusterCacheOffHeap() {
+      return clusterCache.isOffHeap();
+   }
+
+   /**
+    * Sets if the cluster cache keeps its data outside of the Java heap, in direct buffers.
+    * Off-heap data does not weigh on garbage collection, but is copied on every hit.
+    * The cache is emptied.
+    *
+    * @param offHeap
+    *           If the data has to be kept off-heap
+    */
+   public synchronized void setClusterCacheOffHeap(final boolean offHeap) {
+      clusterCache = new DbClusterCache(clusterCache.getCapacity(), offHeap);
+   }
+
+   /**
+    * Returns the number of cluster reads served by the cluster cache.
+    */
+   public long getClusterCacheHits() {
+      return clusterCache.getHits();
+   }
+
+   /**
+    * Returns the number of cluster reads which missed the cluster cache.
+    */
+   public long getClusterCacheMisses() {
+      return clusterCache.getMisses();
+   }
+
+   /**
+    * Returns the maximum length of the data of a file stored inline.
+    */
+   public int getInlineThreshold() {
+      return inlineThreshold;
+   }
+
+   /**
+    * Sets the maximum length of the data of a file stored inline, in the row of the
+    * file instead of in clusters. Reading such a file takes a single query, and its
+    * data is not padded to a cluster. A file is moved to clusters as soon as it grows
+    * past the threshold, and back inline when it is written again below it.
+    *
+    * @param inlineThreshold
+    *           The new threshold, up to the cluster size, or 0 to store every file
+    *           in clusters
+    */
+   public void setInlineThreshold(final int inlineThreshold) {
+      if (inlineThreshold < 0 || inlineThreshold > clusterSize) {
+         throw new IllegalArgumentException("The inline threshold must be between 0 and the cluster size");
+      }
+
+      this.inlineThreshold = inlineThreshold;
+   }
+
+   /**
+    * Returns the maximum number of bytes of data stored by a single cluster row.
+    */
+   public int getExtentSize() {
+      return extentSize;
+   }
+
+   /**
+    * Sets the maximum number of bytes of data stored by a single cluster row. Larger
+    * extents store the data of large files in runs of consecutive clusters, so that
+    * it is read and written through few large rows; a partial write splits only the
+    * part of an extent it covers into single clusters. File streams then read and
+    * write an extent at a time.
+    *
+    * @param extentSize
+    *           The new extent size, a multiple of the cluster size, which by default
+    *           stores a cluster per row
+    */
+   public void setExtentSize(final int extentSize) {
+      if (extentSize < clusterSize || extentSize % clusterSize != 0) {
+         throw new IllegalArgumentException("The extent size must be a positive multiple of the cluster size");
+      }
+
+      this.extentSize = extentSize;
+   }
+
+   public boolean isDeduplicationEnabled() {
+      return deduplicationEnabled;
+   }
+
+   /**
+    * Sets if the data of the clusters written from now on is deduplicated. The data of
+    * a deduplicated cluster is stored once, in a block keyed by its SHA-256 hash and
+    * shared by every identical cluster of any file, so that writing it again only adds
+    * a reference. Hashing costs some processor time on every write, which pays off
+    * with highly redundant data.
+    * <p/>
+    * Clusters already stored are left as they are, and can be read whatever the setting.
+    *
+    * @param deduplicationEnabled
+    *           If the data has to be deduplicated
+    */
+   public void setDeduplicationEnabled(final boolean deduplicationEnabled) {
+      this.deduplicationEnabled = deduplicationEnabled;
+   }
+
+   /**
+    * Returns the number of deduplicated cluster writes which found the data already stored.
+    */
+   public long getDeduplicationHits() {
+      return deduplicationHits.get();
+   }
+
+   /**
+    * Returns the number of deduplicated cluster writes which had to store new data.
+    */
+   public long getDeduplicationMisses() {
+      return deduplicationMisses.get();
+   }
+
+   /**
+    * Returns the share of deduplicated cluster writes which found the data already stored,
+    * from 0 to 1, or 0 if no cluster has been deduplicated yet.
+    */
+   public double getDeduplicationHitRatio() {
+      final long hits = deduplicationHits.get();
+      final long writes = hits + deduplicationMisses.get();
+      return writes == 0 ? 0 : (double) hits / writes;
+   }
+
+   /**
+    * Returns the codec which encodes the clusters written from now on, or null if they
+    * are stored as they are.
+    */
+   public DbClusterCodec getCodec() {
+      return codec;
+   }
+
+   /**
+    * Sets the codec which encodes the clusters written from now on, and registers it.
+    * The data of a cluster is stored as it is whenever the codec does not make it
+    * smaller. Clusters already stored keep the codec which encoded them, so the codec
+    * can be changed at any time.
+    *
+    * @param codec
+    *           The new codec, or null to store the data as it is
+    */
+   public void setCodec(final DbClusterCodec codec) {
+      if (codec != null) {
+         registerCodec(codec);
+      }
+
+      this.codec = codec;
+   }
+
+   /**
+    * Registers a codec, so that the clusters it has encoded can be read, replacing any
+    * codec with the same tag. The {@link DbDeflateCodec} and {@link DbLzCodec} codecs
+    * are always registered.
+    *
+    * @param codec
+    *           The codec to register
+    */
+   public void registerCodec(final DbClusterCodec codec) {
+      if (codec.getTag() < 1 || codec.getTag() > 127) {
+         throw new IllegalArgumentException("The tag of a codec must be between 1 and 127");
+      }
+
+      codecs.put(codec.getTag(), codec);
+   }
+
+   /**
+    * Sets the handler of the errors raised by background activities, such as the
+    * garbage collection, which cannot be thrown to a caller. By default they are
+    * printed to the standard error stream.
+    *
+    * @param errorHandler
+    *           The new error handler
+    */
+   public void setErrorHandler(final Consumer<? super FileSystemRuntimeException> errorHandler) {
+      if (errorHandler == null) {
+         throw new IllegalArgumentException("The error handler cannot be null");
+      }
+
+      this.errorHandler = errorHandler;
+   }
+
+   /**
+    * Sets the executor which runs asynchronous operations.
+    * The executor is not shut down when the file system is closed.
+    * <p/>
+    * By default, a fixed thread pool with one thread per pooled connection is used.
+    *
+    * @param executor
+    *           The new executor
+    */
+   public synchronized void setExecutor(final ExecutorService executor) {
+      if (ownedExecutor) {
+         this.executor.shutdown();
+      }
+
+      this.executor = executor;
+      ownedExecutor = false;
+   }
+
+   /**
+    * Sets how asynchronous operations are run, replacing any executor set by
+    * {@link #setExecutor(ExecutorService)}.
+    *
+    * @param executionMode
+    *           The new execution mode
+    * @throws UnsupportedOperationException
+    *            If virtual threads are requested but the runtime does not support them
+    */
+   public synchronized void setExecutionMode(final ExecutionMode executionMode) {
+      if (executionMode == ExecutionMode.VIRTUAL_THREADS && !isVirtualThreadsSupported()) {
+         throw new UnsupportedOperationException("Virtual threads are not supported by this Java runtime");
+      }
+
+      if (ownedExecutor) {
+         executor.shutdown();
+      }
+
+      this.executionMode = executionMode;
+      executor = null;
+      ownedExecutor = false;
+   }
+
+   public synchronized ExecutionMode getExecutionMode() {
+      return executionMode;
+   }
+
+   /**
+    * Checks if the Java runtime supports virtual threads, which are required by
+    * {@link ExecutionMode#VIRTUAL_THREADS}.
+    */
+   public static boolean isVirtualThreadsSupported() {
+      try {
+         Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+         return true;
+      } catch (final NoSuchMethodException e) {
+         return false;
+      }
+   }
+
+   /**
+    * Returns the number of clusters read or written together when streaming a file:
+    * the batch size, or the number of clusters of an extent if it is larger.
+    */
+   int getStreamingBatchSize() {
+      return Math.max(batchSize, extentSize / clusterSize);
+   }
+
+   DbPathCache getPathCache() {
+      return pathCache;
+   }
+
+   /**
+    * Returns the garbage collector, which is created on first use so that the file
+    * system is fully constructed before the collector can reach it.
+    */
+   DbGarbageCollector getGarbageCollector() {
+      if (garbageCollector == null) {
+         synchronized (this) {
+            if (garbageCollector == null) {
+               garbageCollector = new DbGarbageCollector(this);
+            }
+         }
+      }
+
+      return garbageCollector;
    }
 
-   private boolean sqlSelect() {
-      return false;
+   DbIdentityMap getIdentityMap() {
+      return identityMap;
    }
 
-   private boolean sqlInsert() {
-      return true;
+   long getPathGeneration() {
+      return pathGeneration.get();
    }
 
-   private boolean sqlUpdate() {
-      return true;
+   /**
+    * Records a change to a path, removing it and every path under it from the path
+    * cache and invalidating the known existence of the path and of every path under it.
+    * If the current thread is running a transaction, this happens again once it
+    * completes, so that a rolled back change does not leave stale state behind.
+    *
+    * @param path
+    *           The changed path
+    * @param parent
+    *           The directory which the path has been added to or removed from, if any
+    * @param pathKey
+    *           The full name of the changed path
+    */
+   void invalidatePath(final DbObject path, final DirectoryPath parent, final String pathKey) {
+      final Runnable invalidation = () -> {
+         final long generation = pathGeneration.incrementAndGet();
+         path.changed(generation);
+
+         if (parent != null) {
+            ((DbObject) parent).childrenChanged(generation);
+         }
+
+         pathCache.invalidate(pathKey);
+      };
+
+      invalidation.run();
+      final Transaction current = transaction.get();
+
+      if (current != null && current.isActive()) {
+         current.afterCompletion(invalidation);
+      }
+   }
+
+   /**
+    * Reports the failure of a background activity to the error handler.
+    *
+    * @param errorCode
+    *           The error code, as defined by {@link FileSystem}
+    * @param cause
+    *           The failure
+    */
+   void reportError(final int errorCode, final Throwable cause) {
+      try {
+         errorHandler.accept(new FileSystemRuntimeException(FileSystem.getErrorMessage(errorCode), cause));
+      } catch (final RuntimeException e) {
+         // A failing handler must not stop the background activity.
+         e.printStackTrace();
+      }
+   }
+
+   /**
+    * Counts deduplicated cluster writes.
+    *
+    * @param hits
+    *           The number of clusters whose data was already stored
+    * @param misses
+    *           The number of clusters whose data had to be stored
+    */
+   void countDeduplication(final long hits, final long misses) {
+      deduplicationHits.addAndGet(hits);
+      deduplicationMisses.addAndGet(misses);
+   }
+
+   /**
+    * Decodes the data of a cluster with the codec which encoded it.
+    *
+    * @param tag
+    *           The tag of the codec
+    * @param data
+    *           The stored data
+    * @param length
+    *           The length of the decoded data
+    */
+   byte[] decode(final int tag, final byte[] data, final int length) {
+      if (tag == DbClusterCodec.IDENTITY) {
+         return data;
+      }
+
+      final DbClusterCodec decoder = codecs.get(tag);
+
+      if (decoder == null) {
+         throw new FileSystemRuntimeException("No codec is registered for the tag " + tag);
+      }
+
+      return decoder.decode(data, length);
+   }
+
+   DbClusterCache getClusterCache() {
+      return clusterCache;
+   }
+
+   /**
+    * Removes a range of clusters of a content from the cluster cache. If the current
+    * thread is running a transaction, the clusters are removed again once it completes,
+    * so that data read in the meantime, by the transaction itself or by others, is not
+    * kept.
+    *
+    * @param contentId
+    *           The identifier of the content
+    * @param from
+    *           The sequence number of the first cluster
+    * @param to
+    *           The sequence number following the last cluster,
+    *           or {@link Integer#MAX_VALUE} for every cluster of the content
+    */
+   void invalidateClusters(final long contentId, final int from, final int to) {
+      final DbClusterCache cache = clusterCache;
+      final Runnable invalidation = () -> {
+         if (from == 0 && to == Integer.MAX_VALUE) {
+            cache.invalidate(contentId);
+         } else {
+            cache.invalidate(contentId, from, to);
+         }
+      };
+
+      invalidation.run();
+      final Transaction current = transaction.get();
+
+      if (current != null && current.isActive()) {
+         final Set<Long> written = writtenContents.get();
+
+         if (written.add(contentId)) {
+            current.afterCompletion(() -> written.remove(contentId));
+         }
+
+         current.afterCompletion(invalidation);
+      }
+   }
+
+   /**
+    * Checks if the clusters of a content read by the current thread can be cached.
+    *
+    * @param contentId
+    *           The identifier of the content
+    */
+   boolean isClusterCacheable(final long contentId) {
+      return !writtenContents.get().contains(contentId);
+   }
+
+   /**
+    * Records the content given to a file by the transaction running on the current
+    * thread, and publishes it once the transaction commits, or immediately if there
+    * is none.
+    *
+    * @param fileId
+    *           The identifier of the file
+    * @param contentId
+    *           The identifier of the content, or 0 if the file has none
+    * @param publication
+    *           Sets the content of the file
+    */
+   void writeContentId(final long fileId, final long contentId, final Runnable publication) {
+      final Transaction current = transaction.get();
+
+      if (current != null && current.isActive()) {
+         final Map<Long, Long> written = writtenContentIds.get();
+
+         if (written.put(fileId, contentId) == null) {
+            current.afterCompletion(() -> written.remove(fileId));
+         }
+
+         current.afterCommit(publication);
+      } else {
+         publication.run();
+      }
+   }
+
+   /**
+    * Returns the content given to a file by the transaction running on the current
+    * thread, or null if it has given none.
+    *
+    * @param fileId
+    *           The identifier of the file
+    */
+   Long getWrittenContentId(final long fileId) {
+      return writtenContentIds.get().get(fileId);
+   }
+
+   /**
+    * Runs an action once the transaction running on the current thread completes,
+    * or immediately if there is none.
+    *
+    * @param action
+    *           The action to run
+    */
+   void afterCompletion(final Runnable action) {
+      final Transaction current = transaction.get();
+
+      if (current != null && current.isActive()) {
+         current.afterCompletion(action);
+      } else {
+         action.run();
+      }
+   }
+
+   /**
+    * Runs an action once the transaction running on the current thread commits,
+    * or immediately if there is none. The action is dropped if the transaction
+    * rolls back.
+    *
+    * @param action
+    *           The action to run
+    */
+   void afterCommit(final Runnable action) {
+      final Transaction current = transaction.get();
+
+      if (current != null && current.isActive()) {
+         current.afterCommit(action);
+      } else {
+         action.run();
+      }
+   }
+
+   /**
+    * Runs an action if the transaction running on the current thread rolls back.
+    * Nothing is done if there is none.
+    *
+    * @param action
+    *           The action to run
+    */
+   void afterRollback(final Runnable action) {
+      final Transaction current = transaction.get();
+
+      if (current != null && current.isActive()) {
+         current.afterRollback(action);
+      }
+   }
+
+   synchronized ExecutorService getExecutor() {
+      if (executor == null) {
+         executor = executionMode == ExecutionMode.VIRTUAL_THREADS
+               ? newVirtualThreadExecutor()
+               : Executors.newFixedThreadPool(connectionPool.getSize());
+         ownedExecutor = true;
+      }
+
+      return executor;
+   }
+
+   /**
+    * Returns the transaction running on the current thread, or a new one bound
+    * to a new connection if there is none.
+    */
+   Transaction getTransaction() throws SQLException {
+      Transaction current = transaction.get();
+
+      if (current == null) {
+         current = new Transaction(getConnection());
+         transaction.set(current);
+      }
+
+      return current;
+   }
+
+   /**
+    * Unbinds a completed transaction from the current thread and returns its connection
+    * to the pool.
+    *
+    * @param completed
+    *           The completed transaction
+    */
+   void releaseTransaction(final Transaction completed) {
+      transaction.remove();
+
+      try {
+         completed.getConnection().close();
+      } catch (final SQLException e) {
+         e.printStackTrace();
+      } finally {
+         operationPermits.release();
+      }
+   }
+
+   /**
+    * Takes a connection from the pool once a permit is available for it. The permit is
+    * given back by {@link #releaseTransaction(Transaction)}.
+    */
+   Connection getConnection() throws SQLException {
+      try {
+         operationPermits.acquire();
+      } catch (final InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new SQLException("Interrupted while waiting for a connection", e);
+      }
+
+      final Connection connection;
+
+      try {
+         connection = connectionPool.acquire();
+      } catch (final SQLException | RuntimeException e) {
+         operationPermits.release();
+         throw e;
+      }
+
+      if (!schemaCreated) {
+         synchronized (this) {
+            if (!schemaCreated) {
+               try {
+                  Sql.createSchema(connection);
+               } catch (final SQLException e) {
+                  connection.close();
+                  operationPermits.release();
+                  throw e;
+               }
+
+               schemaCreated = true;
+            }
+         }
+      }
+
+      return connection;
+   }
+
+   /**
+    * Returns an executor which starts a virtual thread per task.
+    * Virtual threads are available since Java 21 only, hence the reflective lookup.
+    */
+   private static ExecutorService newVirtualThreadExecutor() {
+      try {
+         return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+      } catch (final ReflectiveOperationException e) {
+         throw new UnsupportedOperationException("Virtual threads are not supported by this Java runtime", e);
+      }
+   }
+
+   /**
+    * Checks if the file system is stored, and loads its stored properties.
+    */
+   private boolean sqlSelect(final Connection connection) throws SQLException {
+      try (final PreparedStatement statement = connection.prepareStatement(Sql.SELECT_FILE_SYSTEM)) {
+         statement.setString(1, uniqueId);
+
+         try (final ResultSet resultSet = statement.executeQuery()) {
+            if (!resultSet.next()) {
+               return false;
+            }
+
+            final int storedClusterSize = resultSet.getInt("CLUSTER_SIZE");
+            final String storedRootPathName = resultSet.getString("ROOT_NAME");
+            volumeLabel = resultSet.getString("VOLUME_LABEL");
+
+            if (clusterSize != storedClusterSize) {
+               clusterSize = storedClusterSize;
+               extentSize = storedClusterSize;
+            }
+
+            if (storedRootPathName != null) {
+               rootPathName = storedRootPathName;
+            }
+
+            return true;
+         }
+      }
+   }
+
+   private boolean sqlInsert(final Connection connection) throws SQLException {
+      try (final PreparedStatement statement = connection.prepareStatement(Sql.INSERT_FILE_SYSTEM)) {
+         statement.setString(1, uniqueId);
+         statement.setString(2, volumeLabel);
+         statement.setInt(3, clusterSize);
+         return statement.executeUpdate() == 1;
+      }
+   }
+
+   private boolean sqlUpdate(final Connection connection) throws SQLException {
+      try (final PreparedStatement statement = connection.prepareStatement(Sql.UPDATE_FILE_SYSTEM)) {
+         statement.setString(1, volumeLabel);
+         statement.setString(2, uniqueId);
+         return statement.executeUpdate() == 1;
+      }
    }
 }
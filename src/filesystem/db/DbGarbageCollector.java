@@ -0,0 +1,478 @@
+package filesystem.db;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import filesystem.FileSystem;
+import filesystem.db.sql.Sql;
+
+/**
+ * Reclaims the rows of deleted directories and the clusters of contents which are no
+ * longer referenced by any file.
+ * <p/>
+ * Deleting a directory only unlinks it from its parent and queues it, which makes the
+ * whole subtree invisible at once. The collector then works through the queue in the
+ * background, a bounded batch of rows at a time, each batch inside its own short
+ * transaction and followed by a pause, so that large deletes do not hold the locks
+ * and connections needed by other writers. A failed batch is reported to the file
+ * system error handler and tried again after a delay, which doubles with every
+ * consecutive failure.
+ * <p/>
+ * The content written by an output stream is queued when it is created, but is only
+ * reclaimed once the stream has not stored any data for the stream timeout, so that
+ * the content of a stream which is never closed does not stay in the database.
+ *
+ * @author Edoardo Luppi
+ */
+class DbGarbageCollector
+{
+   /**
+    * The maximum number of milliseconds before a failed batch is tried again.
+    */
+   static final long MAX_RETRY_DELAY = 60000;
+
+   private final DbFileSystem fileSystem;
+
+   /**
+    * The thread which runs the background collection, created on first use.
+    */
+   private ScheduledExecutorService scheduler;
+
+   /**
+    * If a background collection is scheduled or running.
+    */
+   private boolean scheduled;
+   private boolean closed;
+
+   /**
+    * The number of consecutive failed batches, only accessed by the collector thread.
+    */
+   private int failures;
+
+   /**
+    * Guards the collection, so that a single batch runs at a time.
+    */
+   private final Object collecting = new Object();
+
+   DbGarbageCollector(final DbFileSystem fileSystem) {
+      this.fileSystem = fileSystem;
+      scheduled = false;
+      closed = false;
+      failures = 0;
+   }
+
+   /**
+    * Queues a deleted directory, whose descendants are reclaimed by the collector.
+    * The directory row must not have been deleted yet, as its ancestry is read from it.
+    *
+    * @param connection
+    *           The connection on which the statement is executed
+    * @param pathId
+    *           The identifier of the deleted directory
+    */
+   void queuePath(final Connection connection, final long pathId) throws SQLException {
+      queue(connection, Sql.INSERT_PATH_GARBAGE, pathId);
+   }
+
+   /**
+    * Queues a content which is no longer referenced, whose clusters are reclaimed
+    * by the collector.
+    *
+    * @param connection
+    *           The connection on which the statement is executed
+    * @param contentId
+    *           The identifier of the content
+    */
+   void queueContent(final Connection connection, final long contentId) throws SQLException {
+      queue(connection, Sql.INSERT_CONTENT_GARBAGE, contentId);
+   }
+
+   /**
+    * Queues the content created by an output stream, which stays staged for the stream
+    * timeout, so that it is reclaimed if the stream is never closed.
+    *
+    * @param connection
+    *           The connection on which the statement is executed
+    * @param contentId
+    *           The identifier of the content
+    */
+   void queueStagedContent(final Connection connection, final long contentId) throws SQLException {
+      try (final PreparedStatement statement = connection.prepareStatement(Sql.INSERT_STAGED_GARBAGE)) {
+         statement.setString(1, fileSystem.getUniqueId());
+         statement.setLong(2, contentId);
+         statement.setLong(3, fileSystem.getStreamTimeout());
+         statement.executeUpdate();
+      }
+
+      fileSystem.afterCompletion(this::schedule);
+   }
+
+   /**
+    * Keeps the content of an output stream staged for the stream timeout again.
+    *
+    * @param connection
+    *           The connection on which the statement is executed
+    * @param contentId
+    *           The identifier of the content
+    * @return If the content was still staged, rather than claimed by the collector
+    */
+   boolean renewStagedContent(final Connection connection, final long contentId) throws SQLException {
+      try (final PreparedStatement statement = connection.prepareStatement(Sql.RENEW_STAGED_GARBAGE)) {
+         statement.setLong(1, fileSystem.getStreamTimeout());
+         statement.setString(2, fileSystem.getUniqueId());
+         statement.setLong(3, contentId);
+         return statement.executeUpdate() > 0;
+      }
+   }
+
+   /**
+    * Removes the content of an output stream from the queue, once a file references it.
+    *
+    * @param connection
+    *           The connection on which the statement is executed
+    * @param contentId
+    *           The identifier of the content
+    * @return If the content was still staged, rather than claimed by the collector
+    */
+   boolean unqueueStagedContent(final Connection connection, final long contentId) throws SQLException {
+      return updateStagedContent(connection, Sql.DELETE_STAGED_GARBAGE, contentId) > 0;
+   }
+
+   /**
+    * Ends the staging of the content of an output stream which failed, which is then
+    * reclaimed without waiting for the stream timeout.
+    *
+    * @param connection
+    *           The connection on which the statement is executed
+    * @param contentId
+    *           The identifier of the content
+    */
+   void releaseStagedContent(final Connection connection, final long contentId) throws SQLException {
+      updateStagedContent(connection, Sql.RELEASE_STAGED_GARBAGE, contentId);
+      fileSystem.afterCompletion(this::schedule);
+   }
+
+   /**
+    * Reclaims every queued row on the current thread.
+    */
+   void collectAll() {
+      while (collect()) {
+         // Each batch runs inside its own transaction.
+      }
+   }
+
+   synchronized void close() {
+      closed = true;
+
+      if (scheduler != null) {
+         scheduler.shutdownNow();
+      }
+   }
+
+   /**
+    * Starts a background collection if any entry is queued, as left by previous
+    * sessions which did not reclaim every deleted path.
+    */
+   void resume() {
+      final boolean[] queued = { false };
+
+      new DbSandbox(fileSystem) {
+         @Override
+         public void run(final Connection connection) throws SQLException {
+            try (final PreparedStatement statement = connection.prepareStatement(Sql.SELECT_ANY_GARBAGE)) {
+               statement.setString(1, fileSystem.getUniqueId());
+
+               try (final ResultSet resultSet = statement.executeQuery()) {
+                  queued[0] = resultSet.next();
+               }
+            }
+         }
+      }.execute(false);
+
+      if (queued[0]) {
+         schedule();
+      }
+   }
+
+   /**
+    * Starts a background collection, unless one is already running.
+    */
+   void schedule() {
+      schedule(fileSystem.getGarbageCollectionPause());
+   }
+
+   /**
+    * Starts a background collection after the given delay, unless one is already running.
+    */
+   private synchronized void schedule(final long delay) {
+      if (scheduled || closed) {
+         return;
+      }
+
+      if (scheduler == null) {
+         scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "dbfs-garbage-collector");
+            thread.setDaemon(true);
+            return thread;
+         });
+      }
+
+      scheduled = true;
+      scheduler.schedule(this::run, delay, TimeUnit.MILLISECONDS);
+   }
+
+   private void run() {
+      boolean remaining;
+      long delay = fileSystem.getGarbageCollectionPause();
+
+      try {
+         remaining = collect();
+         failures = 0;
+
+         if (!remaining) {
+            // The staged contents are checked again once the first of them expires.
+            final long stagedDelay = selectStagedDelay();
+            remaining = stagedDelay >= 0;
+            delay = Math.max(delay, stagedDelay);
+         }
+      } catch (final RuntimeException e) {
+         // The queue is left as it is, and the batch is tried again once the delay expires.
+         fileSystem.reportError(FileSystem.GARBAGE_COLLECTION_FAILED, e);
+         remaining = true;
+         delay = getRetryDelay(++failures);
+      }
+
+      synchronized (this) {
+         scheduled = false;
+      }
+
+      if (remaining) {
+         schedule(delay);
+      }
+   }
+
+   /**
+    * Returns the number of milliseconds before a failed batch is tried again.
+    *
+    * @param failures
+    *           The number of consecutive failed batches
+    */
+   private long getRetryDelay(final int failures) {
+      final long pause = Math.max(fileSystem.getGarbageCollectionPause(), 1);
+      return Math.min(pause << Math.min(failures, 16), MAX_RETRY_DELAY);
+   }
+
+   /**
+    * Reclaims a batch of rows, starting from the oldest queued entry.
+    *
+    * @return If there may be more to reclaim
+    */
+   private boolean collect() {
+      final boolean[] remaining = { false };
+
+      synchronized (collecting) {
+         new DbSandbox(fileSystem) {
+            @Override
+            public void run(final Connection connection) throws SQLException {
+               remaining[0] = sqlCollect(connection, fileSystem.getGarbageCollectionBatchSize());
+            }
+         }.execute(false);
+      }
+
+      return remaining[0];
+   }
+
+   /**
+    * Returns the number of milliseconds before the first staged content expires,
+    * or -1 if no content is staged.
+    */
+   private long selectStagedDelay() {
+      final long[] delay = { -1 };
+
+      new DbSandbox(fileSystem) {
+         @Override
+         public void run(final Connection connection) throws SQLException {
+            try (final PreparedStatement statement = connection.prepareStatement(Sql.SELECT_STAGED_GARBAGE_DELAY)) {
+               statement.setString(1, fileSystem.getUniqueId());
+
+               try (final ResultSet resultSet = statement.executeQuery()) {
+                  if (resultSet.next()) {
+                     final long stagedDelay = resultSet.getLong("DELAY");
+                     delay[0] = resultSet.wasNull() ? -1 : Math.max(stagedDelay, 0);
+                  }
+               }
+            }
+         }
+      }.execute(false);
+
+      return delay[0];
+   }
+
+   private void queue(final Connection connection, final String sql, final long id) throws SQLException {
+      try (final PreparedStatement statement = connection.prepareStatement(sql)) {
+         statement.setString(1, fileSystem.getUniqueId());
+         statement.setLong(2, id);
+         statement.executeUpdate();
+      }
+
+      fileSystem.afterCompletion(this::schedule);
+   }
+
+   private int updateStagedContent(final Connection connection, final String sql, final long contentId)
+         throws SQLException {
+      try (final PreparedStatement statement = connection.prepareStatement(sql)) {
+         statement.setString(1, fileSystem.getUniqueId());
+         statement.setLong(2, contentId);
+         return statement.executeUpdate();
+      }
+   }
+
+   /**
+    * Works through the queued entries, in order, until a batch of rows has been reclaimed.
+    */
+   private boolean sqlCollect(final Connection connection, final int batchSize) throws SQLException {
+      int remainingRows = batchSize;
+
+      try (final PreparedStatement statement = connection.prepareStatement(Sql.SELECT_GARBAGE)) {
+         statement.setString(1, fileSystem.getUniqueId());
+
+         while (remainingRows > 0) {
+            try (final ResultSet resultSet = statement.executeQuery()) {
+               if (!resultSet.next()) {
+                  return false;
+               }
+
+               final long garbageId = resultSet.getLong("ID");
+               final String ancestry = resultSet.getString("ANCESTRY");
+               resultSet.getTimestamp("STAGED_UNTIL");
+
+               if (!resultSet.wasNull() && !sqlClaimStagedContent(connection, garbageId)) {
+                  // The stream stored a batch meanwhile, so the content is skipped from now on.
+                  return true;
+               }
+
+               // Every entry costs at least a row, so that the loop always ends.
+               remainingRows -= Math.max(1, ancestry != null
+                     ? sqlCollectPath(connection, garbageId, ancestry, remainingRows)
+                     : sqlCollectContent(connection, garbageId, resultSet.getLong("CONTENT_ID"), remainingRows));
+            }
+         }
+      }
+
+      return true;
+   }
+
+   /**
+    * Deletes a batch of the paths under a deleted directory, whatever their depth.
+    * Files release their content.
+    *
+    * @param ancestry
+    *           The ancestry shared by the paths under the directory
+    * @return The number of deleted rows
+    */
+   private int sqlCollectPath(
+         final Connection connection,
+         final long garbageId,
+         final String ancestry,
+         final int batchSize) throws SQLException {
+      int count = 0;
+
+      try (final PreparedStatement select = connection.prepareStatement(Sql.SELECT_DELETED_PATHS_PAGE);
+            final PreparedStatement delete = connection.prepareStatement(Sql.DELETE_PATH)) {
+         select.setString(1, ancestry + "%");
+         select.setInt(2, batchSize);
+
+         try (final ResultSet resultSet = select.executeQuery()) {
+            while (resultSet.next()) {
+               final long id = resultSet.getLong("ID");
+               final long contentId = DbFile.readContentId(resultSet);
+
+               if (!DbDirectory.PATH_TYPE.equals(resultSet.getString("PATH_TYPE")) && contentId != 0) {
+                  DbFile.sqlReleaseContent(connection, fileSystem, contentId);
+               }
+
+               delete.setLong(1, id);
+               delete.addBatch();
+               count++;
+            }
+         }
+
+         if (count > 0) {
+            delete.executeBatch();
+         }
+      }
+
+      if (count < batchSize) {
+         sqlDeleteGarbage(connection, garbageId);
+      }
+
+      return count;
+   }
+
+   /**
+    * Deletes a batch of the clusters of an unreferenced content, and the content itself
+    * once it has no clusters left.
+    *
+    * @return The number of deleted rows
+    */
+   private int sqlCollectContent(
+         final Connection connection,
+         final long garbageId,
+         final long contentId,
+         final int batchSize) throws SQLException {
+      final int first;
+
+      try (final PreparedStatement statement = connection.prepareStatement(Sql.SELECT_FIRST_CLUSTER)) {
+         statement.setLong(1, contentId);
+
+         try (final ResultSet resultSet = statement.executeQuery()) {
+            resultSet.next();
+            first = resultSet.getInt("SEQUENCE_NUMBER");
+
+            if (resultSet.wasNull()) {
+               try (final PreparedStatement delete = connection.prepareStatement(Sql.DELETE_CONTENT)) {
+                  delete.setLong(1, contentId);
+                  delete.executeUpdate();
+               }
+
+               sqlDeleteGarbage(connection, garbageId);
+               return 1;
+            }
+         }
+      }
+
+      final int to = (int) Math.min((long) first + batchSize, Integer.MAX_VALUE);
+      DbFile.sqlReleaseBlocks(connection, contentId, first, to);
+
+      try (final PreparedStatement statement = connection.prepareStatement(Sql.DELETE_CLUSTERS_BEFORE)) {
+         statement.setLong(1, contentId);
+         statement.setInt(2, to);
+         return statement.executeUpdate();
+      }
+   }
+
+   /**
+    * Claims an expired staged content, so that its stream can no longer store data in it.
+    *
+    * @return If the content had not been renewed by its stream meanwhile
+    */
+   private static boolean sqlClaimStagedContent(final Connection connection, final long garbageId)
+         throws SQLException {
+      try (final PreparedStatement statement = connection.prepareStatement(Sql.CLAIM_STAGED_GARBAGE)) {
+         statement.setLong(1, garbageId);
+         return statement.executeUpdate() > 0;
+      }
+   }
+
+   private static void sqlDeleteGarbage(final Connection connection, final long garbageId) throws SQLException {
+      try (final PreparedStatement statement = connection.prepareStatement(Sql.DELETE_GARBAGE)) {
+         statement.setLong(1, garbageId);
+         statement.executeUpdate();
+      }
+   }
+}
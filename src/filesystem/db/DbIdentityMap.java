@@ -0,0 +1,95 @@
+package filesystem.db;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Maps the identifier of each stored path to the one instance which represents it,
+ * so that separate lookups of the same path share its state, such as the loaded
+ * children of a directory.
+ * <p/>
+ * Instances are referenced weakly: a path which is no longer used anywhere else
+ * is dropped from the map and read again from the database when needed.
+ *
+ * @author Edoardo Luppi
+ */
+class DbIdentityMap
+{
+   private static final class PathReference extends WeakReference<DbObject>
+   {
+      private final long id;
+
+      PathReference(final DbObject path, final ReferenceQueue<DbObject> queue) {
+         super(path, queue);
+         id = path.getId();
+      }
+   }
+
+   private final Map<Long, PathReference> paths = new HashMap<>();
+
+   /**
+    * The references whose instance has been garbage collected.
+    */
+   private final ReferenceQueue<DbObject> collected = new ReferenceQueue<>();
+
+   /**
+    * Returns the instance which represents a stored path, or null if there is none.
+    *
+    * @param id
+    *           The identifier of the path
+    */
+   synchronized DbObject get(final long id) {
+      expunge();
+      final PathReference reference = paths.get(id);
+      return reference == null ? null : reference.get();
+   }
+
+   /**
+    * Makes a path the instance which represents its identifier, unless another instance
+    * already does.
+    *
+    * @param path
+    *           A stored path
+    * @return The instance which represents the path identifier
+    */
+   synchronized DbObject register(final DbObject path) {
+      expunge();
+      final PathReference reference = paths.get(path.getId());
+      final DbObject current = reference == null ? null : reference.get();
+
+      if (current != null) {
+         return current;
+      }
+
+      paths.put(path.getId(), new PathReference(path, collected));
+      return path;
+   }
+
+   /**
+    * Removes a path which has been deleted, if it is the instance which represents
+    * its identifier.
+    *
+    * @param path
+    *           The deleted path
+    */
+   synchronized void remove(final DbObject path) {
+      final PathReference reference = paths.get(path.getId());
+
+      if (reference != null && reference.get() == path) {
+         paths.remove(path.getId());
+      }
+   }
+
+   private void expunge() {
+      PathReference reference;
+
+      while ((reference = (PathReference) collected.poll()) != null) {
+         // The identifier may have been registered again by a newer instance.
+         if (paths.get(reference.id) == reference) {
+            paths.remove(reference.id);
+         }
+      }
+   }
+}
@@ -0,0 +1,152 @@
+package filesystem.db;
+
+import java.util.Arrays;
+
+import filesystem.exceptions.FileSystemRuntimeException;
+
+/**
+ * Encodes clusters with a byte-oriented LZ77 scheme, in the format of LZF, which is
+ * much faster than Deflate, both ways, for a lower compression ratio.
+ * <p/>
+ * The encoded data is a sequence of runs, each one starting with a control byte.
+ * A control byte below 32 is followed by that many literal bytes, plus one. Otherwise
+ * its three high bits hold the length of a back reference, less two, with a following
+ * byte adding to it when they are all set, and its five low bits, together with the
+ * next byte, hold the distance of the referenced bytes, less one.
+ *
+ * @author Edoardo Luppi
+ */
+public final class DbLzCodec implements DbClusterCodec
+{
+   public static final int TAG = 2;
+
+   private static final int HASH_BITS = 14;
+   private static final int MAXIMUM_LITERALS = 32;
+   private static final int MAXIMUM_DISTANCE = 1 << 13;
+   private static final int MAXIMUM_LENGTH = 264;
+
+   @Override
+   public int getTag() {
+      return TAG;
+   }
+
+   @Override
+   public byte[] encode(final byte[] data) {
+      final int length = data.length;
+      final byte[] encoded = new byte[length + length / MAXIMUM_LITERALS + 1];
+
+      // The last position, plus one, at which each hash of three bytes has been seen.
+      final int[] positions = new int[1 << HASH_BITS];
+      int literals = 0;
+      int input = 0;
+      int output = 0;
+
+      while (input < length - 2) {
+         final int hash = hash(data, input);
+         final int reference = positions[hash] - 1;
+         final int distance = input - reference - 1;
+         positions[hash] = input + 1;
+
+         if (reference < 0
+               || distance >= MAXIMUM_DISTANCE
+               || data[reference] != data[input]
+               || data[reference + 1] != data[input + 1]
+               || data[reference + 2] != data[input + 2]) {
+            input++;
+            continue;
+         }
+
+         final int maximumLength = Math.min(MAXIMUM_LENGTH, length - input);
+         int matchLength = 3;
+
+         while (matchLength < maximumLength && data[reference + matchLength] == data[input + matchLength]) {
+            matchLength++;
+         }
+
+         output = writeLiterals(data, literals, input, encoded, output);
+         final int storedLength = matchLength - 2;
+
+         if (storedLength < 7) {
+            encoded[output++] = (byte) (storedLength << 5 | distance >> 8);
+         } else {
+            encoded[output++] = (byte) (7 << 5 | distance >> 8);
+            encoded[output++] = (byte) (storedLength - 7);
+         }
+
+         encoded[output++] = (byte) distance;
+         input += matchLength;
+         literals = input;
+      }
+
+      output = writeLiterals(data, literals, length, encoded, output);
+      return Arrays.copyOf(encoded, output);
+   }
+
+   @Override
+   public byte[] decode(final byte[] data, final int length) {
+      final byte[] decoded = new byte[length];
+      int input = 0;
+      int output = 0;
+
+      try {
+         while (input < data.length) {
+            final int control = data[input++] & 0xFF;
+
+            if (control < MAXIMUM_LITERALS) {
+               System.arraycopy(data, input, decoded, output, control + 1);
+               input += control + 1;
+               output += control + 1;
+               continue;
+            }
+
+            int matchLength = control >> 5;
+
+            if (matchLength == 7) {
+               matchLength += data[input++] & 0xFF;
+            }
+
+            int reference = output - ((control & 0x1F) << 8) - (data[input++] & 0xFF) - 1;
+
+            for (int end = output + matchLength + 2; output < end;) {
+               decoded[output++] = decoded[reference++];
+            }
+         }
+      } catch (final IndexOutOfBoundsException e) {
+         throw new FileSystemRuntimeException("The data of a cluster is corrupted", e);
+      }
+
+      if (output != length) {
+         throw new FileSystemRuntimeException("The data of a cluster is corrupted");
+      }
+
+      return decoded;
+   }
+
+   private static int hash(final byte[] data, final int position) {
+      final int value = (data[position] & 0xFF) << 16 | (data[position + 1] & 0xFF) << 8 | data[position + 2] & 0xFF;
+      return value * 0x9E3779B1 >>> 32 - HASH_BITS;
+   }
+
+   /**
+    * Writes the bytes from a position up to another as literal runs.
+    *
+    * @return The position following the written runs
+    */
+   private static int writeLiterals(
+         final byte[] data,
+         final int from,
+         final int to,
+         final byte[] encoded,
+         final int position) {
+      int output = position;
+
+      for (int input = from; input < to; input += MAXIMUM_LITERALS) {
+         final int count = Math.min(MAXIMUM_LITERALS, to - input);
+         encoded[output++] = (byte) (count - 1);
+         System.arraycopy(data, input, encoded, output, count);
+         output += count;
+      }
+
+      return output;
+   }
+}
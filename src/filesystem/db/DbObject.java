@@ -1,26 +1,111 @@
 package filesystem.db;
 
+import java.sql.Array;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+
 import filesystem.DirectoryPath;
 import filesystem.FileSystem;
 import filesystem.Path;
+import filesystem.PathAttributes;
+import filesystem.db.sql.Sql;
 
 /**
  * Represents a database file system path, which could be a file or a directory.
+ * <p/>
+ * Once stored, a path is identified by the identifier of its row: two instances are
+ * equal if they represent the same row, and the paths read by the file system are
+ * represented by a single instance each.
  *
  * @author Edoardo Luppi
  */
 public abstract class DbObject implements Path
 {
-   private final FileSystem fileSystem;
-   private DirectoryPath parent;
-   private String name;
-   private boolean exists;
+   /**
+    * The space used by a stored path, as read from its row.
+    */
+   static final class Usage
+   {
+      final String ancestry;
+      final long bytes;
+      final long clusters;
+
+      /**
+       * The maximum number of bytes, or -1 if there is no quota.
+       */
+      final long quota;
+
+      private Usage(final String ancestry, final long bytes, final long clusters, final long quota) {
+         this.ancestry = ancestry;
+         this.bytes = bytes;
+         this.clusters = clusters;
+         this.quota = quota;
+      }
+   }
+
+   private final DbFileSystem fileSystem;
+   private volatile DirectoryPath parent;
+   private volatile String name;
+   private volatile boolean exists;
+
+   /**
+    * The file system path generation and the time, in nanoseconds, at which
+    * {@link #exists} has been last read from or written to the database.
+    */
+   private volatile long existsGeneration;
+   private volatile long existsTime;
+
+   /**
+    * The file system path generation of the last creation, deletion, rename or move of
+    * this path, which affects the existence of this path and of every path under it.
+    */
+   private volatile long changeGeneration;
+
+   /**
+    * The file system path generation of the last path added to or removed from this
+    * directory, which affects the existence of the instances looking up a child by name.
+    */
+   private volatile long childrenGeneration;
+
+   /**
+    * If this instance represents its row in the identity map, and is then the one
+    * changed by every operation of the file system on the row.
+    */
+   private volatile boolean shared;
+
+   /**
+    * The identifier of the row which stores this path, or 0 if it is not known yet.
+    */
+   private volatile long id;
 
 	DbObject(final FileSystem fileSystem, final DirectoryPath parent, final String name) {
-      this.fileSystem = fileSystem;
+      this(fileSystem, parent, name, 0);
+   }
+
+   /**
+    * Constructs a path which has already been read from the database.
+    */
+   DbObject(final FileSystem fileSystem, final DirectoryPath parent, final String name, final long id) {
+      this.fileSystem = (DbFileSystem) fileSystem;
       this.parent = parent;
       this.name = name;
-      exists = false;
+      this.id = id;
+      exists = id != 0;
+      existsGeneration = -1;
+
+      if (exists) {
+         existenceValidated(this.fileSystem.getPathGeneration());
+      }
    }
 
    @Override
@@ -29,19 +114,29 @@ public abstract class DbObject implements Path
          FileSystem.error(FileSystem.PATH_ALREADY_EXISTS);
       }
 
-      new DbSandbox() {
+      new DbSandbox(fileSystem) {
          @Override
-         public void run() {
-            exists = sqlInsert();
+         public void run(final Connection connection) throws SQLException {
+            exists = sqlInsert(connection);
          }
 
          @Override
          public void onFail() {
             exists = false;
          }
-      };
+      }.execute(false);
 
-      return this;
+      final DbObject created = canonical();
+      final DbDirectory dbParent = (DbDirectory) parent;
+      final String createdName = name;
+
+      if (dbParent != null) {
+         fileSystem.afterCommit(() -> dbParent.addChild(createdName, created));
+      }
+
+      fileSystem.invalidatePath(this, parent, getPathKey());
+      existenceValidated(fileSystem.getPathGeneration());
+      return created;
    }
 
    @Override
@@ -53,10 +148,10 @@ public abstract class DbObject implements Path
          FileSystem.error(FileSystem.PATH_CANNOT_BE_DELETED);
       }
 
-      new DbSandbox() {
+      new DbSandbox(fileSystem) {
          @Override
-         public void run() {
-            exists = !sqlDelete();
+         public void run(final Connection connection) throws SQLException {
+            exists = !sqlDelete(connection);
          }
 
          @Override
@@ -65,12 +160,44 @@ public abstract class DbObject implements Path
          }
       }.execute(false);
 
+      final DbDirectory dbParent = (DbDirectory) parent;
+      final String deletedName = name;
+
+      fileSystem.afterCommit(() -> {
+         dbParent.removeChild(deletedName, this);
+         fileSystem.getIdentityMap().remove(this);
+      });
+      fileSystem.invalidatePath(this, parent, getPathKey());
+      existenceValidated(fileSystem.getPathGeneration());
       return parent;
    }
 
+   /**
+    * Checks if the path exists. The database is queried only if this path or one of its
+    * ancestors has changed since the last check, or if the last check is older than
+    * the file system existence staleness bound.
+    * <p/>
+    * Changes are tracked per path rather than per file system, so that writes to other
+    * subtrees leave the known existence of this path alone; the price is a walk up the
+    * ancestry in memory on each check, which is proportional to the path depth.
+    */
    @Override
    public boolean exists() {
-      exists = sqlSelect();
+      final long generation = fileSystem.getPathGeneration();
+
+      if (existsGeneration >= getLastChange()
+            && System.nanoTime() - existsTime < fileSystem.getExistenceStaleness() * 1000000) {
+         return exists;
+      }
+
+      new DbSandbox(fileSystem) {
+         @Override
+         public void run(final Connection connection) throws SQLException {
+            exists = sqlSelect(connection);
+         }
+      }.execute(false);
+
+      existenceValidated(generation);
       return exists;
    }
 
@@ -79,16 +206,21 @@ public abstract class DbObject implements Path
       checkPath();
 
       final DirectoryPath oldParent = parent;
+      final String oldPathKey = getPathKey();
 
-      new DbSandbox() {
+      new DbSandbox(fileSystem) {
          @Override
          public void beforeRun() {
             parent = path;
          }
 
          @Override
-         public void run() {
-            sqlUpdate();
+         public void run(final Connection connection) throws SQLException {
+            if (!path.equals(oldParent)) {
+               updateAncestry(connection);
+            }
+
+            sqlUpdate(connection);
          }
 
          @Override
@@ -97,6 +229,18 @@ public abstract class DbObject implements Path
          }
       }.execute(false);
 
+      final String movedName = name;
+
+      fileSystem.afterCommit(() -> {
+         if (oldParent != null) {
+            ((DbDirectory) oldParent).removeChild(movedName, this);
+         }
+
+         ((DbDirectory) path).addChild(movedName, this);
+      });
+      fileSystem.invalidatePath(this, oldParent, oldPathKey);
+      fileSystem.invalidatePath(this, path, getPathKey());
+      existenceValidated(fileSystem.getPathGeneration());
       return this;
    }
 
@@ -118,6 +262,41 @@ public abstract class DbObject implements Path
       return name;
    }
 
+   /**
+    * The attributes are read from the path row only.
+    */
+   @Override
+   public PathAttributes getAttributes() {
+      if (id == 0) {
+         checkPath();
+      }
+
+      final PathAttributes[] attributes = { null };
+
+      new DbSandbox(fileSystem) {
+         @Override
+         public void run(final Connection connection) throws SQLException {
+            try (final PreparedStatement statement = connection.prepareStatement(Sql.SELECT_PATH_ATTRIBUTES)) {
+               statement.setLong(1, id);
+
+               try (final ResultSet resultSet = statement.executeQuery()) {
+                  if (!resultSet.next() || sqlIsDeleted(connection, fileSystem, resultSet.getString("ANCESTRY"))) {
+                     FileSystem.error(FileSystem.PATH_DOES_NOT_EXIST);
+                  }
+
+                  attributes[0] = new PathAttributes(
+                        DbDirectory.PATH_TYPE.equals(resultSet.getString("PATH_TYPE")),
+                        resultSet.getLong("DATA_LENGTH"),
+                        resultSet.getTimestamp("CREATION_TIME").toInstant(),
+                        resultSet.getTimestamp("MODIFICATION_TIME").toInstant());
+               }
+            }
+         }
+      }.execute(false);
+
+      return attributes[0];
+   }
+
    @Override
    public Path rename(final String newName) {
       checkPath();
@@ -127,16 +306,17 @@ public abstract class DbObject implements Path
       }
 
       final String oldName = name;
+      final String oldPathKey = getPathKey();
 
-      new DbSandbox() {
+      new DbSandbox(fileSystem) {
          @Override
          public void beforeRun() {
             name = newName;
          }
 
          @Override
-         public void run() {
-            sqlUpdate();
+         public void run(final Connection connection) throws SQLException {
+            sqlUpdate(connection);
          }
 
          @Override
@@ -145,39 +325,62 @@ public abstract class DbObject implements Path
          }
       }.execute(false);
 
+      final DbDirectory dbParent = (DbDirectory) parent;
+
+      fileSystem.afterCommit(() -> {
+         dbParent.removeChild(oldName, this);
+         dbParent.addChild(newName, this);
+      });
+      fileSystem.invalidatePath(this, parent, oldPathKey);
+      fileSystem.invalidatePath(this, parent, getPathKey());
+      existenceValidated(fileSystem.getPathGeneration());
       return this;
    }
 
+   @Override
+   public CompletableFuture<DirectoryPath> deleteAsync() {
+      return executeAsync(this::delete);
+   }
+
+   @Override
+   public CompletableFuture<Boolean> existsAsync() {
+      return executeAsync(this::exists);
+   }
+
+   @Override
+   public CompletableFuture<PathAttributes> getAttributesAsync() {
+      return executeAsync(this::getAttributes);
+   }
+
    @Override
    public String toString() {
       return (parent == null ? name : parent + "/" + name).replaceAll("(//+)", "/");
    }
 
+   /**
+    * Two paths are equal if they are stored by the same row of the same file system.
+    * A path which has not been stored yet is only equal to itself.
+    */
    @Override
    public boolean equals(final Object object) {
-      if (!(object instanceof Path)) {
-         return false;
-      }
-
       if (this == object) {
          return true;
       }
 
-      final Path other = (Path) object;
-      final Path otherParent = other.getParent();
-      final Path parent = getParent();
-
-      // Is this the root directory?
-      if (parent == null) {
-         return parent == otherParent;
+      if (!(object instanceof DbObject)) {
+         return false;
       }
 
-      return parent.getName().equals(otherParent.getName()) && getName().equals(other.getName());
+      final DbObject other = (DbObject) object;
+      return id != 0 && id == other.id && fileSystem == other.fileSystem;
    }
 
+   /**
+    * The hash code of a path which has not been stored yet changes once it is created.
+    */
    @Override
    public int hashCode() {
-      return (getParent() == null ? 0 : getParent().hashCode()) + getName().hashCode();
+      return Long.hashCode(id);
    }
 
    @Override
@@ -191,11 +394,490 @@ public abstract class DbObject implements Path
       }
    }
 
-   protected abstract boolean sqlSelect();
+   /**
+    * Records that the existence of this path is known as of the given path generation.
+    */
+   private void existenceValidated(final long generation) {
+      existsTime = System.nanoTime();
+      existsGeneration = generation;
+   }
+
+   /**
+    * Returns the path generation of the last change which affects the existence of this
+    * path: a change to the path itself or to one of its ancestors, or, for an instance
+    * which is not shared, a change to the children of its parent.
+    */
+   private long getLastChange() {
+      long lastChange = shared || parent == null ? 0 : ((DbObject) parent).childrenGeneration;
+
+      for (DbObject path = this; path != null; path = (DbObject) path.parent) {
+         lastChange = Math.max(lastChange, path.changeGeneration);
+      }
+
+      return lastChange;
+   }
+
+   /**
+    * Records a change of this path as of the given path generation.
+    */
+   final void changed(final long generation) {
+      changeGeneration = generation;
+   }
+
+   /**
+    * Records a change of the children of this directory as of the given path generation.
+    */
+   final void childrenChanged(final long generation) {
+      childrenGeneration = generation;
+   }
+
+   /**
+    * Runs an operation on the file system executor, inside a single transaction.
+    *
+    * @param operation
+    *           The operation, which may execute any number of nested activities
+    * @return A future which is completed with the operation result
+    */
+   final <T> CompletableFuture<T> executeAsync(final Supplier<T> operation) {
+      final AtomicReference<T> result = new AtomicReference<>();
+
+      return new DbSandbox(fileSystem) {
+         @Override
+         public void run(final Connection connection) {
+            result.set(operation.get());
+         }
+      }.execute(true).thenApply(v -> result.get());
+   }
+
+   final DbFileSystem getDbFileSystem() {
+      return fileSystem;
+   }
+
+   /**
+    * Returns the full name of this path relative to the root directory, which is
+    * the key of the path cache.
+    */
+   final String getPathKey() {
+      if (parent == null) {
+         return "";
+      }
+
+      return ((DbObject) parent).getChildPathKey(name);
+   }
+
+   /**
+    * Returns the full name, relative to the root directory, of a path under this one.
+    *
+    * @param childName
+    *           The name of the path, relative to this one
+    */
+   final String getChildPathKey(final String childName) {
+      final String pathKey = getPathKey();
+      return pathKey.isEmpty() ? childName : pathKey + "/" + childName;
+   }
+
+   final long getId() {
+      return id;
+   }
+
+   /**
+    * Returns the instance which represents the row of this path, which is this one unless
+    * another instance already does. Every path handed out by the file system goes through
+    * here, so that lookups of the same row share a single instance.
+    */
+   final DbObject canonical() {
+      final DbObject path = fileSystem.getIdentityMap().register(this);
+      shared = path == this;
+      return path;
+   }
 
-   protected abstract boolean sqlInsert();
+   /**
+    * Looks up the row which stores this path, by identifier if it is already known
+    * or by parent and name otherwise. The path is not registered in the identity map,
+    * which is left to the callers handing it out, through {@link #canonical()}.
+    *
+    * @param connection
+    *           The connection on which the query is executed
+    * @param pathType
+    *           The type the stored path must have
+    * @return If the path is stored with the requested type
+    */
+   final boolean selectPath(final Connection connection, final String pathType) throws SQLException {
+      // The rows under a deleted directory are ignored until they are reclaimed,
+      // but a parent which has not been looked up yet has no identifier.
+      if (parent != null && ((DbObject) parent).getId() == 0 && !parent.exists()) {
+         return false;
+      }
+
+      final String sql;
+
+      if (id != 0) {
+         sql = Sql.SELECT_PATH_BY_ID;
+      } else if (parent == null) {
+         sql = Sql.SELECT_ROOT_PATH;
+      } else {
+         sql = Sql.SELECT_PATH_BY_NAME;
+      }
 
-   protected abstract boolean sqlUpdate();
+      try (final PreparedStatement statement = connection.prepareStatement(sql)) {
+         if (id != 0) {
+            statement.setLong(1, id);
+         } else if (parent == null) {
+            statement.setString(1, fileSystem.getUniqueId());
+         } else {
+            statement.setLong(1, ((DbObject) parent).getId());
+            statement.setString(2, name);
+         }
+
+         try (final ResultSet resultSet = statement.executeQuery()) {
+            if (resultSet.next() && pathType.equals(resultSet.getString("PATH_TYPE"))
+                  && !sqlIsDeleted(connection, fileSystem, resultSet.getString("ANCESTRY"))) {
+               id = resultSet.getLong("ID");
+               readPath(resultSet);
+               return true;
+            }
+         }
+      }
+
+      return false;
+   }
+
+   /**
+    * Stores this path as a new row, under its parent directory.
+    *
+    * @param connection
+    *           The connection on which the statement is executed
+    * @param pathType
+    *           The type of the path
+    * @param contentId
+    *           The identifier of the content of the path, or 0 if it has none
+    * @return If the path has been stored
+    */
+   final boolean insertPath(final Connection connection, final String pathType, final long contentId)
+         throws SQLException {
+      try (final PreparedStatement statement =
+            connection.prepareStatement(Sql.INSERT_PATH, Statement.RETURN_GENERATED_KEYS)) {
+         statement.setString(1, fileSystem.getUniqueId());
+         setParentId(statement, 2);
+         statement.setString(3, name);
+         statement.setString(4, pathType);
+
+         if (contentId == 0) {
+            statement.setNull(5, Types.BIGINT);
+         } else {
+            statement.setLong(5, contentId);
+         }
+
+         setParentId(statement, 6);
+
+         if (statement.executeUpdate() != 1) {
+            return false;
+         }
+
+         try (final ResultSet resultSet = statement.getGeneratedKeys()) {
+            if (resultSet.next()) {
+               id = resultSet.getLong(1);
+               return true;
+            }
+         }
+      }
+
+      return false;
+   }
+
+   /**
+    * Stores the current parent and name of this path. The ancestry is left as it is,
+    * see {@link #updateAncestry(Connection)}.
+    *
+    * @param connection
+    *           The connection on which the statements are executed
+    * @return If the path has been updated
+    */
+   final boolean updatePath(final Connection connection) throws SQLException {
+      try (final PreparedStatement statement = connection.prepareStatement(Sql.UPDATE_PATH)) {
+         setParentId(statement, 1);
+         statement.setString(2, name);
+         statement.setLong(3, id);
+         return statement.executeUpdate() == 1;
+      }
+   }
+
+   /**
+    * Deletes the row which stores this path, and removes the space it uses from
+    * its ancestors.
+    *
+    * @param connection
+    *           The connection on which the statements are executed
+    * @return If the path has been deleted
+    */
+   final boolean deletePath(final Connection connection) throws SQLException {
+      final Usage usage = sqlSelectUsage(connection, id);
+
+      if (usage != null) {
+         sqlAddUsage(connection, getAncestorIds(usage.ancestry), -usage.bytes, -usage.clusters);
+      }
+
+      try (final PreparedStatement statement = connection.prepareStatement(Sql.DELETE_PATH)) {
+         statement.setLong(1, id);
+         return statement.executeUpdate() == 1;
+      }
+   }
+
+   /**
+    * Returns the ancestry shared by the paths under a path.
+    *
+    * @param connection
+    *           The connection on which the query is executed
+    * @param pathId
+    *           The identifier of the path
+    */
+   static String selectSubtreeAncestry(final Connection connection, final long pathId) throws SQLException {
+      try (final PreparedStatement statement = connection.prepareStatement(Sql.SELECT_SUBTREE_ANCESTRY)) {
+         statement.setLong(1, pathId);
+
+         try (final ResultSet resultSet = statement.executeQuery()) {
+            if (!resultSet.next()) {
+               FileSystem.error(FileSystem.PATH_DOES_NOT_EXIST);
+            }
+
+            return resultSet.getString("SUBTREE_ANCESTRY");
+         }
+      }
+   }
+
+   /**
+    * Moves this path, and every path under it, under the ancestry of its parent.
+    * Nothing is written if the parent has not changed. It is only called when a path
+    * is moved, since a rename keeps the parent.
+    */
+   private void updateAncestry(final Connection connection) throws SQLException {
+      final String parentAncestry = selectSubtreeAncestry(connection, ((DbObject) parent).getId());
+      final String subtreeAncestry = selectSubtreeAncestry(connection, id);
+
+      // The new parent is this path or lies under it.
+      if (parentAncestry.startsWith(subtreeAncestry)) {
+         FileSystem.error(FileSystem.PATH_CANNOT_BE_MOVED);
+      }
+
+      final String ancestry = subtreeAncestry.substring(0, subtreeAncestry.length() - Long.toString(id).length() - 1);
+
+      if (ancestry.equals(parentAncestry)) {
+         return;
+      }
+
+      // The space used by the path moves from the old ancestors to the new ones,
+      // but not from the ones they share.
+      final Usage usage = sqlSelectUsage(connection, id);
+      final List<Long> oldAncestorIds = new ArrayList<>(Arrays.asList(getAncestorIds(ancestry)));
+      final List<Long> newAncestorIds = new ArrayList<>(Arrays.asList(getAncestorIds(parentAncestry)));
+      final List<Long> sharedAncestorIds = new ArrayList<>(oldAncestorIds);
+      sharedAncestorIds.retainAll(newAncestorIds);
+      oldAncestorIds.removeAll(sharedAncestorIds);
+      newAncestorIds.removeAll(sharedAncestorIds);
+      sqlAddUsage(connection, oldAncestorIds.toArray(new Long[0]), -usage.bytes, -usage.clusters);
+      sqlAddUsage(connection, newAncestorIds.toArray(new Long[0]), usage.bytes, usage.clusters);
+
+      // The queued directories are rewritten first, as the garbage collector locks them
+      // before the rows they hide.
+      try (final PreparedStatement statement = connection.prepareStatement(Sql.MOVE_SUBTREE_GARBAGE)) {
+         statement.setString(1, parentAncestry + id + "/");
+         statement.setInt(2, subtreeAncestry.length() + 1);
+         statement.setString(3, fileSystem.getUniqueId());
+         statement.setString(4, subtreeAncestry + "%");
+         statement.executeUpdate();
+      }
+
+      try (final PreparedStatement statement = connection.prepareStatement(Sql.UPDATE_PATH_ANCESTRY)) {
+         statement.setString(1, parentAncestry);
+         statement.setLong(2, id);
+         statement.executeUpdate();
+      }
+
+      try (final PreparedStatement statement = connection.prepareStatement(Sql.MOVE_SUBTREE)) {
+         statement.setString(1, parentAncestry + id + "/");
+         statement.setInt(2, subtreeAncestry.length() + 1);
+         statement.setString(3, subtreeAncestry + "%");
+         statement.executeUpdate();
+      }
+   }
+
+   /**
+    * Reads the space used by a path, or returns null if it is not stored.
+    *
+    * @param connection
+    *           The connection on which the query is executed
+    * @param pathId
+    *           The identifier of the path
+    */
+   static Usage sqlSelectUsage(final Connection connection, final long pathId) throws SQLException {
+      try (final PreparedStatement statement = connection.prepareStatement(Sql.SELECT_PATH_USAGE)) {
+         statement.setLong(1, pathId);
+
+         try (final ResultSet resultSet = statement.executeQuery()) {
+            if (!resultSet.next()) {
+               return null;
+            }
+
+            final long quota = resultSet.getLong("QUOTA");
+            final boolean unlimited = resultSet.wasNull();
+
+            return new Usage(
+                  resultSet.getString("ANCESTRY"),
+                  resultSet.getLong("USED_BYTES"),
+                  resultSet.getLong("USED_CLUSTERS"),
+                  unlimited ? -1 : quota);
+         }
+      }
+   }
+
+   /**
+    * Adds a change of the space used by a path to its ancestors with a single statement.
+    * When the space grows, the quotas of the ancestors are checked.
+    *
+    * @param connection
+    *           The connection on which the statements are executed
+    * @param ancestorIds
+    *           The identifiers of the ancestors
+    * @param bytes
+    *           The change of the number of bytes
+    * @param clusters
+    *           The change of the number of clusters
+    */
+   static void sqlAddUsage(final Connection connection, final Long[] ancestorIds, final long bytes, final long clusters)
+         throws SQLException {
+      if (ancestorIds.length == 0 || bytes == 0 && clusters == 0) {
+         return;
+      }
+
+      final Array ids = connection.createArrayOf("BIGINT", ancestorIds);
+
+      try {
+         try (final PreparedStatement statement = connection.prepareStatement(Sql.ADD_ANCESTORS_USAGE)) {
+            statement.setLong(1, bytes);
+            statement.setLong(2, clusters);
+            statement.setArray(3, ids);
+            statement.executeUpdate();
+         }
+
+         if (bytes <= 0) {
+            return;
+         }
+
+         try (final PreparedStatement statement = connection.prepareStatement(Sql.COUNT_EXCEEDED_QUOTAS)) {
+            statement.setArray(1, ids);
+
+            try (final ResultSet resultSet = statement.executeQuery()) {
+               if (resultSet.next() && resultSet.getLong(1) > 0) {
+                  FileSystem.error(FileSystem.QUOTA_EXCEEDED);
+               }
+            }
+         }
+      } finally {
+         ids.free();
+      }
+   }
+
+   /**
+    * Checks if a path lies under a deleted directory whose rows have not been reclaimed
+    * yet. The directories of the ancestry of the path are looked up in the garbage queue
+    * by their subtree ancestry, with a seek of its index per directory.
+    *
+    * @param connection
+    *           The connection on which the query is executed
+    * @param fileSystem
+    *           The file system of the path
+    * @param ancestry
+    *           The ancestry of the path, as in <code>/1/5/9/</code>
+    */
+   static boolean sqlIsDeleted(final Connection connection, final DbFileSystem fileSystem, final String ancestry)
+         throws SQLException {
+      // The paths with ancestry /1/5/9/ lie under the directories queued as /1/, /1/5/ and /1/5/9/.
+      final List<String> subtreeAncestries = new ArrayList<>();
+
+      for (int i = ancestry.indexOf('/', 1); i > 0; i = ancestry.indexOf('/', i + 1)) {
+         subtreeAncestries.add(ancestry.substring(0, i + 1));
+      }
+
+      if (subtreeAncestries.isEmpty()) {
+         return false;
+      }
+
+      final Array ancestries = connection.createArrayOf("VARCHAR", subtreeAncestries.toArray());
+
+      try (final PreparedStatement statement = connection.prepareStatement(Sql.SELECT_QUEUED_ANCESTRY)) {
+         statement.setString(1, fileSystem.getUniqueId());
+         statement.setArray(2, ancestries);
+
+         try (final ResultSet resultSet = statement.executeQuery()) {
+            return resultSet.next();
+         }
+      } finally {
+         ancestries.free();
+      }
+   }
+
+   /**
+    * Returns the identifiers of the directories of an ancestry, from the root.
+    *
+    * @param ancestry
+    *           An ancestry, as in <code>/1/5/9/</code>
+    */
+   static Long[] getAncestorIds(final String ancestry) {
+      if (ancestry.length() <= 1) {
+         return new Long[0];
+      }
+
+      final String[] ids = ancestry.substring(1, ancestry.length() - 1).split("/");
+      final Long[] ancestorIds = new Long[ids.length];
+
+      for (int i = 0; i < ids.length; i++) {
+         ancestorIds[i] = Long.valueOf(ids[i]);
+      }
+
+      return ancestorIds;
+   }
+
+   private void setParentId(final PreparedStatement statement, final int index) throws SQLException {
+      if (parent == null) {
+         statement.setNull(index, Types.BIGINT);
+         return;
+      }
+
+      final DbObject dbParent = (DbObject) parent;
+
+      if (dbParent.getId() == 0 && !dbParent.exists()) {
+         FileSystem.error(FileSystem.PATH_DOES_NOT_EXIST);
+      }
+
+      statement.setLong(index, dbParent.getId());
+   }
 
-   protected abstract boolean sqlDelete();
+   /**
+    * Reads the columns of the row which stores this path, once it has been found.
+    * Nothing is read by default.
+    *
+    * @param resultSet
+    *           The result set, positioned on the row
+    */
+   void readPath(final ResultSet resultSet) throws SQLException {}
+
+   /**
+    * Checks if the path is stored in the appropriate database table(s).
+    */
+   protected abstract boolean sqlSelect(final Connection connection) throws SQLException;
+
+   /**
+    * Persists this path into the appropriate database table(s).
+    */
+   protected abstract boolean sqlInsert(final Connection connection) throws SQLException;
+
+   /**
+    * Updates this path representation in the appropriate database table(s).
+    */
+   protected abstract boolean sqlUpdate(final Connection connection) throws SQLException;
+
+   /**
+    * Deletes this path representation in the appropriate database table(s).
+    */
+   protected abstract boolean sqlDelete(final Connection connection) throws SQLException;
 }
@@ -0,0 +1,136 @@
+package filesystem.db;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Optional;
+import java.util.TreeMap;
+
+import filesystem.Path;
+
+/**
+ * A size-bounded cache of resolved paths, keyed by their full name relative to the
+ * root directory (e.g. <code>dir1/dir2/myfile</code>). Paths which could not be found
+ * are cached as well, as empty entries.
+ * <p/>
+ * Entries are sorted by key so that a path and every path under it can be invalidated
+ * with a single range removal, and are evicted in least recently used order.
+ *
+ * @author Edoardo Luppi
+ */
+class DbPathCache
+{
+   /**
+    * The separator character of full path names, and the character which follows it.
+    */
+   private static final char SEPARATOR = '/';
+   private static final char AFTER_SEPARATOR = SEPARATOR + 1;
+
+   private final NavigableMap<String, Optional<Path>> entries = new TreeMap<>();
+
+   /**
+    * The keys of the entries, in least recently used order.
+    */
+   private final Map<String, Boolean> recency = new LinkedHashMap<>(16, 0.75f, true);
+   private int maximumSize;
+
+   /**
+    * Incremented by every invalidation, so that a resolution which ran concurrently
+    * with an invalidation does not store a stale entry.
+    */
+   private long generation;
+
+   DbPathCache(final int maximumSize) {
+      this.maximumSize = maximumSize;
+      generation = 0;
+   }
+
+   synchronized void setMaximumSize(final int maximumSize) {
+      this.maximumSize = maximumSize;
+      evict();
+   }
+
+   synchronized int getMaximumSize() {
+      return maximumSize;
+   }
+
+   synchronized long getGeneration() {
+      return generation;
+   }
+
+   /**
+    * Returns the cached resolution of a path, or null if the path is not cached.
+    *
+    * @param key
+    *           The full name of the path
+    */
+   synchronized Optional<Path> get(final String key) {
+      final Optional<Path> path = entries.get(key);
+
+      if (path != null) {
+         recency.get(key);
+      }
+
+      return path;
+   }
+
+   /**
+    * Caches the resolution of a path, unless an invalidation has happened since the
+    * resolution started.
+    *
+    * @param key
+    *           The full name of the path
+    * @param path
+    *           The resolved path, or an empty optional if it does not exist
+    * @param resolutionGeneration
+    *           The value of {@link #getGeneration()} when the resolution started
+    */
+   synchronized void put(final String key, final Optional<Path> path, final long resolutionGeneration) {
+      if (maximumSize <= 0 || resolutionGeneration != generation) {
+         return;
+      }
+
+      entries.put(key, path);
+      recency.put(key, Boolean.TRUE);
+      evict();
+   }
+
+   /**
+    * Removes a path and every path under it.
+    *
+    * @param key
+    *           The full name of the path
+    */
+   synchronized void invalidate(final String key) {
+      generation++;
+      remove(key);
+
+      final Iterator<String> keys = entries.subMap(key + SEPARATOR, key + AFTER_SEPARATOR).keySet().iterator();
+
+      while (keys.hasNext()) {
+         recency.remove(keys.next());
+         keys.remove();
+      }
+   }
+
+   synchronized void clear() {
+      generation++;
+      entries.clear();
+      recency.clear();
+   }
+
+   private void remove(final String key) {
+      entries.remove(key);
+      recency.remove(key);
+   }
+
+   private void evict() {
+      final Iterator<String> keys = recency.keySet().iterator();
+
+      while (recency.size() > Math.max(maximumSize, 0) && keys.hasNext()) {
+         entries.remove(keys.next());
+         keys.remove();
+      }
+   }
+}
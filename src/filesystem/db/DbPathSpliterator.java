@@ -0,0 +1,421 @@
+package filesystem.db;
+
+import java.sql.Array;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+import filesystem.Path;
+import filesystem.PathFilter;
+import filesystem.db.sql.Sql;
+
+/**
+ * Reads the paths under a directory which match a filter, a page at a time, in the
+ * order of the <code>(ANCESTRY, ID)</code> index, so that each directory comes before
+ * the paths it contains.
+ * <p/>
+ * The filter is evaluated by the database, and only the matching rows, plus the
+ * directories above them which have not been read yet, are transferred.
+ * <p/>
+ * A spliterator covers a range of the index, which is split at its middle row, so that
+ * the halves can be read in parallel. The directories read by any of the halves are
+ * shared, to attach each path to the instance of its parent.
+ *
+ * @author Edoardo Luppi
+ */
+class DbPathSpliterator implements Spliterator<Path>
+{
+   private static final int PAGE_SIZE = 1000;
+
+   /**
+    * Ranges with fewer rows are not split, as reading them costs less than splitting.
+    */
+   private static final int MINIMUM_SPLIT_SIZE = 2 * PAGE_SIZE;
+
+   private final DbFileSystem fileSystem;
+   private final String subtreeAncestry;
+   private final String nameLike;
+   private final String pathType;
+   private final Long minSize;
+   private final Long maxSize;
+   private final Timestamp modifiedAfter;
+   private final Timestamp modifiedBefore;
+
+   /**
+    * The directories read so far, keyed by identifier, shared by every split.
+    */
+   private final Map<Long, DbDirectory> directories;
+
+   /**
+    * The key of the last row read, excluded from the range, and the key of the last row
+    * of the range.
+    */
+   private String lowerAncestry;
+   private long lowerId;
+   private String upperAncestry;
+   private long upperId;
+
+   /**
+    * The number of rows left in the range, or -1 if it has not been counted.
+    */
+   private long estimatedSize;
+   private Iterator<Path> page;
+   private boolean exhausted;
+
+   /**
+    * @param directory
+    *           The directory under which the paths are searched
+    * @param subtreeAncestry
+    *           The ancestry shared by the paths under the directory
+    * @param filter
+    *           The filter the paths must match
+    */
+   DbPathSpliterator(final DbDirectory directory, final String subtreeAncestry, final PathFilter filter) {
+      fileSystem = directory.getDbFileSystem();
+      this.subtreeAncestry = subtreeAncestry;
+      nameLike = filter.getName() == null ? null : toLikePattern(filter.getName());
+      pathType = filter.getDirectory() == null ? null : filter.getDirectory() ? DbDirectory.PATH_TYPE : DbFile.PATH_TYPE;
+      minSize = filter.getMinSize();
+      maxSize = filter.getMaxSize();
+      modifiedAfter = filter.getModifiedAfter() == null ? null : Timestamp.from(filter.getModifiedAfter());
+      modifiedBefore = filter.getModifiedBefore() == null ? null : Timestamp.from(filter.getModifiedBefore());
+      directories = new ConcurrentHashMap<>();
+      directories.put(directory.getId(), directory);
+
+      // Ancestries are made of digits and slashes, which all sort before the tilde.
+      lowerAncestry = "";
+      lowerId = 0;
+      upperAncestry = subtreeAncestry + "~";
+      upperId = Long.MAX_VALUE;
+      estimatedSize = -1;
+      page = Collections.emptyIterator();
+      exhausted = false;
+   }
+
+   private DbPathSpliterator(final DbPathSpliterator spliterator) {
+      fileSystem = spliterator.fileSystem;
+      subtreeAncestry = spliterator.subtreeAncestry;
+      nameLike = spliterator.nameLike;
+      pathType = spliterator.pathType;
+      minSize = spliterator.minSize;
+      maxSize = spliterator.maxSize;
+      modifiedAfter = spliterator.modifiedAfter;
+      modifiedBefore = spliterator.modifiedBefore;
+      directories = spliterator.directories;
+      page = Collections.emptyIterator();
+      exhausted = false;
+   }
+
+   @Override
+   public boolean tryAdvance(final Consumer<? super Path> action) {
+      if (!page.hasNext()) {
+         if (exhausted) {
+            return false;
+         }
+
+         readPage();
+
+         if (!page.hasNext()) {
+            return false;
+         }
+      }
+
+      action.accept(page.next());
+      return true;
+   }
+
+   /**
+    * Splits the rows which have not been read yet at the middle one. The returned
+    * spliterator covers the first half, so a range is not split once its reading
+    * has started.
+    */
+   @Override
+   public Spliterator<Path> trySplit() {
+      if (exhausted || page.hasNext()) {
+         return null;
+      }
+
+      if (estimatedSize < 0) {
+         estimatedSize = count();
+      }
+
+      if (estimatedSize < MINIMUM_SPLIT_SIZE) {
+         return null;
+      }
+
+      final long half = estimatedSize / 2;
+      final Object[] middle = selectKey(half - 1);
+
+      if (middle == null) {
+         return null;
+      }
+
+      final DbPathSpliterator split = new DbPathSpliterator(this);
+      split.lowerAncestry = lowerAncestry;
+      split.lowerId = lowerId;
+      split.upperAncestry = (String) middle[0];
+      split.upperId = (Long) middle[1];
+      split.estimatedSize = half;
+      lowerAncestry = (String) middle[0];
+      lowerId = (Long) middle[1];
+      estimatedSize -= half;
+      return split;
+   }
+
+   @Override
+   public long estimateSize() {
+      return estimatedSize < 0 ? Long.MAX_VALUE : estimatedSize;
+   }
+
+   @Override
+   public int characteristics() {
+      return ORDERED | DISTINCT | NONNULL;
+   }
+
+   private void readPage() {
+      final List<Path> paths = new ArrayList<>(PAGE_SIZE);
+
+      new DbSandbox(fileSystem) {
+         @Override
+         public void run(final Connection connection) throws SQLException {
+            sqlReadPage(connection, paths);
+         }
+      }.execute(false);
+
+      exhausted = paths.size() < PAGE_SIZE;
+      estimatedSize = estimatedSize < 0 ? -1 : Math.max(estimatedSize - paths.size(), 0);
+      page = paths.iterator();
+   }
+
+   private long count() {
+      final long[] count = { 0 };
+
+      new DbSandbox(fileSystem) {
+         @Override
+         public void run(final Connection connection) throws SQLException {
+            try (final PreparedStatement statement = connection.prepareStatement(Sql.COUNT_FOUND_PATHS)) {
+               setFindParameters(statement);
+
+               try (final ResultSet resultSet = statement.executeQuery()) {
+                  resultSet.next();
+                  count[0] = resultSet.getLong(1);
+               }
+            }
+         }
+      }.execute(false);
+
+      return count[0];
+   }
+
+   /**
+    * Returns the index key of the row at a position of the range, or null if the range
+    * is shorter.
+    */
+   private Object[] selectKey(final long offset) {
+      final Object[][] key = { null };
+
+      new DbSandbox(fileSystem) {
+         @Override
+         public void run(final Connection connection) throws SQLException {
+            try (final PreparedStatement statement = connection.prepareStatement(Sql.SELECT_FOUND_PATH_KEY)) {
+               statement.setLong(setFindParameters(statement), offset);
+
+               try (final ResultSet resultSet = statement.executeQuery()) {
+                  if (resultSet.next()) {
+                     key[0] = new Object[] { resultSet.getString("ANCESTRY"), resultSet.getLong("ID") };
+                  }
+               }
+            }
+         }
+      }.execute(false);
+
+      return key[0];
+   }
+
+   private void sqlReadPage(final Connection connection, final List<Path> paths) throws SQLException {
+      final List<Object[]> rows = new ArrayList<>(PAGE_SIZE);
+
+      try (final PreparedStatement statement = connection.prepareStatement(Sql.FIND_PATHS)) {
+         statement.setInt(setFindParameters(statement), PAGE_SIZE);
+
+         try (final ResultSet resultSet = statement.executeQuery()) {
+            while (resultSet.next()) {
+               rows.add(new Object[] {
+                     resultSet.getLong("ID"),
+                     resultSet.getLong("PARENT_ID"),
+                     resultSet.getString("NAME"),
+                     resultSet.getString("PATH_TYPE"),
+                     DbFile.readContentId(resultSet),
+                     resultSet.getString("ANCESTRY") });
+            }
+         }
+      }
+
+      if (rows.isEmpty()) {
+         return;
+      }
+
+      final Object[] last = rows.get(rows.size() - 1);
+      lowerAncestry = (String) last[5];
+      lowerId = (Long) last[0];
+
+      sqlReadDirectories(connection, rows);
+
+      final DbIdentityMap identityMap = fileSystem.getIdentityMap();
+
+      for (final Object[] row : rows) {
+         final long id = (Long) row[0];
+         final DbDirectory parent = directories.get((Long) row[1]);
+         final boolean directory = DbDirectory.PATH_TYPE.equals(row[3]);
+         DbObject path = identityMap.get(id);
+
+         // The parent has been moved away or deleted since the page was read.
+         if (parent == null && path == null) {
+            continue;
+         }
+
+         if (path == null) {
+            path = directory
+                  ? new DbDirectory(fileSystem, parent, (String) row[2], id)
+                  : new DbFile(fileSystem, parent, (String) row[2], id, (Long) row[4]);
+            path = path.canonical();
+         }
+
+         if (directory) {
+            directories.put(id, (DbDirectory) path);
+         }
+
+         paths.add(path);
+      }
+   }
+
+   /**
+    * Reads the directories above the given rows which have not been read yet, each
+    * before the directories it contains.
+    */
+   private void sqlReadDirectories(final Connection connection, final List<Object[]> rows) throws SQLException {
+      final DbIdentityMap identityMap = fileSystem.getIdentityMap();
+      final Set<Long> missing = new LinkedHashSet<>();
+
+      for (final Object[] row : rows) {
+         final String ancestry = (String) row[5];
+
+         if (ancestry.length() <= subtreeAncestry.length()) {
+            continue;
+         }
+
+         for (final String id : ancestry.substring(subtreeAncestry.length()).split("/")) {
+            final Long directoryId = Long.valueOf(id);
+
+            if (!directories.containsKey(directoryId)) {
+               final DbObject directory = identityMap.get(directoryId);
+
+               if (directory instanceof DbDirectory) {
+                  directories.put(directoryId, (DbDirectory) directory);
+               } else {
+                  missing.add(directoryId);
+               }
+            }
+         }
+      }
+
+      if (missing.isEmpty()) {
+         return;
+      }
+
+      try (final PreparedStatement statement = connection.prepareStatement(Sql.SELECT_DIRECTORIES_BY_ID)) {
+         final Array ids = connection.createArrayOf("BIGINT", missing.toArray());
+         statement.setArray(1, ids);
+
+         try (final ResultSet resultSet = statement.executeQuery()) {
+            while (resultSet.next()) {
+               final long id = resultSet.getLong("ID");
+               final DbDirectory parent = directories.get(resultSet.getLong("PARENT_ID"));
+
+               if (parent == null) {
+                  continue;
+               }
+
+               final DbObject directory =
+                     new DbDirectory(fileSystem, parent, resultSet.getString("NAME"), id).canonical();
+               directories.put(id, (DbDirectory) directory);
+            }
+         } finally {
+            ids.free();
+         }
+      }
+   }
+
+   /**
+    * Sets the parameters of the range and of the filter.
+    *
+    * @return The index of the next parameter
+    */
+   private int setFindParameters(final PreparedStatement statement) throws SQLException {
+      int index = 1;
+      statement.setString(index++, subtreeAncestry + "%");
+      statement.setString(index++, lowerAncestry);
+      statement.setLong(index++, lowerId);
+      statement.setString(index++, upperAncestry);
+      statement.setLong(index++, upperId);
+      statement.setString(index++, nameLike);
+      statement.setString(index++, nameLike);
+      statement.setString(index++, pathType);
+      statement.setString(index++, pathType);
+
+      for (final Long size : new Long[] { minSize, maxSize }) {
+         statement.setObject(index++, size, Types.BIGINT);
+         statement.setObject(index++, size, Types.BIGINT);
+      }
+
+      for (final Timestamp time : new Timestamp[] { modifiedAfter, modifiedBefore }) {
+         statement.setTimestamp(index++, time);
+         statement.setTimestamp(index++, time);
+      }
+
+      statement.setString(index++, subtreeAncestry + "%");
+      return index;
+   }
+
+   /**
+    * Converts a glob, where <code>*</code> and <code>?</code> stand for any sequence of
+    * characters and any single character, to a pattern of the LIKE operator.
+    */
+   private static String toLikePattern(final String glob) {
+      final StringBuilder pattern = new StringBuilder(glob.length());
+
+      for (final char c : glob.toCharArray()) {
+         switch (c) {
+            case '*':
+               pattern.append('%');
+               break;
+            case '?':
+               pattern.append('_');
+               break;
+            case '%':
+            case '_':
+            case '\\':
+               pattern.append('\\').append(c);
+               break;
+            default:
+               pattern.append(c);
+               break;
+         }
+      }
+
+      return pattern.toString();
+   }
+}
@@ -1,9 +1,12 @@
 package filesystem.db;
 
+import java.sql.Connection;
+import java.sql.SQLException;
+
 /**
  * @author Edoardo Luppi
  */
-public interface DbRunnable extends Runnable
+public interface DbRunnable
 {
    /**
     * This method is meant to execute activities before the main one
@@ -11,6 +14,14 @@ public interface DbRunnable extends Runnable
     */
    void beforeRun();
 
+   /**
+    * This method is the main activity, which is run inside a transaction.
+    *
+    * @param connection
+    *           The connection bound to the running transaction
+    */
+   void run(final Connection connection) throws SQLException;
+
    /**
     * This method is meant to execute activities in case the main one
     * fails. What is done here will always be synchronized.
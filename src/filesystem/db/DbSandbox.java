@@ -1,48 +1,85 @@
 package filesystem.db;
 
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.sql.SQLException;
+import java.util.concurrent.CompletableFuture;
 
 import filesystem.db.sql.Transaction;
+import filesystem.exceptions.FileSystemRuntimeException;
 
 /**
  * @author Edoardo Luppi
  */
 public abstract class DbSandbox implements DbRunnable
 {
-   /**
-    * This is the executor which contains the only thread(s) that manages database
-    * operations assuring data consistency and integrity.
-    */
-   private static final ExecutorService EXECUTOR = Executors.newSingleThreadExecutor();
+   private final DbFileSystem fileSystem;
 
    /**
-    * Forcedly close the thread(s).
+    * @param fileSystem
+    *           The file system on which the activity is executed
     */
-   static void close() {
-      if (!EXECUTOR.isShutdown()) {
-         EXECUTOR.shutdownNow();
-      }
+   DbSandbox(final DbFileSystem fileSystem) {
+      this.fileSystem = fileSystem;
    }
 
    /**
     * Executes the activity.
+    * If a transaction is already running on the current thread, the activity joins it.
+    * <p/>
+    * An asynchronous activity is run on the file system executor, inside its own
+    * transaction, and its failure completes the returned future exceptionally.
+    * A synchronous activity is run on the calling thread and its failure is thrown.
+    *
+    * @param async
+    *           If the activity has to be run on the file system executor
+    * @return A future which is completed when the activity is done
     */
-   final void execute(final boolean async) {
+   final CompletableFuture<Void> execute(final boolean async) {
+      if (async) {
+         return CompletableFuture.runAsync(
+               () -> execute(false),
+               fileSystem.getExecutor());
+      }
+
       beforeRun();
 
-      final Transaction transaction = new Transaction();
-      transaction.begin();
-      
+      Transaction transaction = null;
+
       try {
-         // TODO: implement async choice with EXECUTOR
-         run();
+         transaction = fileSystem.getTransaction();
+         transaction.begin();
+      } catch (final SQLException e) {
+         if (transaction != null && !transaction.isActive()) {
+            fileSystem.releaseTransaction(transaction);
+         }
+
+         onFail();
+         throw new FileSystemRuntimeException(e.getMessage(), e);
+      }
+
+      try {
+         run(transaction.getConnection());
          transaction.commit();
       } catch (final Exception e) {
-         e.printStackTrace();
          onFail();
-         transaction.rollback();
+
+         try {
+            transaction.rollback();
+         } catch (final SQLException rollbackException) {
+            e.addSuppressed(rollbackException);
+         }
+
+         if (e instanceof FileSystemRuntimeException) {
+            throw (FileSystemRuntimeException) e;
+         }
+
+         throw new FileSystemRuntimeException(e.getMessage(), e);
+      } finally {
+         if (!transaction.isActive()) {
+            fileSystem.releaseTransaction(transaction);
+         }
       }
+
+      return CompletableFuture.completedFuture(null);
    }
    
    @Override
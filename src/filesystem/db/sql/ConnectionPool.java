@@ -0,0 +1,426 @@
+package filesystem.db.sql;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A bounded pool of database connections.
+ * <p/>
+ * Connections are opened on demand, up to the pool size, and are kept open once
+ * released so that the next operation finds a warm connection. When every connection
+ * is in use, acquiring one waits up to the acquire timeout. A released connection is
+ * rolled back and reset to auto-commit, and is validated before being reused only if
+ * it has been idle for longer than the validation idle time.
+ * <p/>
+ * Each pooled connection caches the statements prepared through it, keyed by their
+ * Sql, so that the fixed statements used by the file system are parsed only once
+ * per connection. Closing a cached statement only clears its parameters, and closing
+ * a pooled connection returns it to the pool.
+ *
+ * @author Edoardo Luppi
+ */
+public class ConnectionPool implements AutoCloseable
+{
+   public static final int DEFAULT_SIZE = 10;
+   public static final long DEFAULT_ACQUIRE_TIMEOUT = 30000;
+   public static final int DEFAULT_VALIDATION_TIMEOUT = 5;
+
+   /**
+    * The maximum number of statements cached by each connection.
+    */
+   private static final int STATEMENT_CACHE_SIZE = 64;
+
+   /**
+    * The milliseconds a connection can stay idle before it is validated again.
+    */
+   private static final long VALIDATION_IDLE_TIME = 30000;
+
+   private final String url;
+   private final String user;
+   private final String password;
+   private final int size;
+   private final long acquireTimeout;
+   private final int validationTimeout;
+
+   /**
+    * Limits the number of connections which are in use at the same time.
+    */
+   private final Semaphore permits;
+
+   /**
+    * The connections which have been released and can be reused.
+    */
+   private final Deque<PooledConnection> idle = new ArrayDeque<>();
+   private volatile boolean closed;
+
+   /**
+    * Constructs a pool with the default size and timeouts.
+    *
+    * @param url
+    *           The JDBC url of the database
+    * @param user
+    *           The database user
+    * @param password
+    *           The database user password
+    */
+   public ConnectionPool(final String url, final String user, final String password) {
+      this(url, user, password, DEFAULT_SIZE, DEFAULT_ACQUIRE_TIMEOUT, DEFAULT_VALIDATION_TIMEOUT);
+   }
+
+   /**
+    * @param url
+    *           The JDBC url of the database
+    * @param user
+    *           The database user
+    * @param password
+    *           The database user password
+    * @param size
+    *           The maximum number of open connections
+    * @param acquireTimeout
+    *           The milliseconds to wait for a free connection before failing
+    * @param validationTimeout
+    *           The seconds to wait when validating a connection which has been idle for
+    *           a while before reusing it, or 0 to skip the validation
+    */
+   public ConnectionPool(
+         final String url,
+         final String user,
+         final String password,
+         final int size,
+         final long acquireTimeout,
+         final int validationTimeout) {
+      if (size < 1) {
+         throw new IllegalArgumentException("The pool size must be positive");
+      }
+
+      this.url = url;
+      this.user = user;
+      this.password = password;
+      this.size = size;
+      this.acquireTimeout = acquireTimeout;
+      this.validationTimeout = validationTimeout;
+      permits = new Semaphore(size, true);
+      closed = false;
+   }
+
+   public int getSize() {
+      return size;
+   }
+
+   /**
+    * Returns the number of connections which can be acquired without waiting.
+    */
+   public int getAvailable() {
+      return permits.availablePermits();
+   }
+
+   /**
+    * Acquires a connection, waiting for one to be released if the pool is exhausted.
+    * The connection must be closed to return it to the pool.
+    */
+   public Connection acquire() throws SQLException {
+      if (closed) {
+         throw new SQLException("The connection pool is closed");
+      }
+
+      try {
+         if (!permits.tryAcquire(acquireTimeout, TimeUnit.MILLISECONDS)) {
+            throw new SQLException("Timed out waiting for a connection after " + acquireTimeout + " ms");
+         }
+      } catch (final InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new SQLException("Interrupted while waiting for a connection", e);
+      }
+
+      try {
+         PooledConnection connection;
+
+         while ((connection = pollIdle()) != null) {
+            if (validationTimeout <= 0
+                  || System.nanoTime() - connection.idleSince < VALIDATION_IDLE_TIME * 1000000
+                  || connection.connection.isValid(validationTimeout)) {
+               return connection.open();
+            }
+
+            connection.destroy();
+         }
+
+         return new PooledConnection(DriverManager.getConnection(url, user, password)).open();
+      } catch (final SQLException | RuntimeException e) {
+         permits.release();
+         throw e;
+      }
+   }
+
+   /**
+    * Closes every idle connection. Connections which are in use are closed
+    * as soon as they are released.
+    */
+   @Override
+   public void close() {
+      closed = true;
+      PooledConnection connection;
+
+      while ((connection = pollIdle()) != null) {
+         connection.destroy();
+      }
+   }
+
+   private PooledConnection pollIdle() {
+      synchronized (idle) {
+         return idle.pollFirst();
+      }
+   }
+
+   private void release(final PooledConnection connection) {
+      try {
+         if (closed || connection.connection.isClosed()) {
+            connection.destroy();
+         } else {
+            connection.reset();
+
+            synchronized (idle) {
+               idle.offerFirst(connection);
+            }
+         }
+      } catch (final SQLException e) {
+         connection.destroy();
+      } finally {
+         permits.release();
+      }
+   }
+
+   /**
+    * A physical connection together with its statement cache.
+    */
+   private class PooledConnection implements InvocationHandler
+   {
+      private final Connection connection;
+
+      /**
+       * The cached statements, in least recently used order.
+       */
+      private final Map<String, PreparedStatement> statements = new LinkedHashMap<>(16, 0.75f, true);
+
+      /**
+       * The cached statements which have been handed out and not yet closed.
+       */
+      private final Set<PreparedStatement> statementsInUse = Collections.newSetFromMap(new IdentityHashMap<>());
+
+      /**
+       * The proxy handed out by the current {@link #open()}, or null if the connection
+       * is idle.
+       */
+      private Connection proxy;
+
+      /**
+       * The {@link System#nanoTime()} of the last release of the connection.
+       */
+      private long idleSince;
+
+      PooledConnection(final Connection connection) {
+         this.connection = connection;
+      }
+
+      /**
+       * Discards the work left uncommitted by the last borrower, together with the
+       * state it has changed, so that the next borrower finds a fresh connection.
+       */
+      void reset() throws SQLException {
+         if (!connection.getAutoCommit()) {
+            connection.rollback();
+            connection.setAutoCommit(true);
+         }
+
+         if (connection.isReadOnly()) {
+            connection.setReadOnly(false);
+         }
+
+         idleSince = System.nanoTime();
+      }
+
+      Connection open() {
+         proxy = (Connection) Proxy.newProxyInstance(
+               Connection.class.getClassLoader(),
+               new Class<?>[] { Connection.class },
+               this);
+         return proxy;
+      }
+
+      @Override
+      public Object invoke(final Object object, final Method method, final Object[] args) throws Throwable {
+         final String name = method.getName();
+
+         if (object != proxy) {
+            // A proxy which has already been closed.
+            if ("close".equals(name)) {
+               return null;
+            }
+
+            if ("isClosed".equals(name)) {
+               return true;
+            }
+
+            throw new SQLException("The connection has been returned to the pool");
+         }
+
+         switch (name) {
+            case "close":
+               // Statements which have not been closed by the caller become reusable.
+               statementsInUse.clear();
+               proxy = null;
+               release(this);
+               return null;
+            case "unwrap":
+               if (((Class<?>) args[0]).isInstance(connection)) {
+                  return connection;
+               }
+
+               break;
+            case "prepareStatement":
+               if (args.length == 1 || args.length == 2 && args[1] instanceof Integer) {
+                  return prepareStatement(args);
+               }
+
+               break;
+            case "equals":
+               return object == args[0];
+            case "hashCode":
+               return System.identityHashCode(object);
+            default:
+               break;
+         }
+
+         return invokeTarget(connection, method, args);
+      }
+
+      /**
+       * Returns the cached statement for the Sql, or a new one if it is not cached
+       * or if it is still in use by the caller.
+       */
+      private PreparedStatement prepareStatement(final Object[] args) throws Throwable {
+         final String key = args.length == 1 ? (String) args[0] : args[1] + ":" + args[0];
+         PreparedStatement statement = statements.get(key);
+
+         if (statement != null && statementsInUse.contains(statement)) {
+            // Nested use of the same Sql; a throwaway statement is used instead.
+            return args.length == 1
+                  ? connection.prepareStatement((String) args[0])
+                  : connection.prepareStatement((String) args[0], (Integer) args[1]);
+         }
+
+         if (statement == null || statement.isClosed()) {
+            statement = args.length == 1
+                  ? connection.prepareStatement((String) args[0])
+                  : connection.prepareStatement((String) args[0], (Integer) args[1]);
+            statements.put(key, statement);
+            evictStatements();
+         }
+
+         statementsInUse.add(statement);
+         return cachedStatement(statement, proxy);
+      }
+
+      /**
+       * Wraps a cached statement so that closing it keeps it open, and so that it hands
+       * out the connection proxy rather than the physical connection.
+       */
+      private PreparedStatement cachedStatement(final PreparedStatement statement, final Connection owner) {
+         return (PreparedStatement) Proxy.newProxyInstance(
+               PreparedStatement.class.getClassLoader(),
+               new Class<?>[] { PreparedStatement.class },
+               new InvocationHandler() {
+                  private boolean closed = false;
+
+                  @Override
+                  public Object invoke(final Object object, final Method method, final Object[] args)
+                        throws Throwable {
+                     switch (method.getName()) {
+                        case "close":
+                           if (!closed) {
+                              closed = true;
+                              statementsInUse.remove(statement);
+
+                              if (!statement.isClosed()) {
+                                 statement.clearParameters();
+                                 statement.clearBatch();
+                              }
+                           }
+
+                           return null;
+                        case "isClosed":
+                           return closed || statement.isClosed();
+                        case "getConnection":
+                           return owner;
+                        case "equals":
+                           return object == args[0];
+                        case "hashCode":
+                           return System.identityHashCode(object);
+                        default:
+                           return invokeTarget(statement, method, args);
+                     }
+                  }
+               });
+      }
+
+      private void evictStatements() {
+         final Iterator<PreparedStatement> iterator = statements.values().iterator();
+
+         while (statements.size() > STATEMENT_CACHE_SIZE && iterator.hasNext()) {
+            final PreparedStatement statement = iterator.next();
+
+            if (!statementsInUse.contains(statement)) {
+               iterator.remove();
+               closeQuietly(statement);
+            }
+         }
+      }
+
+      void destroy() {
+         for (final PreparedStatement statement : statements.values()) {
+            closeQuietly(statement);
+         }
+
+         statements.clear();
+
+         try {
+            connection.close();
+         } catch (final SQLException e) {
+            // Nothing to do, the connection is discarded anyway.
+         }
+      }
+   }
+
+   private static Object invokeTarget(final Object target, final Method method, final Object[] args)
+         throws Throwable {
+      try {
+         return method.invoke(target, args);
+      } catch (final InvocationTargetException e) {
+         throw e.getCause();
+      }
+   }
+
+   private static void closeQuietly(final PreparedStatement statement) {
+      try {
+         statement.close();
+      } catch (final SQLException e) {
+         // Nothing to do, the statement is discarded anyway.
+      }
+   }
+}
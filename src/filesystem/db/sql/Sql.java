@@ -0,0 +1,577 @@
+package filesystem.db.sql;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * Holds the database schema and the Sql statements used by the database file system.
+ * <p/>
+ * Paths are stored in a single table, where each row points to its parent directory.
+ * The unique <code>(PARENT_ID, NAME)</code> index makes child lookups and listings
+ * index seeks, while the <code>(CONTENT_ID, SEQUENCE_NUMBER)</code> primary key of the
+ * cluster table lets a file data be read in order without scanning.
+ * <p/>
+ * The length of the data of a file is stored on its row, together with its creation
+ * and modification times, so that they are read without touching the clusters.
+ * <p/>
+ * Each row also stores the space used by the path: the data of a file, or the total
+ * of the files under a directory, at any depth. A change of the space used by a path
+ * is added to every directory in its ancestry by a single statement, so that the
+ * usage of a directory, and its optional quota, are read from its row alone.
+ * <p/>
+ * Each path row also stores its ancestry, the identifiers of the directories above it
+ * from the root, as in <code>/1/5/9/</code>. The paths under a directory are then the
+ * rows whose ancestry starts with the ancestry and identifier of the directory, a
+ * range of the ancestry index, and a directory is an ancestor of a path if the ancestry
+ * of the path contains its identifier. Moving a directory rewrites the ancestry of its
+ * subtree in a single statement.
+ * <p/>
+ * The data of a small file may instead be stored inline, in its own row, in which case
+ * the file has no content and reading its data only reads its row.
+ * <p/>
+ * The clusters of a file belong to a content, which the file row points to. Copied
+ * files point to the same content, whose reference count tells how many files share
+ * it; a file which shares its content gets a private copy the first time it is written.
+ * <p/>
+ * When deduplication is enabled, the data of a cluster is stored in a block keyed by
+ * the SHA-256 hash of the data, which the cluster row points to instead of holding the
+ * data itself. Identical clusters, in any file, share a block, whose reference count
+ * tells how many clusters point to it; a block is deleted together with its last
+ * cluster.
+ * <p/>
+ * A cluster row may hold an extent, a run of consecutive clusters which is keyed by
+ * its first cluster, so that the data of large files is stored in few large rows.
+ * The clusters of a range are then held by the rows starting inside the range, and by
+ * the last row starting before it, which is found by a single seek.
+ * <p/>
+ * Files are sparse: a cluster whose data is entirely zero has no row, and reads as
+ * zeros, except the last cluster of a file, whose row tells the length of the data.
+ * <p/>
+ * The data of a cluster, or of a block, may be encoded by a codec, whose tag is stored
+ * next to it together with the length of the decoded data.
+ * <p/>
+ * Deleted directories and unreferenced contents are queued in the garbage table,
+ * from which their rows and clusters are reclaimed in the background. A deleted
+ * directory is queued with the ancestry of the rows under it, which are ignored until
+ * they are reclaimed: a path found by a lookup is checked against the queued subtrees
+ * of its own ancestry, and scans of a subtree skip the rows under the directories
+ * queued inside it, both through the garbage ancestry index.
+ * <p/>
+ * The content written by an output stream is queued as soon as it is created, with
+ * a time until which it is staged. Each batch stored by the stream pushes the time
+ * forward, and closing the stream removes the entry, while the content of a stream
+ * which is never closed is reclaimed once the time has passed.
+ *
+ * @author Edoardo Luppi
+ */
+public final class Sql
+{
+   private static final String[] SCHEMA = {
+         "CREATE TABLE IF NOT EXISTS DBFS_FILE_SYSTEM ("
+               + "ID VARCHAR(36) NOT NULL PRIMARY KEY, "
+               + "VOLUME_LABEL VARCHAR(255), "
+               + "CLUSTER_SIZE INTEGER NOT NULL)",
+         "CREATE TABLE IF NOT EXISTS DBFS_PATH ("
+               + "ID BIGINT GENERATED BY DEFAULT AS IDENTITY PRIMARY KEY, "
+               + "FILE_SYSTEM_ID VARCHAR(36) NOT NULL, "
+               + "PARENT_ID BIGINT, "
+               + "NAME VARCHAR(255) NOT NULL, "
+               + "PATH_TYPE CHAR(1) NOT NULL, "
+               + "CONTENT_ID BIGINT, "
+               + "ANCESTRY VARCHAR(4000) NOT NULL, "
+               + "DATA_LENGTH BIGINT DEFAULT 0 NOT NULL, "
+               + "INLINE_DATA VARBINARY, "
+               + "CREATION_TIME TIMESTAMP DEFAULT CURRENT_TIMESTAMP NOT NULL, "
+               + "MODIFICATION_TIME TIMESTAMP DEFAULT CURRENT_TIMESTAMP NOT NULL, "
+               + "USED_BYTES BIGINT DEFAULT 0 NOT NULL, "
+               + "USED_CLUSTERS BIGINT DEFAULT 0 NOT NULL, "
+               + "QUOTA BIGINT)",
+         "CREATE UNIQUE INDEX IF NOT EXISTS DBFS_PATH_PARENT_NAME_IDX ON DBFS_PATH (PARENT_ID, NAME)",
+         "CREATE INDEX IF NOT EXISTS DBFS_PATH_ANCESTRY_IDX ON DBFS_PATH (ANCESTRY, ID)",
+         "CREATE INDEX IF NOT EXISTS DBFS_PATH_FILE_SYSTEM_IDX ON DBFS_PATH (FILE_SYSTEM_ID, PARENT_ID)",
+         "CREATE TABLE IF NOT EXISTS DBFS_CONTENT ("
+               + "ID BIGINT GENERATED BY DEFAULT AS IDENTITY PRIMARY KEY, "
+               + "REFERENCE_COUNT INTEGER NOT NULL)",
+         "CREATE TABLE IF NOT EXISTS DBFS_CLUSTER ("
+               + "CONTENT_ID BIGINT NOT NULL, "
+               + "SEQUENCE_NUMBER INTEGER NOT NULL, "
+               + "CLUSTER_COUNT INTEGER DEFAULT 1 NOT NULL, "
+               + "DATA_LENGTH INTEGER NOT NULL, "
+               + "CODEC TINYINT DEFAULT 0 NOT NULL, "
+               + "DATA BLOB, "
+               + "BLOCK_ID BIGINT, "
+               + "PRIMARY KEY (CONTENT_ID, SEQUENCE_NUMBER))",
+         "CREATE TABLE IF NOT EXISTS DBFS_BLOCK ("
+               + "ID BIGINT GENERATED BY DEFAULT AS IDENTITY PRIMARY KEY, "
+               + "HASH CHAR(64) NOT NULL, "
+               + "CODEC TINYINT DEFAULT 0 NOT NULL, "
+               + "DATA BLOB NOT NULL, "
+               + "REFERENCE_COUNT INTEGER NOT NULL)",
+         "CREATE UNIQUE INDEX IF NOT EXISTS DBFS_BLOCK_HASH_IDX ON DBFS_BLOCK (HASH)",
+         "CREATE TABLE IF NOT EXISTS DBFS_GARBAGE ("
+               + "ID BIGINT GENERATED BY DEFAULT AS IDENTITY PRIMARY KEY, "
+               + "FILE_SYSTEM_ID VARCHAR(36) NOT NULL, "
+               + "PATH_ID BIGINT, "
+               + "ANCESTRY VARCHAR(4000), "
+               + "CONTENT_ID BIGINT, "
+               + "STAGED_UNTIL TIMESTAMP)",
+         "CREATE INDEX IF NOT EXISTS DBFS_GARBAGE_FILE_SYSTEM_IDX ON DBFS_GARBAGE (FILE_SYSTEM_ID, ID)",
+         "CREATE INDEX IF NOT EXISTS DBFS_GARBAGE_CONTENT_IDX ON DBFS_GARBAGE (CONTENT_ID)",
+         "CREATE INDEX IF NOT EXISTS DBFS_GARBAGE_ANCESTRY_IDX ON DBFS_GARBAGE (FILE_SYSTEM_ID, ANCESTRY)"
+   };
+
+   /**
+    * Excludes, from a scan of a subtree, the rows under a directory deleted inside the
+    * subtree which have not been reclaimed yet. The parameter is the ancestry pattern
+    * of the subtree, which restricts the queued directories to a range of the garbage
+    * ancestry index.
+    */
+   private static final String NOT_DELETED =
+         "NOT EXISTS (SELECT 1 FROM DBFS_GARBAGE WHERE DBFS_GARBAGE.FILE_SYSTEM_ID = DBFS_PATH.FILE_SYSTEM_ID "
+               + "AND DBFS_GARBAGE.ANCESTRY LIKE ? "
+               + "AND DBFS_PATH.ANCESTRY LIKE CONCAT(DBFS_GARBAGE.ANCESTRY, '%'))";
+
+   /**
+    * Selects the data of cluster rows, which may be held by a block.
+    */
+   private static final String SELECT_CLUSTER_DATA =
+         "SELECT SEQUENCE_NUMBER, CLUSTER_COUNT, DATA_LENGTH, COALESCE(DBFS_BLOCK.CODEC, DBFS_CLUSTER.CODEC) AS CODEC, "
+               + "COALESCE(DBFS_CLUSTER.DATA, DBFS_BLOCK.DATA) AS DATA "
+               + "FROM DBFS_CLUSTER LEFT JOIN DBFS_BLOCK ON DBFS_BLOCK.ID = DBFS_CLUSTER.BLOCK_ID ";
+
+   /**
+    * Restricts the cluster rows of a content to the ones holding a range of clusters:
+    * the rows starting inside the range, and the last row starting before it.
+    */
+   private static final String OVERLAPPING_CLUSTERS =
+         "WHERE DBFS_CLUSTER.CONTENT_ID = ? AND DBFS_CLUSTER.SEQUENCE_NUMBER >= COALESCE("
+               + "(SELECT MAX(FIRST_CLUSTER.SEQUENCE_NUMBER) FROM DBFS_CLUSTER FIRST_CLUSTER "
+               + "WHERE FIRST_CLUSTER.CONTENT_ID = ? AND FIRST_CLUSTER.SEQUENCE_NUMBER <= ?), ?) "
+               + "AND DBFS_CLUSTER.SEQUENCE_NUMBER < ? ";
+
+   /**
+    * Restricts the paths under a directory to a range of the <code>(ANCESTRY, ID)</code>
+    * index, and to a filter whose conditions are ignored when their parameters are null.
+    */
+   private static final String FIND_CONDITION =
+         "ANCESTRY LIKE ? AND (ANCESTRY, ID) > (?, ?) AND (ANCESTRY, ID) <= (?, ?) "
+               + "AND (CAST(? AS VARCHAR) IS NULL OR NAME LIKE ? ESCAPE '\\') "
+               + "AND (CAST(? AS CHAR(1)) IS NULL OR PATH_TYPE = ?) "
+               + "AND (CAST(? AS BIGINT) IS NULL OR DATA_LENGTH >= ?) "
+               + "AND (CAST(? AS BIGINT) IS NULL OR DATA_LENGTH <= ?) "
+               + "AND (CAST(? AS TIMESTAMP) IS NULL OR MODIFICATION_TIME >= ?) "
+               + "AND (CAST(? AS TIMESTAMP) IS NULL OR MODIFICATION_TIME <= ?) "
+               + "AND " + NOT_DELETED;
+
+   public static final String SELECT_FILE_SYSTEM =
+         "SELECT VOLUME_LABEL, CLUSTER_SIZE, "
+               + "(SELECT NAME FROM DBFS_PATH WHERE FILE_SYSTEM_ID = DBFS_FILE_SYSTEM.ID AND PARENT_ID IS NULL) AS ROOT_NAME "
+               + "FROM DBFS_FILE_SYSTEM WHERE ID = ?";
+
+   public static final String INSERT_FILE_SYSTEM =
+         "INSERT INTO DBFS_FILE_SYSTEM (ID, VOLUME_LABEL, CLUSTER_SIZE) VALUES (?, ?, ?)";
+
+   public static final String UPDATE_FILE_SYSTEM =
+         "UPDATE DBFS_FILE_SYSTEM SET VOLUME_LABEL = ? WHERE ID = ?";
+
+   public static final String SELECT_PATH_BY_ID =
+         "SELECT ID, PATH_TYPE, CONTENT_ID, ANCESTRY FROM DBFS_PATH WHERE ID = ?";
+
+   public static final String SELECT_PATH_BY_NAME =
+         "SELECT ID, PATH_TYPE, CONTENT_ID, ANCESTRY FROM DBFS_PATH WHERE PARENT_ID = ? AND NAME = ?";
+
+   public static final String SELECT_ROOT_PATH =
+         "SELECT ID, PATH_TYPE, CONTENT_ID, ANCESTRY FROM DBFS_PATH WHERE FILE_SYSTEM_ID = ? AND PARENT_ID IS NULL";
+
+   public static final String SELECT_CHILD_PATHS =
+         "SELECT ID, NAME, PATH_TYPE, CONTENT_ID FROM DBFS_PATH WHERE PARENT_ID = ?";
+
+   /**
+    * Selects a page of the child paths following a name.
+    */
+   public static final String SELECT_CHILD_ENTRIES =
+         "SELECT ID, NAME, PATH_TYPE, DATA_LENGTH FROM DBFS_PATH WHERE PARENT_ID = ? AND NAME > ? ORDER BY NAME FETCH FIRST ? ROWS ONLY";
+
+   /**
+    * Stores a path, whose ancestry is derived from the one of its parent.
+    * The root directory has an empty ancestry.
+    */
+   public static final String INSERT_PATH =
+         "INSERT INTO DBFS_PATH (FILE_SYSTEM_ID, PARENT_ID, NAME, PATH_TYPE, CONTENT_ID, ANCESTRY) "
+               + "VALUES (?, ?, ?, ?, ?, COALESCE((SELECT CONCAT(ANCESTRY, ID, '/') FROM DBFS_PATH WHERE ID = ?), '/'))";
+
+   public static final String UPDATE_PATH =
+         "UPDATE DBFS_PATH SET PARENT_ID = ?, NAME = ?, MODIFICATION_TIME = CURRENT_TIMESTAMP WHERE ID = ?";
+
+   public static final String SELECT_PATH_ATTRIBUTES =
+         "SELECT PATH_TYPE, ANCESTRY, DATA_LENGTH, CREATION_TIME, MODIFICATION_TIME FROM DBFS_PATH WHERE ID = ?";
+
+   public static final String SELECT_PATH_LENGTH =
+         "SELECT DATA_LENGTH FROM DBFS_PATH WHERE ID = ?";
+
+   public static final String LOCK_PATH_LENGTH =
+         "SELECT DATA_LENGTH FROM DBFS_PATH WHERE ID = ? FOR UPDATE";
+
+   /**
+    * Selects the space used by a file and the length of its stored data, read from the
+    * length of its last cluster given the cluster size, as every other cluster is full,
+    * or from its inline data. The stored bytes and clusters leave out the clusters which
+    * are not stored.
+    */
+   public static final String SELECT_FILE_LENGTH =
+         "SELECT ANCESTRY, USED_BYTES, USED_CLUSTERS, "
+               + "COALESCE((SELECT LAST_CLUSTER.SEQUENCE_NUMBER * ? + LAST_CLUSTER.DATA_LENGTH "
+               + "FROM DBFS_CLUSTER LAST_CLUSTER WHERE LAST_CLUSTER.CONTENT_ID = DBFS_PATH.CONTENT_ID "
+               + "ORDER BY LAST_CLUSTER.SEQUENCE_NUMBER DESC FETCH FIRST 1 ROWS ONLY), "
+               + "OCTET_LENGTH(INLINE_DATA), 0) AS STORED_LENGTH, "
+               + "COALESCE((SELECT SUM(DATA_LENGTH) FROM DBFS_CLUSTER WHERE DBFS_CLUSTER.CONTENT_ID = DBFS_PATH.CONTENT_ID), "
+               + "OCTET_LENGTH(INLINE_DATA), 0) AS STORED_BYTES, "
+               + "COALESCE((SELECT SUM(CLUSTER_COUNT) FROM DBFS_CLUSTER WHERE DBFS_CLUSTER.CONTENT_ID = DBFS_PATH.CONTENT_ID), 0) "
+               + "AS STORED_CLUSTERS "
+               + "FROM DBFS_PATH WHERE ID = ? FOR UPDATE";
+
+   public static final String UPDATE_FILE_LENGTH =
+         "UPDATE DBFS_PATH SET DATA_LENGTH = ?, USED_BYTES = ?, USED_CLUSTERS = ?, "
+               + "MODIFICATION_TIME = CURRENT_TIMESTAMP WHERE ID = ?";
+
+   public static final String SELECT_PATH_USAGE =
+         "SELECT ANCESTRY, USED_BYTES, USED_CLUSTERS, QUOTA FROM DBFS_PATH WHERE ID = ?";
+
+   public static final String UPDATE_PATH_USAGE =
+         "UPDATE DBFS_PATH SET USED_BYTES = ?, USED_CLUSTERS = ? WHERE ID = ?";
+
+   /**
+    * Adds a change of the space used by a path to its ancestors, passed as an array.
+    */
+   public static final String ADD_ANCESTORS_USAGE =
+         "UPDATE DBFS_PATH SET USED_BYTES = USED_BYTES + ?, USED_CLUSTERS = USED_CLUSTERS + ? WHERE ID = ANY(?)";
+
+   /**
+    * Counts the directories, among the given ones, which use more space than their quota.
+    */
+   public static final String COUNT_EXCEEDED_QUOTAS =
+         "SELECT COUNT(*) FROM DBFS_PATH WHERE ID = ANY(?) AND QUOTA IS NOT NULL AND USED_BYTES > QUOTA";
+
+   public static final String UPDATE_PATH_QUOTA =
+         "UPDATE DBFS_PATH SET QUOTA = ? WHERE ID = ?";
+
+   /**
+    * Selects the ancestry shared by the paths under a path.
+    */
+   public static final String SELECT_SUBTREE_ANCESTRY =
+         "SELECT CONCAT(ANCESTRY, ID, '/') AS SUBTREE_ANCESTRY FROM DBFS_PATH WHERE ID = ?";
+
+   /**
+    * Replaces the leading part of the ancestry of the paths under a moved directory.
+    */
+   public static final String MOVE_SUBTREE =
+         "UPDATE DBFS_PATH SET ANCESTRY = CONCAT(?, SUBSTRING(ANCESTRY, ?)) WHERE ANCESTRY LIKE ?";
+
+   /**
+    * Replaces the leading part of the ancestry of the queued directories under a moved
+    * directory, so that they keep matching the rows they hide.
+    */
+   public static final String MOVE_SUBTREE_GARBAGE =
+         "UPDATE DBFS_GARBAGE SET ANCESTRY = CONCAT(?, SUBSTRING(ANCESTRY, ?)) WHERE FILE_SYSTEM_ID = ? AND ANCESTRY LIKE ?";
+
+   public static final String UPDATE_PATH_ANCESTRY =
+         "UPDATE DBFS_PATH SET ANCESTRY = ? WHERE ID = ?";
+
+   /**
+    * Selects every path under a directory, parents before their children.
+    */
+   public static final String SELECT_DESCENDANT_PATHS =
+         "SELECT ID, PARENT_ID, NAME, PATH_TYPE, CONTENT_ID FROM DBFS_PATH WHERE ANCESTRY LIKE ? AND "
+               + NOT_DELETED + " ORDER BY LENGTH(ANCESTRY), PARENT_ID, NAME";
+
+   /**
+    * Selects a page of the paths which match a filter, in index order.
+    */
+   public static final String FIND_PATHS =
+         "SELECT ID, PARENT_ID, NAME, PATH_TYPE, CONTENT_ID, ANCESTRY FROM DBFS_PATH WHERE " + FIND_CONDITION
+               + " ORDER BY ANCESTRY, ID FETCH FIRST ? ROWS ONLY";
+
+   public static final String COUNT_FOUND_PATHS =
+         "SELECT COUNT(*) FROM DBFS_PATH WHERE " + FIND_CONDITION;
+
+   /**
+    * Selects the index key of the path at a position of the paths which match a filter.
+    */
+   public static final String SELECT_FOUND_PATH_KEY =
+         "SELECT ANCESTRY, ID FROM DBFS_PATH WHERE " + FIND_CONDITION
+               + " ORDER BY ANCESTRY, ID OFFSET ? ROWS FETCH FIRST 1 ROWS ONLY";
+
+   /**
+    * Selects the directories with the given identifiers, passed as an array.
+    */
+   public static final String SELECT_DIRECTORIES_BY_ID =
+         "SELECT ID, PARENT_ID, NAME, ANCESTRY FROM DBFS_PATH WHERE ID = ANY(?) ORDER BY LENGTH(ANCESTRY)";
+
+   /**
+    * Checks if a directory is an ancestor of a path, by looking for the directory
+    * identifier in the path ancestry.
+    */
+   public static final String SELECT_IS_ANCESTOR =
+         "SELECT 1 FROM DBFS_PATH WHERE ID = ? AND ANCESTRY LIKE ?";
+
+   public static final String DELETE_PATH =
+         "DELETE FROM DBFS_PATH WHERE ID = ?";
+
+   public static final String SELECT_PATH_CONTENT =
+         "SELECT CONTENT_ID FROM DBFS_PATH WHERE ID = ?";
+
+   public static final String LOCK_PATH_CONTENT =
+         "SELECT CONTENT_ID FROM DBFS_PATH WHERE ID = ? FOR UPDATE";
+
+   public static final String UPDATE_PATH_CONTENT =
+         "UPDATE DBFS_PATH SET CONTENT_ID = ?, INLINE_DATA = NULL WHERE ID = ?";
+
+   public static final String SELECT_INLINE_DATA =
+         "SELECT CONTENT_ID, INLINE_DATA FROM DBFS_PATH WHERE ID = ?";
+
+   /**
+    * Stores the data of a file inline, in place of its content.
+    */
+   public static final String UPDATE_INLINE_DATA =
+         "UPDATE DBFS_PATH SET CONTENT_ID = NULL, INLINE_DATA = ? WHERE ID = ?";
+
+   public static final String COPY_INLINE_DATA =
+         "UPDATE DBFS_PATH SET INLINE_DATA = "
+               + "(SELECT SOURCE_PATH.INLINE_DATA FROM DBFS_PATH SOURCE_PATH WHERE SOURCE_PATH.ID = ?) WHERE ID = ?";
+
+   /**
+    * Copies the children of a directory under another directory, except the copy itself
+    * when a directory is copied into its own subtree. Copied files share their content.
+    */
+   public static final String COPY_CHILD_PATHS =
+         "INSERT INTO DBFS_PATH (FILE_SYSTEM_ID, PARENT_ID, NAME, PATH_TYPE, CONTENT_ID, DATA_LENGTH, "
+               + "INLINE_DATA, USED_BYTES, USED_CLUSTERS, ANCESTRY) "
+               + "SELECT FILE_SYSTEM_ID, ?, NAME, PATH_TYPE, CONTENT_ID, DATA_LENGTH, INLINE_DATA, USED_BYTES, "
+               + "USED_CLUSTERS, "
+               + "(SELECT CONCAT(COPY_PATH.ANCESTRY, COPY_PATH.ID, '/') FROM DBFS_PATH COPY_PATH WHERE COPY_PATH.ID = ?) "
+               + "FROM DBFS_PATH WHERE PARENT_ID = ? AND ID <> ?";
+
+   /**
+    * Pairs the child directories of a copied directory with their copies.
+    */
+   public static final String SELECT_COPIED_DIRECTORIES =
+         "SELECT SOURCE_PATH.ID AS SOURCE_ID, COPIED_PATH.ID AS COPY_ID "
+               + "FROM DBFS_PATH SOURCE_PATH JOIN DBFS_PATH COPIED_PATH "
+               + "ON COPIED_PATH.PARENT_ID = ? AND COPIED_PATH.NAME = SOURCE_PATH.NAME "
+               + "WHERE SOURCE_PATH.PARENT_ID = ? AND SOURCE_PATH.PATH_TYPE = 'D' AND SOURCE_PATH.ID <> ?";
+
+   public static final String INSERT_CONTENT =
+         "INSERT INTO DBFS_CONTENT (REFERENCE_COUNT) VALUES (1)";
+
+   public static final String LOCK_CONTENT =
+         "SELECT REFERENCE_COUNT FROM DBFS_CONTENT WHERE ID = ? FOR UPDATE";
+
+   public static final String UPDATE_CONTENT_REFERENCES =
+         "UPDATE DBFS_CONTENT SET REFERENCE_COUNT = REFERENCE_COUNT + ? WHERE ID = ?";
+
+   /**
+    * Adds a reference to the contents of the files under a directory, once per file.
+    */
+   public static final String REFERENCE_CHILD_CONTENTS =
+         "UPDATE DBFS_CONTENT SET REFERENCE_COUNT = REFERENCE_COUNT + "
+               + "(SELECT COUNT(*) FROM DBFS_PATH WHERE PARENT_ID = ? AND CONTENT_ID = DBFS_CONTENT.ID) "
+               + "WHERE ID IN (SELECT CONTENT_ID FROM DBFS_PATH WHERE PARENT_ID = ?)";
+
+   public static final String DELETE_CONTENT =
+         "DELETE FROM DBFS_CONTENT WHERE ID = ?";
+
+   public static final String SELECT_CLUSTERS =
+         SELECT_CLUSTER_DATA + "WHERE DBFS_CLUSTER.CONTENT_ID = ? ORDER BY SEQUENCE_NUMBER";
+
+   /**
+    * Selects the rows holding a range of clusters of a content.
+    */
+   public static final String SELECT_CLUSTER_RANGE =
+         SELECT_CLUSTER_DATA + OVERLAPPING_CLUSTERS + "ORDER BY SEQUENCE_NUMBER";
+
+   /**
+    * Selects the extents holding a range of clusters of a content.
+    */
+   public static final String SELECT_EXTENT_RANGE =
+         SELECT_CLUSTER_DATA + OVERLAPPING_CLUSTERS + "AND CLUSTER_COUNT > 1 ORDER BY SEQUENCE_NUMBER";
+
+   /**
+    * Inserts a cluster which holds either its data or a block.
+    */
+   public static final String INSERT_CLUSTER =
+         "INSERT INTO DBFS_CLUSTER (CONTENT_ID, SEQUENCE_NUMBER, CLUSTER_COUNT, DATA_LENGTH, CODEC, DATA, BLOCK_ID) "
+               + "VALUES (?, ?, ?, ?, ?, ?, ?)";
+
+   public static final String UPDATE_CLUSTER =
+         "UPDATE DBFS_CLUSTER SET CLUSTER_COUNT = ?, DATA_LENGTH = ?, CODEC = ?, DATA = ?, BLOCK_ID = ? "
+               + "WHERE CONTENT_ID = ? AND SEQUENCE_NUMBER = ?";
+
+   public static final String DELETE_CLUSTER =
+         "DELETE FROM DBFS_CLUSTER WHERE CONTENT_ID = ? AND SEQUENCE_NUMBER = ?";
+
+   /**
+    * Selects the sequence numbers of the cluster rows of a content inside a range.
+    */
+   public static final String SELECT_CLUSTER_NUMBERS =
+         "SELECT SEQUENCE_NUMBER FROM DBFS_CLUSTER WHERE CONTENT_ID = ? "
+               + "AND SEQUENCE_NUMBER >= ? AND SEQUENCE_NUMBER < ?";
+
+   /**
+    * Selects the sequence number following the last cluster of a content.
+    */
+   public static final String SELECT_CLUSTER_END =
+         "SELECT SEQUENCE_NUMBER + CLUSTER_COUNT AS CLUSTER_END FROM DBFS_CLUSTER WHERE CONTENT_ID = ? "
+               + "ORDER BY SEQUENCE_NUMBER DESC FETCH FIRST 1 ROWS ONLY";
+
+   public static final String COPY_CLUSTERS =
+         "INSERT INTO DBFS_CLUSTER (CONTENT_ID, SEQUENCE_NUMBER, CLUSTER_COUNT, DATA_LENGTH, CODEC, DATA, BLOCK_ID) "
+               + "SELECT ?, SEQUENCE_NUMBER, CLUSTER_COUNT, DATA_LENGTH, CODEC, DATA, BLOCK_ID FROM DBFS_CLUSTER "
+               + "WHERE CONTENT_ID = ?";
+
+   public static final String DELETE_CLUSTERS =
+         "DELETE FROM DBFS_CLUSTER WHERE CONTENT_ID = ?";
+
+   public static final String SELECT_FIRST_CLUSTER =
+         "SELECT MIN(SEQUENCE_NUMBER) AS SEQUENCE_NUMBER FROM DBFS_CLUSTER WHERE CONTENT_ID = ?";
+
+   public static final String DELETE_CLUSTERS_BEFORE =
+         "DELETE FROM DBFS_CLUSTER WHERE CONTENT_ID = ? AND SEQUENCE_NUMBER < ?";
+
+   public static final String DELETE_CLUSTERS_FROM =
+         "DELETE FROM DBFS_CLUSTER WHERE CONTENT_ID = ? AND SEQUENCE_NUMBER >= ?";
+
+   /**
+    * Selects the blocks with the given hashes, locking them until the transaction completes.
+    */
+   public static final String LOCK_BLOCKS =
+         "SELECT ID, HASH FROM DBFS_BLOCK WHERE HASH = ANY(?) FOR UPDATE";
+
+   public static final String INSERT_BLOCK =
+         "INSERT INTO DBFS_BLOCK (HASH, CODEC, DATA, REFERENCE_COUNT) VALUES (?, ?, ?, 0)";
+
+   public static final String UPDATE_BLOCK_REFERENCES =
+         "UPDATE DBFS_BLOCK SET REFERENCE_COUNT = REFERENCE_COUNT + ? WHERE ID = ?";
+
+   /**
+    * Adds a reference to the blocks of the clusters of a content, once per cluster.
+    */
+   public static final String REFERENCE_CONTENT_BLOCKS =
+         "UPDATE DBFS_BLOCK SET REFERENCE_COUNT = REFERENCE_COUNT + "
+               + "(SELECT COUNT(*) FROM DBFS_CLUSTER WHERE CONTENT_ID = ? AND BLOCK_ID = DBFS_BLOCK.ID) "
+               + "WHERE ID IN (SELECT BLOCK_ID FROM DBFS_CLUSTER WHERE CONTENT_ID = ?)";
+
+   /**
+    * Drops the references of a range of clusters of a content to their blocks, once per
+    * cluster.
+    */
+   public static final String RELEASE_CLUSTER_BLOCKS =
+         "UPDATE DBFS_BLOCK SET REFERENCE_COUNT = REFERENCE_COUNT - "
+               + "(SELECT COUNT(*) FROM DBFS_CLUSTER WHERE CONTENT_ID = ? AND SEQUENCE_NUMBER >= ? "
+               + "AND SEQUENCE_NUMBER < ? AND BLOCK_ID = DBFS_BLOCK.ID) "
+               + "WHERE ID IN (SELECT BLOCK_ID FROM DBFS_CLUSTER WHERE CONTENT_ID = ? AND SEQUENCE_NUMBER >= ? "
+               + "AND SEQUENCE_NUMBER < ?)";
+
+   /**
+    * Deletes the blocks of a range of clusters of a content which are no longer referenced.
+    */
+   public static final String DELETE_RELEASED_BLOCKS =
+         "DELETE FROM DBFS_BLOCK WHERE REFERENCE_COUNT <= 0 AND ID IN "
+               + "(SELECT BLOCK_ID FROM DBFS_CLUSTER WHERE CONTENT_ID = ? AND SEQUENCE_NUMBER >= ? "
+               + "AND SEQUENCE_NUMBER < ?)";
+
+   /**
+    * Queues a directory, with the ancestry shared by the paths under it.
+    */
+   public static final String INSERT_PATH_GARBAGE =
+         "INSERT INTO DBFS_GARBAGE (FILE_SYSTEM_ID, PATH_ID, ANCESTRY) "
+               + "SELECT ?, ID, CONCAT(ANCESTRY, ID, '/') FROM DBFS_PATH WHERE ID = ?";
+
+   public static final String INSERT_CONTENT_GARBAGE =
+         "INSERT INTO DBFS_GARBAGE (FILE_SYSTEM_ID, CONTENT_ID) VALUES (?, ?)";
+
+   /**
+    * Queues the content of an output stream, staged for the given number of milliseconds.
+    */
+   public static final String INSERT_STAGED_GARBAGE =
+         "INSERT INTO DBFS_GARBAGE (FILE_SYSTEM_ID, CONTENT_ID, STAGED_UNTIL) "
+               + "VALUES (?, ?, DATEADD(MILLISECOND, ?, CURRENT_TIMESTAMP))";
+
+   /**
+    * Stages the content of an output stream for the given number of milliseconds more,
+    * unless the garbage collector has already claimed it.
+    */
+   public static final String RENEW_STAGED_GARBAGE =
+         "UPDATE DBFS_GARBAGE SET STAGED_UNTIL = DATEADD(MILLISECOND, ?, CURRENT_TIMESTAMP) "
+               + "WHERE FILE_SYSTEM_ID = ? AND CONTENT_ID = ? AND STAGED_UNTIL IS NOT NULL";
+
+   /**
+    * Ends the staging of a content, which is then reclaimed as any other queued content.
+    */
+   public static final String RELEASE_STAGED_GARBAGE =
+         "UPDATE DBFS_GARBAGE SET STAGED_UNTIL = NULL "
+               + "WHERE FILE_SYSTEM_ID = ? AND CONTENT_ID = ? AND STAGED_UNTIL IS NOT NULL";
+
+   /**
+    * Claims a queued content whose staging has expired, unless it has been renewed.
+    */
+   public static final String CLAIM_STAGED_GARBAGE =
+         "UPDATE DBFS_GARBAGE SET STAGED_UNTIL = NULL WHERE ID = ? AND STAGED_UNTIL <= CURRENT_TIMESTAMP";
+
+   /**
+    * Removes a staged content from the queue, once it is referenced by its file.
+    */
+   public static final String DELETE_STAGED_GARBAGE =
+         "DELETE FROM DBFS_GARBAGE WHERE FILE_SYSTEM_ID = ? AND CONTENT_ID = ? AND STAGED_UNTIL IS NOT NULL";
+
+   /**
+    * Selects the number of milliseconds before the first staged content expires.
+    */
+   public static final String SELECT_STAGED_GARBAGE_DELAY =
+         "SELECT DATEDIFF(MILLISECOND, CURRENT_TIMESTAMP, MIN(STAGED_UNTIL)) AS DELAY "
+               + "FROM DBFS_GARBAGE WHERE FILE_SYSTEM_ID = ? AND STAGED_UNTIL IS NOT NULL";
+
+   /**
+    * Selects a page of the paths under a deleted directory, whatever their depth.
+    */
+   public static final String SELECT_DELETED_PATHS_PAGE =
+         "SELECT ID, PATH_TYPE, CONTENT_ID FROM DBFS_PATH WHERE ANCESTRY LIKE ? FETCH FIRST ? ROWS ONLY";
+
+   /**
+    * Checks if any of the given subtree ancestries, passed as an array, is queued.
+    */
+   public static final String SELECT_QUEUED_ANCESTRY =
+         "SELECT 1 FROM DBFS_GARBAGE WHERE FILE_SYSTEM_ID = ? AND ANCESTRY = ANY(?) FETCH FIRST 1 ROWS ONLY";
+
+   /**
+    * Selects and locks the oldest queued entry, so that the ancestry of a queued directory
+    * cannot be rewritten by a move while its rows are being reclaimed. Contents which are
+    * still staged are skipped.
+    */
+   public static final String SELECT_GARBAGE =
+         "SELECT ID, PATH_ID, ANCESTRY, CONTENT_ID, STAGED_UNTIL FROM DBFS_GARBAGE WHERE FILE_SYSTEM_ID = ? "
+               + "AND (STAGED_UNTIL IS NULL OR STAGED_UNTIL <= CURRENT_TIMESTAMP) "
+               + "ORDER BY ID FETCH FIRST 1 ROWS ONLY FOR UPDATE";
+
+   public static final String SELECT_ANY_GARBAGE =
+         "SELECT 1 FROM DBFS_GARBAGE WHERE FILE_SYSTEM_ID = ? FETCH FIRST 1 ROWS ONLY";
+
+   public static final String DELETE_GARBAGE =
+         "DELETE FROM DBFS_GARBAGE WHERE ID = ?";
+
+   private Sql() {}
+
+   /**
+    * Creates the tables and indexes needed by the file system, if they are missing.
+    *
+    * @param connection
+    *           The connection on which the statements are executed
+    */
+   public static void createSchema(final Connection connection) throws SQLException {
+      try (final Statement statement = connection.createStatement()) {
+         for (final String sql : SCHEMA) {
+            statement.execute(sql);
+         }
+      }
+   }
+}
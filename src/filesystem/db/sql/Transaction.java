@@ -1,15 +1,133 @@
 package filesystem.db.sql;
 
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * Represents an Sql transaction.
+ * <p/>
+ * A transaction can be begun multiple times on the same thread: only the outermost
+ * {@link #commit()} or {@link #rollback()} reaches the underlying {@link Connection},
+ * so that nested operations join the one which is already running.
+ * <p/>
+ * Actions registered through {@link #afterCompletion(Runnable)} run once the outermost
+ * commit or rollback has reached the connection, whatever its outcome, while actions
+ * registered through {@link #afterCommit(Runnable)} or {@link #afterRollback(Runnable)}
+ * run only if the changes have been committed, or rolled back.
  *
  * @author Edoardo Luppi
  */
 public class Transaction
 {
-   public void begin() {}
-   
-   public void commit() {}
+   private final Connection connection;
+   private int depth;
+   private boolean rollbackOnly;
+   private final List<Runnable> completionActions = new ArrayList<>();
+   private final List<Runnable> commitActions = new ArrayList<>();
+   private final List<Runnable> rollbackActions = new ArrayList<>();
+
+   public Transaction(final Connection connection) {
+      this.connection = connection;
+      depth = 0;
+      rollbackOnly = false;
+   }
+
+   public Connection getConnection() {
+      return connection;
+   }
+
+   /**
+    * Checks if the transaction has been begun and not yet completed.
+    */
+   public boolean isActive() {
+      return depth > 0;
+   }
+
+   /**
+    * Registers an action to run when the outermost transaction completes.
+    *
+    * @param action
+    *           The action to run
+    */
+   public void afterCompletion(final Runnable action) {
+      completionActions.add(action);
+   }
+
+   /**
+    * Registers an action to run when the outermost transaction commits.
+    *
+    * @param action
+    *           The action to run
+    */
+   public void afterCommit(final Runnable action) {
+      commitActions.add(action);
+   }
+
+   /**
+    * Registers an action to run when the outermost transaction rolls back.
+    *
+    * @param action
+    *           The action to run
+    */
+   public void afterRollback(final Runnable action) {
+      rollbackActions.add(action);
+   }
+
+   public void begin() throws SQLException {
+      if (depth == 0 && connection.getAutoCommit()) {
+         connection.setAutoCommit(false);
+      }
+
+      depth++;
+   }
+
+   /**
+    * Commits the transaction, if this is the outermost commit. A transaction in which
+    * a nested operation has failed cannot be committed: the outermost commit then
+    * fails, and the transaction has to be rolled back.
+    */
+   public void commit() throws SQLException {
+      if (depth == 1) {
+         if (rollbackOnly) {
+            throw new SQLException("The transaction has been marked rollback-only");
+         }
+
+         connection.commit();
+      }
+
+      depth--;
+
+      if (depth == 0) {
+         complete(true);
+      }
+   }
+
+   public void rollback() throws SQLException {
+      rollbackOnly = true;
+      depth--;
+
+      if (depth == 0) {
+         try {
+            connection.rollback();
+         } finally {
+            complete(false);
+         }
+      }
+   }
+
+   private void complete(final boolean committed) {
+      for (final Runnable action : committed ? commitActions : rollbackActions) {
+         action.run();
+      }
+
+      for (final Runnable action : completionActions) {
+         action.run();
+      }
 
-   public void rollback() {}
+      commitActions.clear();
+      rollbackActions.clear();
+      completionActions.clear();
+   }
 }
@@ -10,4 +10,8 @@ public class FileSystemRuntimeException extends RuntimeException
    public FileSystemRuntimeException(final String message) {
       super(message);
    }
+
+   public FileSystemRuntimeException(final String message, final Throwable cause) {
+      super(message, cause);
+   }
 }
@@ -9,7 +9,7 @@ import java.util.Optional;
 
 public class Test {
    public static void main(final String... args) {
-      try (final FileSystem fileSystem = new DbFileSystem("TEST", "root", 1024).create()) {
+      try (final FileSystem fileSystem = new DbFileSystem("jdbc:h2:mem:test;DB_CLOSE_DELAY=-1", "TEST", "root", 1024).create()) {
          final Path filePath = fileSystem
                .getRoot()
                .createDirectory("dir1/dir2/dir3")
@@ -0,0 +1,103 @@
+package filesystem.db;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import filesystem.FilePath;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+/**
+ * @author Edoardo Luppi
+ */
+public class DbClusterCacheTest extends DbTestCase
+{
+   @Test
+   public void staysWithinItsCapacity() {
+      for (final boolean offHeap : new boolean[] { false, true }) {
+         final DbClusterCache cache = new DbClusterCache(100, offHeap);
+
+         for (int i = 0; i < 50; i++) {
+            cache.put(i, 0, cluster(i), cache.getGeneration());
+            assertTrue(cache.getSize() <= 100);
+         }
+
+         assertArrayEquals(cluster(49), cache.get(49, 0));
+         assertNull(cache.get(0, 0));
+      }
+   }
+
+   @Test
+   public void keepsClustersReadAgainDuringScans() {
+      final DbClusterCache cache = new DbClusterCache(100, false);
+
+      for (int i = 0; i < 5; i++) {
+         cache.put(1, i, cluster(i), cache.getGeneration());
+         cache.get(1, i);
+      }
+
+      for (int i = 0; i < 100; i++) {
+         cache.put(2, i, cluster(i), cache.getGeneration());
+      }
+
+      for (int i = 0; i < 5; i++) {
+         assertArrayEquals(cluster(i), cache.get(1, i));
+      }
+   }
+
+   @Test
+   public void dropsInvalidatedClusters() {
+      final DbClusterCache cache = new DbClusterCache(1000, false);
+
+      for (int i = 0; i < 10; i++) {
+         cache.put(1, i, cluster(i), cache.getGeneration());
+      }
+
+      final long generation = cache.getGeneration();
+      cache.invalidate(1, 2, 4);
+      assertNotNull(cache.get(1, 1));
+      assertNull(cache.get(1, 2));
+      assertNull(cache.get(1, 3));
+      assertNotNull(cache.get(1, 4));
+
+      // A read which started before the invalidation must not store stale data.
+      cache.put(1, 2, cluster(2), generation);
+      assertNull(cache.get(1, 2));
+
+      // The data of other contents is still stored.
+      cache.put(2, 0, cluster(0), generation);
+      assertNotNull(cache.get(2, 0));
+
+      cache.invalidate(1);
+      cache.invalidate(2);
+      assertNull(cache.get(1, 4));
+      assertEquals(0, cache.getSize());
+   }
+
+   @Test
+   public void servesRepeatedReadsOfFiles() {
+      final FilePath file = root.createFile("file");
+      final byte[] data = new byte[64];
+      Arrays.fill(data, (byte) 7);
+      file.setData(data);
+      file.getData();
+      final long hits = fileSystem.getClusterCacheHits();
+      file.getData();
+      assertEquals(hits + 4, fileSystem.getClusterCacheHits());
+
+      file.write(20, new byte[] { 1 });
+      data[20] = 1;
+      assertArrayEquals(data, file.getData());
+   }
+
+   private static byte[] cluster(final int value) {
+      final byte[] data = new byte[10];
+      data[0] = (byte) value;
+      return data;
+   }
+}
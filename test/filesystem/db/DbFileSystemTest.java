@@ -0,0 +1,569 @@
+package filesystem.db;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import filesystem.DirectoryPath;
+import filesystem.FilePath;
+import filesystem.FileSystem;
+import filesystem.Path;
+import filesystem.PathEntry;
+import filesystem.PathFilter;
+import filesystem.db.sql.ConnectionPool;
+import filesystem.exceptions.FileSystemRuntimeException;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+/**
+ * @author Edoardo Luppi
+ */
+public class DbFileSystemTest extends DbTestCase
+{
+   @Test
+   public void createsTheFileSystemOnce() {
+      assertTrue(fileSystem.exists());
+      assertNotNull(fileSystem.getUniqueId());
+      assertEquals("TEST", fileSystem.getVolumeLabel());
+      assertEquals("root", root.getName());
+      assertError(FileSystem.FILE_SYSTEM_ALREADY_EXIST, fileSystem::create);
+   }
+
+   @Test
+   public void createsAndLooksUpPaths() {
+      final DirectoryPath directory = root.createDirectory("a/b");
+      final FilePath file = directory.createFile("c/file");
+      file.setData("data".getBytes());
+
+      assertEquals("b", directory.getName());
+      assertEquals("a", directory.getParent().getName());
+      assertTrue(root.getPath("a/b/c").isPresent());
+
+      final FilePath found = (FilePath) root.getPath("a/b/c/file").get();
+      assertArrayEquals("data".getBytes(), found.getData());
+      assertFalse(root.getPath("a/b/missing").isPresent());
+      assertError(FileSystem.PATH_ALREADY_EXISTS, () -> root.createDirectory("a/b"));
+   }
+
+   @Test
+   public void renamesAndDeletesPaths() {
+      final DirectoryPath directory = root.createDirectory("a");
+      final FilePath file = directory.createFile("file");
+
+      file.rename("renamed");
+      assertEquals("renamed", file.getName());
+      assertFalse(root.getPath("a/file").isPresent());
+      assertTrue(root.getPath("a/renamed").isPresent());
+      assertError(FileSystem.ROOT_CANNOT_BE_RENAMED, () -> root.rename("other"));
+
+      directory.delete();
+      assertFalse(directory.exists());
+      assertFalse(file.exists());
+      assertFalse(root.getPath("a").isPresent());
+      assertTrue(root.getChildren().isEmpty());
+      assertError(FileSystem.PATH_CANNOT_BE_DELETED, root::delete);
+   }
+
+   @Test
+   public void runsOperationsAsynchronously() throws Exception {
+      final FilePath file = root.createFileAsync("a/file").get();
+      file.setDataAsync("data".getBytes()).get();
+      assertArrayEquals("data".getBytes(), file.getDataAsync().get());
+
+      final List<CompletableFuture<DirectoryPath>> futures = new ArrayList<>();
+
+      for (int i = 0; i < 20; i++) {
+         futures.add(root.createDirectoryAsync("d" + i));
+      }
+
+      CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).get();
+      assertTrue(root.getPathAsync("d19").get().isPresent());
+      assertEquals(21, root.getChildren().size());
+
+      try {
+         root.createDirectoryAsync("d0").get();
+         fail();
+      } catch (final ExecutionException e) {
+         assertTrue(e.getCause() instanceof FileSystemRuntimeException);
+      }
+   }
+
+   @Test
+   public void keepsChildrenOfRolledBackChanges() {
+      final DirectoryPath target = root.createDirectory("target");
+      target.getChildren();
+
+      try {
+         new DbSandbox(fileSystem) {
+            @Override
+            public void run(final Connection connection) throws SQLException {
+               target.createFile("file");
+               throw new SQLException("Failure");
+            }
+         }.execute(false);
+         fail();
+      } catch (final FileSystemRuntimeException e) {
+         // The creation of the file has been rolled back.
+      }
+
+      assertTrue(target.getChildren().isEmpty());
+      assertFalse(target.getPath("file").isPresent());
+   }
+
+   @Test
+   public void rejectsVirtualThreadsWhenUnsupported() {
+      if (DbFileSystem.isVirtualThreadsSupported()) {
+         fileSystem.setExecutionMode(DbFileSystem.ExecutionMode.VIRTUAL_THREADS);
+         assertEquals(DbFileSystem.ExecutionMode.VIRTUAL_THREADS, fileSystem.getExecutionMode());
+         return;
+      }
+
+      final DbFileSystem.ExecutionMode mode = fileSystem.getExecutionMode();
+
+      try {
+         fileSystem.setExecutionMode(DbFileSystem.ExecutionMode.VIRTUAL_THREADS);
+         fail();
+      } catch (final UnsupportedOperationException e) {
+         assertEquals(mode, fileSystem.getExecutionMode());
+      }
+   }
+
+   @Test
+   public void looksUpChildrenByName() {
+      for (int i = 199; i >= 0; i--) {
+         root.createFile(String.format("f%03d", i));
+      }
+
+      assertEquals("f123", root.getPath("f123").get().getName());
+      assertFalse(root.getPath("f200").isPresent());
+      assertEquals(200, root.getChildren().size());
+      assertEquals("f000", root.getChildren().iterator().next().getName());
+      assertError(FileSystem.PATH_ALREADY_EXISTS, () -> root.createFile("f042"));
+   }
+
+   @Test
+   public void readsOnlyTheLookedUpChildren() {
+      root.createFile("a");
+      assertTrue(root.getPath("a").isPresent());
+
+      try (final DbFileSystem other = DbFileSystem.open(url, fileSystem.getUniqueId())) {
+         other.getRoot().createFile("b");
+      }
+
+      // The lookup of a single child did not read the other ones, which are read now.
+      assertEquals(2, root.getChildren().size());
+      assertError(FileSystem.PATH_ALREADY_EXISTS, () -> root.createFile("b"));
+   }
+
+   @Test
+   public void invalidatesCachedResolutions() {
+      final DirectoryPath b = root.createDirectory("a/b");
+      b.createFile("file");
+      assertTrue(root.getPath("a/b/file").isPresent());
+      assertFalse(root.getPath("a/c/file").isPresent());
+
+      b.rename("c");
+      assertFalse(root.getPath("a/b/file").isPresent());
+      assertTrue(root.getPath("a/c/file").isPresent());
+
+      root.getPath("a").get().delete();
+      assertFalse(root.getPath("a/c/file").isPresent());
+      assertFalse(root.getPath("a").isPresent());
+   }
+
+   @Test
+   public void trustsKnownExistenceUntilItIsStale() throws SQLException {
+      fileSystem.setExistenceStaleness(60000);
+      final FilePath file = root.createFile("a/file");
+
+      try (final Statement statement = connection.createStatement()) {
+         statement.executeUpdate("DELETE FROM DBFS_PATH WHERE NAME = 'file'");
+      }
+
+      assertTrue(file.exists());
+
+      // A change to an ancestor makes the known existence of the file stale.
+      root.getPath("a").get().rename("b");
+      assertFalse(file.exists());
+
+      final FilePath other = root.createFile("other");
+
+      try (final Statement statement = connection.createStatement()) {
+         statement.executeUpdate("DELETE FROM DBFS_PATH WHERE NAME = 'other'");
+      }
+
+      fileSystem.setExistenceStaleness(0);
+      assertFalse(other.exists());
+   }
+
+   @Test
+   public void handsOutOneInstancePerPath() {
+      final DirectoryPath directory = root.createDirectory("a/b");
+      final FilePath file = directory.createFile("file");
+
+      assertSame(directory, root.getPath("a/b").get());
+      assertSame(file, root.getPath("a/b/file").get());
+      assertSame(file, directory.getChildren().iterator().next());
+      assertSame(directory.getParent(), root.getPath("a").get());
+
+      final FilePath other = root.createFile("file");
+      assertNotEquals(file, other);
+      assertEquals(file.hashCode(), root.getPath("a/b/file").get().hashCode());
+   }
+
+   @Test
+   public void copiesSubtreesSharingTheirContent() throws SQLException {
+      final DirectoryPath source = root.createDirectory("source");
+      final FilePath file = source.createDirectory("a").createFile("file");
+      file.setData("shared data".getBytes());
+      final long clusters = count("DBFS_CLUSTER");
+
+      final DirectoryPath copy = source.copyTo(root.createDirectory("target"));
+      final FilePath copied = (FilePath) copy.getPath("a/file").get();
+      assertEquals(clusters, count("DBFS_CLUSTER"));
+      assertArrayEquals("shared data".getBytes(), copied.getData());
+
+      copied.write(0, "SHARED".getBytes());
+      assertArrayEquals("SHARED data".getBytes(), copied.getData());
+      assertArrayEquals("shared data".getBytes(), file.getData());
+      assertTrue(root.getPath("source/a/file").isPresent());
+      assertTrue(root.getPath("target/source/a/file").isPresent());
+   }
+
+   @Test
+   public void reclaimsDeletedSubtrees() throws SQLException {
+      fileSystem.setGarbageCollectionBatchSize(2);
+      final DirectoryPath directory = root.createDirectory("a");
+
+      for (int i = 0; i < 5; i++) {
+         directory.createDirectory("d" + i).createFile("file").setData(data(40));
+      }
+
+      final FilePath kept = root.createFile("kept");
+      kept.setData(data(40));
+
+      directory.delete();
+      assertFalse(root.getPath("a/d3/file").isPresent());
+      assertEquals(1, root.getChildren().size());
+
+      fileSystem.collectGarbage();
+      assertEquals(0, count("DBFS_GARBAGE"));
+      assertEquals(2, count("DBFS_PATH"));
+      assertEquals(3, count("DBFS_CLUSTER"));
+      assertArrayEquals(data(40), kept.getData());
+   }
+
+   @Test
+   public void reclaimsGarbageLeftByAPreviousSession() throws Exception {
+      // The deleting session never gets to collect.
+      fileSystem.setGarbageCollectionPause(60000);
+      root.createDirectory("a").createFile("file").setData(data(40));
+      root.getPath("a").get().delete();
+      assertEquals(1, count("DBFS_GARBAGE"));
+
+      try (final DbFileSystem reopened = DbFileSystem.open(url, fileSystem.getUniqueId())) {
+         for (int i = 0; i < 100 && count("DBFS_GARBAGE") > 0; i++) {
+            Thread.sleep(50);
+         }
+
+         assertEquals(0, count("DBFS_GARBAGE"));
+         assertEquals(1, count("DBFS_PATH"));
+      }
+   }
+
+   @Test
+   public void queriesSubtreesThroughTheAncestry() {
+      final DirectoryPath a = root.createDirectory("a");
+      final DirectoryPath b = a.createDirectory("b");
+      final FilePath file = b.createFile("file");
+      final FilePath outside = root.createFile("outside");
+
+      final List<Path> descendants = new ArrayList<>(a.getDescendants());
+      assertEquals(2, descendants.size());
+      assertEquals(b, descendants.get(0));
+      assertEquals(file, descendants.get(1));
+      assertTrue(a.contains(file));
+      assertFalse(a.contains(outside));
+      assertFalse(b.contains(a));
+      assertFalse(b.contains(new DbFile(fileSystem, b, "uncreated")));
+      outside.delete();
+      assertFalse(root.contains(outside));
+
+      assertError(FileSystem.PATH_CANNOT_BE_MOVED, () -> a.moveTo(b));
+      assertError(FileSystem.PATH_CANNOT_BE_MOVED, () -> a.moveTo(a));
+
+      b.moveTo(root);
+      assertFalse(a.contains(file));
+      assertTrue(b.contains(file));
+      assertTrue(root.getPath("b/file").isPresent());
+   }
+
+   @Test
+   public void reclaimsSubtreesMovedWhileQueued() throws SQLException {
+      final DirectoryPath a = root.createDirectory("a");
+      final DirectoryPath b = a.createDirectory("b");
+      final FilePath file = b.createFile("file");
+      file.setData(data(40));
+      final DirectoryPath x = root.createDirectory("x");
+
+      b.delete();
+      a.moveTo(x);
+      assertFalse(file.exists());
+      assertEquals(Collections.singletonList(a), new ArrayList<>(x.getDescendants()));
+
+      fileSystem.collectGarbage();
+      assertEquals(0, count("DBFS_GARBAGE"));
+      assertEquals(3, count("DBFS_PATH"));
+      assertEquals(0, count("DBFS_CLUSTER"));
+      assertFalse(file.exists());
+   }
+
+   @Test
+   public void listsChildrenByPage() {
+      for (int i = 24; i >= 0; i--) {
+         root.createFile(String.format("f%02d", i)).setData(new byte[i]);
+      }
+
+      root.createDirectory("g");
+
+      final List<PathEntry> first = root.list(null, 10);
+      assertEquals(10, first.size());
+      assertEquals("f00", first.get(0).getName());
+      assertEquals("f09", first.get(9).getName());
+
+      final List<PathEntry> last = root.list("f19", 10);
+      assertEquals(6, last.size());
+      assertEquals(24, last.get(4).getSize());
+      assertFalse(last.get(4).isDirectory());
+      assertTrue(last.get(5).isDirectory());
+      assertTrue(root.list("g", 10).isEmpty());
+      assertTrue(root.list(null, 0).isEmpty());
+      assertTrue(root.list(null, -1).isEmpty());
+
+      assertEquals(26, root.entries().count());
+      assertEquals("f13", root.entries().skip(13).findFirst().get().getName());
+   }
+
+   @Test
+   public void walksAndFindsInParallel() {
+      for (int i = 0; i < 20; i++) {
+         final DirectoryPath directory = root.createDirectory("d" + i);
+         directory.createFile("a" + i + ".txt").setData(new byte[i]);
+         directory.createFile("b" + i + ".bin");
+      }
+
+      assertEquals(60, root.walk().count());
+      assertEquals(60, root.walk().parallel().map(Path::getName).distinct().count());
+      assertEquals(20, root.find(PathFilter.any().directoriesOnly()).count());
+      assertEquals(20, root.find(PathFilter.any().withName("*.txt")).parallel().count());
+      assertEquals(1, root.find(PathFilter.any().withName("a1?.txt").withMinSize(19)).count());
+      assertEquals(5, root.find(PathFilter.any().filesOnly().withMinSize(5).withMaxSize(9)).count());
+      assertEquals(0, root.find(PathFilter.any().withName("a_.txt")).count());
+   }
+
+   @Test
+   public void maintainsUsageTotals() {
+      final DirectoryPath a = root.createDirectory("a");
+      final DirectoryPath b = a.createDirectory("b");
+      b.createFile("file").setData(data(40));
+      a.createFile("other").setData(data(10));
+
+      assertEquals(50, a.getUsage().getBytes());
+      assertEquals(4, a.getUsage().getClusters());
+      assertEquals(40, b.getUsage().getBytes());
+      assertEquals(50, root.getUsage().getBytes());
+
+      b.moveTo(root);
+      assertEquals(10, a.getUsage().getBytes());
+      b.copyTo(a);
+      assertEquals(50, a.getUsage().getBytes());
+      assertEquals(90, root.getUsage().getBytes());
+
+      b.delete();
+      assertEquals(50, root.getUsage().getBytes());
+
+      a.setQuota(60);
+      assertEquals(60, a.getUsage().getQuota());
+      final FilePath big = a.createFile("big");
+      assertError(FileSystem.QUOTA_EXCEEDED, () -> big.setData(data(20)));
+      assertEquals(50, a.getUsage().getBytes());
+      a.setQuota(-1);
+      big.setData(data(20));
+      assertEquals(70, a.getUsage().getBytes());
+   }
+
+   @Test
+   public void keepsChildrenOfCopiesOverQuota() {
+      final DirectoryPath source = root.createDirectory("source");
+      source.createFile("file").setData(data(30));
+      final DirectoryPath target = root.createDirectory("target").setQuota(10);
+      target.getChildren();
+
+      assertError(FileSystem.QUOTA_EXCEEDED, () -> source.copyTo(target));
+      assertTrue(target.getChildren().isEmpty());
+      assertFalse(target.getPath("source").isPresent());
+      assertEquals(0, target.getUsage().getBytes());
+   }
+
+   @Test
+   public void chargesOnlyStoredClustersToQuotas() {
+      final DirectoryPath directory = root.createDirectory("d").setQuota(100);
+      final FilePath file = directory.createFile("sparse");
+      file.setLength(10000);
+      file.write(100, data(20));
+
+      // Only the clusters holding the written bytes and the last one are stored.
+      assertEquals(10000, file.getAttributes().getSize());
+      assertEquals(48, directory.getUsage().getBytes());
+      assertEquals(3, directory.getUsage().getClusters());
+
+      assertError(FileSystem.QUOTA_EXCEEDED, () -> file.write(1000, data(100)));
+      file.setLength(50);
+      assertEquals(2, directory.getUsage().getBytes());
+      assertEquals(1, directory.getUsage().getClusters());
+   }
+
+   @Test
+   public void failsTransactionsWhichSwallowedAFailure() {
+      try {
+         new DbSandbox(fileSystem) {
+            @Override
+            public void run(final Connection connection) throws SQLException {
+               root.createDirectory("a");
+
+               try {
+                  new DbSandbox(fileSystem) {
+                     @Override
+                     public void run(final Connection connection) throws SQLException {
+                        throw new SQLException("Failure");
+                     }
+                  }.execute(false);
+               } catch (final FileSystemRuntimeException e) {
+                  // The caller goes on as if the failure did not matter.
+               }
+            }
+         }.execute(false);
+         fail();
+      } catch (final FileSystemRuntimeException e) {
+         assertEquals("The transaction has been marked rollback-only", e.getMessage());
+      }
+
+      assertFalse(root.getPath("a").isPresent());
+   }
+
+   @Test
+   public void reopensStoredFileSystems() {
+      root.createDirectory("a").createFile("file").setData("keep".getBytes());
+      final String uniqueId = fileSystem.getUniqueId();
+      fileSystem.close();
+
+      fileSystem = DbFileSystem.open(url, uniqueId);
+      assertTrue(fileSystem.exists());
+      assertEquals(uniqueId, fileSystem.getUniqueId());
+      assertEquals("TEST", fileSystem.getVolumeLabel());
+      assertEquals(getClusterSize(), fileSystem.getClusterSize());
+
+      root = fileSystem.getRoot();
+      assertEquals("root", root.getName());
+      assertArrayEquals("keep".getBytes(), ((FilePath) root.getPath("a/file").get()).getData());
+      assertError(FileSystem.FILE_SYSTEM_ALREADY_EXIST, fileSystem::create);
+      assertError(FileSystem.FILE_SYSTEM_DOES_NOT_EXIST, () -> DbFileSystem.open(url, "missing"));
+   }
+
+   @Test
+   public void boundsConcurrentOperationsByThePoolSize() throws Exception {
+      final ExecutorService executor = Executors.newCachedThreadPool();
+      final AtomicInteger running = new AtomicInteger();
+      final AtomicInteger maxRunning = new AtomicInteger();
+      final List<CompletableFuture<Void>> futures = new ArrayList<>();
+      fileSystem.setExecutor(executor);
+
+      try {
+         for (int i = 0; i < 50; i++) {
+            futures.add(new DbSandbox(fileSystem) {
+               @Override
+               public void run(final Connection connection) throws SQLException {
+                  maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+
+                  try {
+                     Thread.sleep(10);
+                  } catch (final InterruptedException e) {
+                     Thread.currentThread().interrupt();
+                  }
+
+                  running.decrementAndGet();
+               }
+            }.execute(true));
+         }
+
+         CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).get();
+      } finally {
+         executor.shutdown();
+      }
+
+      assertEquals(ConnectionPool.DEFAULT_SIZE, maxRunning.get());
+   }
+
+   @Test
+   public void queuesSynchronousAndAsynchronousOperationsForConnections() throws Exception {
+      // Waiting in the pool itself would fail after 50 ms.
+      final ConnectionPool pool = new ConnectionPool(url, null, null, 2, 50, 0);
+
+      try (final DbFileSystem pooledFileSystem = DbFileSystem.open(pool, fileSystem.getUniqueId())) {
+         final List<CompletableFuture<Void>> futures = new ArrayList<>();
+
+         for (int i = 0; i < 6; i++) {
+            futures.add(new SlowSandbox(pooledFileSystem).execute(true));
+         }
+
+         for (int i = 0; i < 3; i++) {
+            new SlowSandbox(pooledFileSystem).execute(false);
+         }
+
+         CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).get();
+      }
+   }
+
+   /**
+    * Holds its connection for longer than the acquire timeout of the pool.
+    */
+   private static final class SlowSandbox extends DbSandbox
+   {
+      SlowSandbox(final DbFileSystem fileSystem) {
+         super(fileSystem);
+      }
+
+      @Override
+      public void run(final Connection connection) throws SQLException {
+         try {
+            Thread.sleep(100);
+         } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+         }
+      }
+   }
+
+   private static byte[] data(final int length) {
+      final byte[] data = new byte[length];
+      Arrays.fill(data, (byte) 1);
+      return data;
+   }
+}
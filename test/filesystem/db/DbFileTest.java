@@ -0,0 +1,658 @@
+package filesystem.db;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import filesystem.FilePath;
+import filesystem.FileSystem;
+import filesystem.PathAttributes;
+import filesystem.db.sql.ConnectionPool;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+/**
+ * @author Edoardo Luppi
+ */
+public class DbFileTest extends DbTestCase
+{
+   private final Random random = new Random(1);
+
+   @Test
+   public void storesDataInClusters() throws SQLException {
+      final FilePath file = root.createFile("file");
+      final byte[] data = randomBytes(100);
+      file.setData(data);
+      assertEquals(7, count("DBFS_CLUSTER"));
+      assertArrayEquals(data, file.getData());
+
+      file.setData(Arrays.copyOf(data, 20));
+      assertArrayEquals(Arrays.copyOf(data, 20), file.getData());
+
+      file.setData(new byte[0]);
+      assertEquals(0, file.getData().length);
+   }
+
+   @Test
+   public void storesClustersInASingleTransaction() throws SQLException {
+      final CountingConnectionPool pool = new CountingConnectionPool(url);
+
+      try (final DbFileSystem countedFileSystem = DbFileSystem.open(pool, fileSystem.getUniqueId())) {
+         countedFileSystem.setBatchSize(3);
+         final FilePath file = countedFileSystem.getRoot().createFile("file");
+         pool.commits.set(0);
+         pool.batches.set(0);
+         file.setData(randomBytes(100));
+         assertEquals(1, pool.commits.get());
+         assertEquals(3, pool.batches.get());
+
+         pool.commits.set(0);
+         file.setData(new byte[0]);
+         assertEquals(1, pool.commits.get());
+         assertEquals(0, count("DBFS_CLUSTER"));
+      }
+   }
+
+   @Test
+   public void readsDataFromLocalFiles() throws IOException {
+      final byte[] expected = randomBytes(333);
+      final File local = File.createTempFile("dbfs", ".bin");
+
+      try {
+         try (final FileOutputStream output = new FileOutputStream(local)) {
+            output.write(expected);
+         }
+
+         final DbFile file = (DbFile) root.createFile("file");
+         file.setData(local);
+         assertArrayEquals(expected, file.getData());
+      } finally {
+         Files.delete(local.toPath());
+      }
+   }
+
+   @Test
+   public void streamsData() throws IOException {
+      final FilePath file = root.createFile("file");
+      final byte[] expected = randomBytes(777);
+
+      try (final OutputStream output = file.openOutputStream()) {
+         for (int i = 0; i < expected.length; i += 10) {
+            output.write(expected, i, Math.min(10, expected.length - i));
+         }
+      }
+
+      assertArrayEquals(expected, file.getData());
+
+      try (final InputStream input = file.openInputStream()) {
+         assertArrayEquals(expected, readAll(input));
+      }
+
+      try (final OutputStream output = file.openOutputStream()) {
+         output.write(expected, 0, 5);
+      }
+
+      assertArrayEquals(Arrays.copyOf(expected, 5), file.getData());
+   }
+
+   @Test
+   public void replacesDataWhenStreamsAreClosed() throws IOException, SQLException {
+      fileSystem.setBatchSize(2);
+      final DbFile file = (DbFile) root.createFile("file");
+      final byte[] previous = randomBytes(100);
+      final byte[] expected = randomBytes(300);
+      file.setData(previous);
+      final long previousContentId = file.getContentId();
+
+      final OutputStream abandoned = file.openOutputStream();
+      abandoned.write(expected);
+      assertArrayEquals(previous, file.getData());
+
+      try (final OutputStream output = file.openOutputStream()) {
+         output.write(expected);
+         output.flush();
+         assertArrayEquals(previous, file.getData());
+      }
+
+      assertArrayEquals(expected, file.getData());
+      assertEquals(expected.length, file.getLength());
+
+      fileSystem.collectGarbage();
+      assertEquals(0, queryLong("SELECT COUNT(*) FROM DBFS_CLUSTER WHERE CONTENT_ID = ?", previousContentId));
+   }
+
+   @Test
+   public void reclaimsDataOfStreamsWhichAreNeverClosed() throws IOException, SQLException, InterruptedException {
+      fileSystem.setBatchSize(2);
+      fileSystem.setStreamTimeout(100);
+      final DbFile file = (DbFile) root.createFile("file");
+      final byte[] previous = randomBytes(100);
+      file.setData(previous);
+      final long clusters = count("DBFS_CLUSTER");
+
+      final OutputStream abandoned = file.openOutputStream();
+      abandoned.write(randomBytes(300));
+      assertTrue(count("DBFS_CLUSTER") > clusters);
+
+      // The background collection wakes up once the stream has been idle for the timeout.
+      final long deadline = System.currentTimeMillis() + 10000;
+
+      while (count("DBFS_GARBAGE") > 0 && System.currentTimeMillis() < deadline) {
+         Thread.sleep(20);
+      }
+
+      assertEquals(0, count("DBFS_GARBAGE"));
+      assertEquals(1, count("DBFS_CONTENT"));
+      assertEquals(clusters, count("DBFS_CLUSTER"));
+
+      try {
+         abandoned.close();
+         fail("Expected: " + FileSystem.getErrorMessage(FileSystem.STREAM_EXPIRED));
+      } catch (final IOException e) {
+         assertEquals(FileSystem.getErrorMessage(FileSystem.STREAM_EXPIRED), e.getMessage());
+      }
+
+      assertArrayEquals(previous, file.getData());
+   }
+
+   @Test
+   public void keepsDataOfStreamsWhichAreStillOpen() throws IOException, SQLException {
+      fileSystem.setBatchSize(2);
+      final FilePath file = root.createFile("file");
+      final byte[] expected = randomBytes(300);
+
+      try (final OutputStream output = file.openOutputStream()) {
+         output.write(expected, 0, 150);
+         fileSystem.collectGarbage();
+         assertEquals(1, count("DBFS_GARBAGE"));
+         output.write(expected, 150, 150);
+      }
+
+      assertArrayEquals(expected, file.getData());
+      assertEquals(0, count("DBFS_GARBAGE"));
+   }
+
+   @Test
+   public void readsCommittedContentsDuringWrites() throws Exception {
+      final DbFile file = (DbFile) root.createFile("file");
+      final byte[] previous = randomBytes(100);
+      final byte[] expected = randomBytes(200);
+      file.setData(previous);
+      final long previousContentId = file.getContentId();
+
+      // The copy shares the content, so the write gives the file a new one.
+      file.copyTo(root.createDirectory("copies"));
+
+      final CountDownLatch written = new CountDownLatch(1);
+      final CountDownLatch read = new CountDownLatch(1);
+      final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+      try {
+         final Future<?> writer = executor.submit(() -> new DbSandbox(fileSystem) {
+            @Override
+            public void run(final Connection connection) throws SQLException {
+               file.setData(expected);
+               assertNotEquals(previousContentId, file.getContentId());
+               written.countDown();
+
+               try {
+                  read.await();
+               } catch (final InterruptedException e) {
+                  throw new SQLException(e);
+               }
+            }
+         }.execute(false));
+
+         written.await();
+         assertEquals(previousContentId, file.getContentId());
+         assertArrayEquals(previous, file.getData());
+         read.countDown();
+         writer.get();
+      } finally {
+         executor.shutdown();
+      }
+
+      assertNotEquals(previousContentId, file.getContentId());
+      assertArrayEquals(expected, file.getData());
+   }
+
+   @Test
+   public void deduplicatesConcurrentWritesOfTheSameData() throws Exception {
+      fileSystem.setDeduplicationEnabled(true);
+      final FilePath first = root.createFile("first");
+      final FilePath second = root.createFile("second");
+      final byte[] data = randomBytes(100);
+      final CountDownLatch written = new CountDownLatch(1);
+      final CountDownLatch committing = new CountDownLatch(1);
+      final ExecutorService executor = Executors.newFixedThreadPool(2);
+
+      try {
+         final Future<?> firstWriter = executor.submit(() -> new DbSandbox(fileSystem) {
+            @Override
+            public void run(final Connection connection) throws SQLException {
+               first.setData(data);
+               written.countDown();
+
+               try {
+                  committing.await();
+               } catch (final InterruptedException e) {
+                  throw new SQLException(e);
+               }
+            }
+         }.execute(false));
+
+         written.await();
+
+         // The second writer waits on the blocks inserted by the first one until it commits.
+         final Future<?> secondWriter = executor.submit(() -> second.setData(data));
+         Thread.sleep(200);
+         committing.countDown();
+         firstWriter.get();
+         secondWriter.get();
+      } finally {
+         executor.shutdown();
+      }
+
+      assertArrayEquals(data, first.getData());
+      assertArrayEquals(data, second.getData());
+      assertEquals(7, count("DBFS_BLOCK"));
+      assertEquals(14, queryLong("SELECT SUM(REFERENCE_COUNT) FROM DBFS_BLOCK"));
+   }
+
+   @Test
+   public void readsRanges() {
+      final FilePath file = root.createFile("file");
+      final byte[] data = randomBytes(100);
+      file.setData(data);
+
+      assertArrayEquals(Arrays.copyOfRange(data, 10, 50), file.read(10, 40));
+      assertArrayEquals(Arrays.copyOfRange(data, 90, 100), file.read(90, 40));
+      assertArrayEquals(Arrays.copyOfRange(data, 0, 16), file.read(0, 16));
+      assertEquals(0, file.read(200, 10).length);
+      assertArrayEquals(data, file.read(0, Integer.MAX_VALUE));
+   }
+
+   @Test
+   public void writesRanges() {
+      final FilePath file = root.createFile("file");
+      byte[] expected = randomBytes(100);
+      file.setData(expected);
+
+      final byte[] data = randomBytes(20);
+      file.write(30, data);
+      System.arraycopy(data, 0, expected, 30, data.length);
+      assertArrayEquals(expected, file.getData());
+
+      file.write(110, data);
+      expected = Arrays.copyOf(expected, 130);
+      System.arraycopy(data, 0, expected, 110, data.length);
+      assertArrayEquals(expected, file.getData());
+   }
+
+   @Test
+   public void appendsData() {
+      final FilePath file = root.createFile("file");
+      file.append("abc".getBytes());
+      file.append("defghijklmnopqrstuvwxyz".getBytes());
+      file.append(new byte[0]);
+      assertArrayEquals("abcdefghijklmnopqrstuvwxyz".getBytes(), file.getData());
+   }
+
+   @Test
+   public void ignoresEmptyWrites() {
+      final FilePath file = root.createFile("file");
+      file.setData("data".getBytes());
+      file.write(10, new byte[0]);
+      file.write(1000, new byte[0]);
+      assertArrayEquals("data".getBytes(), file.getData());
+   }
+
+   @Test
+   public void appendsConcurrently() throws Exception {
+      appendConcurrently();
+   }
+
+   @Test
+   public void readsAndWritesThroughChannels() throws IOException {
+      final FilePath file = root.createFile("file");
+      final byte[] expected = randomBytes(777);
+      file.setData(expected);
+
+      try (final SeekableByteChannel channel = file.openChannel()) {
+         assertEquals(777, channel.size());
+         channel.position(100);
+         channel.write(ByteBuffer.wrap(new byte[] { 9, 9, 9 }));
+         Arrays.fill(expected, 100, 103, (byte) 9);
+
+         final ByteBuffer buffer = ByteBuffer.allocate(5);
+         channel.position(98);
+         channel.read(buffer);
+         assertArrayEquals(Arrays.copyOfRange(expected, 98, 103), buffer.array());
+      }
+
+      assertArrayEquals(expected, file.getData());
+   }
+
+   @Test
+   public void keepsAttributesOnThePathRow() throws Exception {
+      final FilePath file = root.createFile("file");
+      final PathAttributes created = file.getAttributes();
+      assertFalse(created.isDirectory());
+      assertEquals(0, created.getSize());
+
+      Thread.sleep(10);
+      file.setData(randomBytes(40));
+      file.append(randomBytes(10));
+      file.write(100, randomBytes(5));
+      final PathAttributes written = file.getAttributes();
+      assertEquals(105, written.getSize());
+      assertEquals(created.getCreationTime(), written.getCreationTime());
+      assertTrue(written.getModificationTime().isAfter(created.getModificationTime()));
+      assertEquals(105, queryLong("SELECT DATA_LENGTH FROM DBFS_PATH WHERE NAME = 'file'"));
+
+      assertTrue(root.getAttributes().isDirectory());
+   }
+
+   @Test
+   public void deduplicatesClusters() throws SQLException {
+      fileSystem.setDeduplicationEnabled(true);
+      final byte[] data = randomBytes(64);
+      final FilePath first = root.createFile("first");
+      first.setData(data);
+      assertEquals(4, count("DBFS_BLOCK"));
+      assertEquals(0, fileSystem.getDeduplicationHits());
+
+      final FilePath second = root.createFile("second");
+      second.setData(data);
+      assertEquals(4, count("DBFS_BLOCK"));
+      assertEquals(4, fileSystem.getDeduplicationHits());
+      assertEquals(0.5, fileSystem.getDeduplicationHitRatio(), 0);
+
+      second.write(0, new byte[] { 1 });
+      assertArrayEquals(data, first.getData());
+      assertEquals(1, second.getData()[0]);
+
+      first.delete();
+      second.delete();
+      fileSystem.collectGarbage();
+      assertEquals(0, count("DBFS_BLOCK"));
+   }
+
+   @Test
+   public void encodesClustersWithTheCodecOfTheirWrite() throws SQLException {
+      // Clusters large enough to be compressed.
+      try (final DbFileSystem fileSystem = new DbFileSystem(url, "CODECS", "root", 256)) {
+         fileSystem.create();
+         final byte[] text = new byte[1000];
+
+         for (int i = 0; i < text.length; i++) {
+            text[i] = (byte) ('a' + i % 7);
+         }
+
+         final String storedBytes = "SELECT SUM(OCTET_LENGTH(DATA)) FROM DBFS_CLUSTER WHERE CODEC = ?";
+         final List<FilePath> files = new ArrayList<>();
+
+         for (final DbClusterCodec codec : Arrays.asList(new DbDeflateCodec(), new DbLzCodec())) {
+            fileSystem.setCodec(codec);
+            final FilePath file = fileSystem.getRoot().createFile("file" + files.size());
+            file.setData(text);
+            files.add(file);
+            assertTrue(queryLong(storedBytes, codec.getTag()) < 500);
+         }
+
+         fileSystem.setCodec(null);
+         files.add(fileSystem.getRoot().createFile("plain").setData(text));
+         assertEquals(text.length, queryLong(storedBytes, DbClusterCodec.IDENTITY));
+
+         for (final FilePath file : files) {
+            assertArrayEquals(text, file.getData());
+         }
+
+         // Data which does not get smaller is stored as it is.
+         fileSystem.setCodec(new DbDeflateCodec());
+         final byte[] data = randomBytes(256);
+         final FilePath file = fileSystem.getRoot().createFile("random");
+         file.setData(data);
+         assertArrayEquals(data, file.getData());
+         assertEquals(text.length + 256, queryLong(storedBytes, DbClusterCodec.IDENTITY));
+      }
+   }
+
+   @Test
+   public void encodesExtentsAsAWhole() throws SQLException {
+      // Each extent is encoded as a single unit, however small its clusters.
+      fileSystem.setExtentSize(256);
+      final byte[] text = new byte[1000];
+
+      for (int i = 0; i < text.length; i++) {
+         text[i] = (byte) ('a' + i % 7);
+      }
+
+      final String storedBytes = "SELECT SUM(OCTET_LENGTH(DATA)) FROM DBFS_CLUSTER WHERE CODEC = ?";
+      final List<FilePath> files = new ArrayList<>();
+
+      for (final DbClusterCodec codec : Arrays.asList(new DbDeflateCodec(), new DbLzCodec())) {
+         fileSystem.setCodec(codec);
+         final FilePath file = root.createFile("file" + files.size());
+         file.setData(text);
+         files.add(file);
+         assertTrue(queryLong(storedBytes, codec.getTag()) < 500);
+      }
+
+      fileSystem.setCodec(null);
+      files.add(root.createFile("plain").setData(text));
+      assertEquals(text.length, queryLong(storedBytes, DbClusterCodec.IDENTITY));
+
+      for (final FilePath file : files) {
+         assertArrayEquals(text, file.getData());
+      }
+
+      // Data which does not get smaller is stored as it is.
+      fileSystem.setCodec(new DbDeflateCodec());
+      final byte[] data = randomBytes(256);
+      final FilePath file = root.createFile("random");
+      file.setData(data);
+      assertArrayEquals(data, file.getData());
+      assertEquals(text.length + 256, queryLong(storedBytes, DbClusterCodec.IDENTITY));
+   }
+
+   @Test
+   public void storesSmallFilesInline() throws SQLException {
+      fileSystem.setInlineThreshold(12);
+      final FilePath file = root.createFile("file");
+      final byte[] small = randomBytes(10);
+      file.setData(small);
+      fileSystem.collectGarbage();
+      assertEquals(0, count("DBFS_CLUSTER"));
+      assertEquals(0, count("DBFS_CONTENT"));
+      assertArrayEquals(small, file.getData());
+      assertArrayEquals(Arrays.copyOfRange(small, 2, 6), file.read(2, 4));
+
+      file.append(randomBytes(2));
+      assertEquals(0, count("DBFS_CLUSTER"));
+
+      final byte[] large = randomBytes(40);
+      file.setData(large);
+      assertEquals(3, count("DBFS_CLUSTER"));
+      assertArrayEquals(large, file.getData());
+
+      file.setData(small);
+      fileSystem.collectGarbage();
+      assertEquals(0, count("DBFS_CLUSTER"));
+      assertArrayEquals(small, file.getData());
+      assertEquals(1, queryLong("SELECT COUNT(*) FROM DBFS_PATH WHERE INLINE_DATA IS NOT NULL"));
+   }
+
+   @Test
+   public void storesRunsOfClustersAsExtents() throws IOException, SQLException {
+      fileSystem.setExtentSize(64);
+      final FilePath file = root.createFile("file");
+      final byte[] expected = randomBytes(200);
+      file.setData(expected);
+      assertEquals(4, count("DBFS_CLUSTER"));
+      assertEquals(13, queryLong("SELECT SUM(CLUSTER_COUNT) FROM DBFS_CLUSTER"));
+      assertArrayEquals(Arrays.copyOfRange(expected, 60, 140), file.read(60, 80));
+
+      final byte[] data = randomBytes(3);
+      file.write(70, data);
+      System.arraycopy(data, 0, expected, 70, data.length);
+      assertEquals(13, queryLong("SELECT SUM(CLUSTER_COUNT) FROM DBFS_CLUSTER"));
+      assertArrayEquals(expected, file.getData());
+
+      try (final InputStream input = file.openInputStream()) {
+         assertArrayEquals(expected, readAll(input));
+      }
+   }
+
+   @Test
+   public void leavesZeroClustersUnstored() throws SQLException {
+      final FilePath file = root.createFile("file");
+      final byte[] expected = new byte[100];
+      expected[40] = 1;
+      file.setData(expected);
+      assertEquals(2, count("DBFS_CLUSTER"));
+      assertArrayEquals(expected, file.getData());
+
+      // Only the cluster holding the last byte is stored past the data.
+      file.setLength(1000);
+      assertEquals(1000, file.getAttributes().getSize());
+      assertEquals(2, count("DBFS_CLUSTER"));
+      assertEquals(62, queryLong("SELECT MAX(SEQUENCE_NUMBER) FROM DBFS_CLUSTER"));
+      assertArrayEquals(Arrays.copyOf(expected, 1000), file.getData());
+      assertArrayEquals(new byte[16], file.read(500, 16));
+
+      file.write(999, new byte[] { 2 });
+      assertEquals(2, file.read(999, 1)[0]);
+      assertEquals(2, count("DBFS_CLUSTER"));
+
+      file.setLength(20);
+      assertArrayEquals(Arrays.copyOf(expected, 20), file.getData());
+      assertEquals(0, queryLong("SELECT COUNT(*) FROM DBFS_CLUSTER WHERE SEQUENCE_NUMBER > 1"));
+   }
+
+   private void appendConcurrently() throws Exception {
+      final FilePath file = root.createFile("file");
+      final ExecutorService executor = Executors.newFixedThreadPool(8);
+      final List<Future<?>> futures = new ArrayList<>();
+      int length = 0;
+
+      try {
+         for (int i = 0; i < 100; i++) {
+            final byte[] data = new byte[5 + i % 5];
+            Arrays.fill(data, (byte) 1);
+            length += data.length;
+            futures.add(executor.submit(() -> file.append(data)));
+         }
+
+         for (final Future<?> future : futures) {
+            future.get();
+         }
+      } finally {
+         executor.shutdown();
+      }
+
+      final byte[] expected = new byte[length];
+      Arrays.fill(expected, (byte) 1);
+      assertArrayEquals(expected, file.getData());
+   }
+
+   /**
+    * Counts the commits of the connections it hands out, and the batches executed
+    * by their statements.
+    */
+   private static final class CountingConnectionPool extends ConnectionPool
+   {
+      private final AtomicInteger commits = new AtomicInteger();
+      private final AtomicInteger batches = new AtomicInteger();
+
+      CountingConnectionPool(final String url) {
+         super(url, null, null);
+      }
+
+      @Override
+      public Connection acquire() throws SQLException {
+         final Connection connection = super.acquire();
+
+         return (Connection) Proxy.newProxyInstance(
+               Connection.class.getClassLoader(),
+               new Class<?>[] { Connection.class },
+               (proxy, method, args) -> {
+                  if ("commit".equals(method.getName())) {
+                     commits.incrementAndGet();
+                  }
+
+                  final Object result = invoke(connection, method, args);
+
+                  if (!(result instanceof PreparedStatement)) {
+                     return result;
+                  }
+
+                  return Proxy.newProxyInstance(
+                        PreparedStatement.class.getClassLoader(),
+                        new Class<?>[] { PreparedStatement.class },
+                        (statementProxy, statementMethod, statementArgs) -> {
+                           if ("executeBatch".equals(statementMethod.getName())) {
+                              batches.incrementAndGet();
+                           }
+
+                           return invoke(result, statementMethod, statementArgs);
+                        });
+               });
+      }
+
+      private static Object invoke(final Object target, final Method method, final Object[] args)
+            throws Throwable {
+         try {
+            return method.invoke(target, args);
+         } catch (final InvocationTargetException e) {
+            throw e.getCause();
+         }
+      }
+   }
+
+   private byte[] randomBytes(final int length) {
+      final byte[] bytes = new byte[length];
+      random.nextBytes(bytes);
+      return bytes;
+   }
+
+   private static byte[] readAll(final InputStream input) throws IOException {
+      final byte[] buffer = new byte[64];
+      final ByteArrayOutputStream output = new ByteArrayOutputStream();
+      int read;
+
+      while ((read = input.read(buffer)) >= 0) {
+         output.write(buffer, 0, read);
+      }
+
+      return output.toByteArray();
+   }
+}
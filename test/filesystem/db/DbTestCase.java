@@ -0,0 +1,119 @@
+package filesystem.db;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import filesystem.DirectoryPath;
+import filesystem.FileSystem;
+import filesystem.exceptions.FileSystemRuntimeException;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+
+/**
+ * Base of the tests which run against a file system stored in a private in-memory
+ * H2 database. A separate connection to the same database allows to check the
+ * stored rows directly.
+ *
+ * @author Edoardo Luppi
+ */
+abstract class DbTestCase
+{
+   private static final AtomicInteger databases = new AtomicInteger();
+
+   protected String url;
+   protected DbFileSystem fileSystem;
+   protected DirectoryPath root;
+   protected Connection connection;
+
+   @Before
+   public void openFileSystem() throws SQLException {
+      url = "jdbc:h2:mem:dbfs" + databases.incrementAndGet() + ";DB_CLOSE_DELAY=-1;LOCK_TIMEOUT=" + getLockTimeout();
+      fileSystem = new DbFileSystem(url, "TEST", "root", getClusterSize());
+      fileSystem.create();
+      root = fileSystem.getRoot();
+      connection = DriverManager.getConnection(url);
+   }
+
+   @After
+   public void closeFileSystem() throws SQLException {
+      fileSystem.close();
+
+      try (final Statement statement = connection.createStatement()) {
+         statement.execute("SHUTDOWN");
+      }
+
+      connection.close();
+   }
+
+   /**
+    * Returns the cluster size of the tested file system.
+    */
+   int getClusterSize() {
+      return 16;
+   }
+
+   /**
+    * Returns the milliseconds a statement waits for a row locked by another
+    * transaction before failing.
+    */
+   int getLockTimeout() {
+      return 10000;
+   }
+
+   /**
+    * Runs a query which returns a single number.
+    *
+    * @param sql
+    *           The query
+    * @param parameters
+    *           The query parameters
+    */
+   long queryLong(final String sql, final Object... parameters) throws SQLException {
+      try (final PreparedStatement statement = connection.prepareStatement(sql)) {
+         for (int i = 0; i < parameters.length; i++) {
+            statement.setObject(i + 1, parameters[i]);
+         }
+
+         try (final ResultSet resultSet = statement.executeQuery()) {
+            resultSet.next();
+            return resultSet.getLong(1);
+         }
+      }
+   }
+
+   /**
+    * Returns the number of rows of a table.
+    *
+    * @param table
+    *           The table name
+    */
+   long count(final String table) throws SQLException {
+      return queryLong("SELECT COUNT(*) FROM " + table);
+   }
+
+   /**
+    * Checks that an operation fails with the message of an error code.
+    *
+    * @param errorCode
+    *           The expected error code
+    * @param operation
+    *           The operation
+    */
+   static void assertError(final int errorCode, final Runnable operation) {
+      try {
+         operation.run();
+         fail("Expected: " + FileSystem.getErrorMessage(errorCode));
+      } catch (final FileSystemRuntimeException e) {
+         assertEquals(FileSystem.getErrorMessage(errorCode), e.getMessage());
+      }
+   }
+}
@@ -0,0 +1,149 @@
+package filesystem.db.sql;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author Edoardo Luppi
+ */
+public class ConnectionPoolTest
+{
+   private ConnectionPool pool;
+
+   @Before
+   public void openPool() {
+      pool = new ConnectionPool("jdbc:h2:mem:pool;DB_CLOSE_DELAY=-1", null, null, 2, 200, 1);
+   }
+
+   @After
+   public void closePool() throws SQLException {
+      try (final Connection connection = pool.acquire()) {
+         connection.createStatement().execute("SHUTDOWN");
+      }
+
+      pool.close();
+   }
+
+   @Test
+   public void limitsTheOpenConnections() throws SQLException {
+      assertEquals(2, pool.getSize());
+      assertEquals(2, pool.getAvailable());
+
+      final Connection first = pool.acquire();
+      final Connection second = pool.acquire();
+      assertEquals(0, pool.getAvailable());
+
+      final long start = System.nanoTime();
+
+      try {
+         pool.acquire();
+         fail();
+      } catch (final SQLException e) {
+         assertTrue(System.nanoTime() - start >= 150_000_000L);
+      }
+
+      first.close();
+      assertEquals(1, pool.getAvailable());
+      pool.acquire().close();
+      second.close();
+      assertEquals(2, pool.getAvailable());
+   }
+
+   @Test
+   public void reusesReleasedConnections() throws SQLException {
+      final Connection first = pool.acquire();
+      final Connection raw = first.unwrap(Connection.class);
+      first.close();
+
+      try (final Connection second = pool.acquire()) {
+         assertSame(raw, second.unwrap(Connection.class));
+         assertTrue(second.getAutoCommit());
+      }
+   }
+
+   @Test
+   public void cachesPreparedStatements() throws SQLException {
+      final Object raw;
+
+      try (final Connection connection = pool.acquire()) {
+         final PreparedStatement outer = connection.prepareStatement("SELECT ?");
+         final PreparedStatement nested = connection.prepareStatement("SELECT ?");
+         assertNotSame(outer.unwrap(PreparedStatement.class), nested.unwrap(PreparedStatement.class));
+         nested.close();
+         raw = outer.unwrap(PreparedStatement.class);
+         outer.close();
+      }
+
+      try (final Connection connection = pool.acquire(); final PreparedStatement statement = connection.prepareStatement("SELECT ?")) {
+         assertSame(raw, statement.unwrap(PreparedStatement.class));
+         statement.setInt(1, 42);
+
+         try (final ResultSet resultSet = statement.executeQuery()) {
+            resultSet.next();
+            assertEquals(42, resultSet.getInt(1));
+         }
+      }
+   }
+
+   @Test
+   public void resetsReleasedConnections() throws SQLException {
+      try (final Connection connection = pool.acquire(); final Statement statement = connection.createStatement()) {
+         statement.execute("CREATE TABLE T (ID INTEGER)");
+      }
+
+      final Connection first = pool.acquire();
+      first.setAutoCommit(false);
+
+      try (final Statement statement = first.createStatement()) {
+         statement.execute("INSERT INTO T VALUES (1)");
+      }
+
+      first.setReadOnly(true);
+      first.close();
+
+      try (final Connection second = pool.acquire(); final Statement statement = second.createStatement()) {
+         assertTrue(second.getAutoCommit());
+         assertFalse(second.isReadOnly());
+
+         try (final ResultSet resultSet = statement.executeQuery("SELECT COUNT(*) FROM T")) {
+            resultSet.next();
+            assertEquals(0, resultSet.getInt(1));
+         }
+      }
+   }
+
+   @Test
+   public void handsOutPooledConnectionsFromStatements() throws SQLException {
+      final Connection raw;
+
+      try (final Connection connection = pool.acquire()) {
+         raw = connection.unwrap(Connection.class);
+
+         try (final PreparedStatement statement = connection.prepareStatement("SELECT 1")) {
+            assertSame(connection, statement.getConnection());
+            statement.getConnection().close();
+         }
+      }
+
+      assertFalse(raw.isClosed());
+      assertEquals(2, pool.getAvailable());
+
+      try (final Connection connection = pool.acquire()) {
+         assertSame(raw, connection.unwrap(Connection.class));
+      }
+   }
+}